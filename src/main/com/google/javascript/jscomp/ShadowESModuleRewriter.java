@@ -30,6 +30,7 @@ import com.google.javascript.jscomp.parsing.parser.FeatureSet.Feature;
 import com.google.javascript.rhino.IR;
 import com.google.javascript.rhino.Node;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -514,16 +515,53 @@ public class ShadowESModuleRewriter extends AbstractPostOrderCallback {
         }
     }
 
-    public static String rewrite(String source) {
-        Compiler cc = new Compiler();
+    // creating a Compiler and its parser config per file was most of the cost for small files
+    // the rewrite doesn't leave anything behind in the compiler, so each thread keeps one.
+    // only replaced after it reported something, so errors don't pile up forever.
+    private static final ThreadLocal<Compiler> COMPILERS = new ThreadLocal<>();
 
+    private static CompilerOptions createOptions() {
         CompilerOptions co = new CompilerOptions();
         co.setPrettyPrint(true);
         co.setEmitUseStrict(false);
         co.setLanguageIn(CompilerOptions.LanguageMode.UNSTABLE);
         co.setLanguageOut(CompilerOptions.LanguageMode.NO_TRANSPILE);
+        return co;
+    }
 
-        cc.initOptions(co);
+    // only read by the code printer, so one instance can be shared by all threads
+    private static final CompilerOptions SOURCE_MAP_OPTIONS = createOptions();
+
+    static {
+        SOURCE_MAP_OPTIONS.setAlwaysGatherSourceMapInfo(true);
+    }
+
+    public static Compiler createCompiler() {
+        Compiler cc = new Compiler();
+        cc.initOptions(createOptions());
+        return cc;
+    }
+
+    public static String rewrite(String source) {
+        Compiler cc = COMPILERS.get();
+        if (cc == null) {
+            cc = createCompiler();
+            COMPILERS.set(cc);
+        }
+
+        try {
+            return rewrite(cc, source);
+        } finally {
+            if (cc.getErrorManager().getErrorCount() > 0 || cc.getErrorManager().getWarningCount() > 0) {
+                COMPILERS.remove();
+            }
+        }
+    }
+
+    /**
+     * @param cc from createCompiler, must not be used by multiple threads at once
+     */
+    public static String rewrite(Compiler cc, String source) {
         SourceFile src = SourceFile.fromCode("convert.js", source);
 
         CompilerInput input = new CompilerInput(src);
@@ -531,11 +569,101 @@ public class ShadowESModuleRewriter extends AbstractPostOrderCallback {
 
         NodeTraversal.traverse(cc, node, new ShadowESModuleRewriter(cc, node));
 
-        // FIXME: source maps? babel-worker never handled those either, so doesn't seem too needed
-        // most npm code is minified or ugly in other ways anyways
+        // use rewriteWithSourceMap if the output needs to map back to the original
         return cc.toSource(node);
     }
 
+    public static class Rewritten {
+        public final String code;
+        // source map v3 json, null if not requested
+        public final String sourceMap;
+
+        public Rewritten(String code, String sourceMap) {
+            this.code = code;
+            this.sourceMap = sourceMap;
+        }
+    }
+
+    public static Rewritten rewriteWithSourceMap(String name, String source) {
+        Compiler cc = COMPILERS.get();
+        if (cc == null) {
+            cc = createCompiler();
+            COMPILERS.set(cc);
+        }
+
+        try {
+            return rewriteWithSourceMap(cc, name, source);
+        } finally {
+            if (cc.getErrorManager().getErrorCount() > 0 || cc.getErrorManager().getWarningCount() > 0) {
+                COMPILERS.remove();
+            }
+        }
+    }
+
+    /**
+     * same code as rewrite, plus a source map from the rewritten code back to source.
+     * <p>
+     * the map is meant to be used as an input source map for the closure pass that processes
+     * the rewritten code later, so the final output maps to the original ESM source without
+     * parsing it again.
+     *
+     * @param name used as the source in the map and in errors
+     */
+    public static Rewritten rewriteWithSourceMap(Compiler cc, String name, String source) {
+        SourceFile src = SourceFile.fromCode(name, source);
+
+        CompilerInput input = new CompilerInput(src);
+        Node node = input.getAstRoot(cc);
+
+        NodeTraversal.traverse(cc, node, new ShadowESModuleRewriter(cc, node));
+
+        // same as cc.toSource(node), which doesn't expose the mappings
+        Compiler.ScriptNodeLicensesOnlyTracker licenses = new Compiler.ScriptNodeLicensesOnlyTracker(cc);
+
+        CodePrinter.SourceAndMappings result = new CodePrinter.Builder(node)
+                .setCompilerOptions(SOURCE_MAP_OPTIONS)
+                .setTagAsTypeSummary(false)
+                .setTagAsStrict(false)
+                .setLicenseTracker(licenses)
+                .buildWithSourceMappings();
+
+        StringBuilder code = new StringBuilder();
+        for (String license : licenses.emitLicenses()) {
+            code.append("/*\n").append(license).append("*/\n");
+        }
+
+        SourceMap sourceMap = SourceMap.Format.V3.getInstance();
+        // licenses are prepended, so everything after moves down
+        if (code.length() > 0) {
+            sourceMap.setStartingPosition(countLines(code), 0);
+        }
+        for (SourceMap.Mapping mapping : result.mappings) {
+            sourceMap.addMapping(mapping);
+        }
+
+        code.append(result.source);
+
+        StringBuilder json = new StringBuilder();
+        try {
+            sourceMap.appendTo(json, name);
+        } catch (IOException e) {
+            // can't happen for a StringBuilder
+            throw new IllegalStateException(e);
+        }
+
+        return new Rewritten(code.toString(), json.toString());
+    }
+
+    private static int countLines(CharSequence s) {
+        int lines = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
     public static void dumpCode(String code) {
         Compiler cc = new Compiler();
 
@@ -337,10 +337,11 @@
          (get-target-fn target build-id)
 
          js-options-keys
-         [:js-package-dirs :node-modules-dir :entry-keys :extensions]
+         [:js-package-dirs :node-modules-dir :entry-keys :extensions :inspect-cache :lexical-inspect :retain-sources :esm-rewrite-cache :parallel-inspect]
 
          npm-config
          (merge
+           {:cache-root (:cache-root runtime-config)}
            ;; global config so it doesn't have to be configured per build
            (select-keys (:js-options runtime-config) js-options-keys)
            ;; build config supersedes global
@@ -466,12 +467,25 @@
       (assoc-in [::build-info :compile-complete] (System/currentTimeMillis))))
 
 (defn resolve [state]
-  (if (or (not (modules/configured? state))
-          (get-in state [:build-options :dynamic-resolve]))
+  (cond
+    (or (not (modules/configured? state))
+        (get-in state [:build-options :dynamic-resolve]))
     ;; flat build, no modules
-    (process-stage state :resolve false)
+    ;; always runs, the target :resolve and its hooks may depend on more than the sources
+    (-> (dissoc state ::build-api/skip-resolve)
+        (process-stage :resolve false))
+
+    ;; only JS files changed that still have the same deps, see build-api/reload-unchanged-js
+    ;; the previous result is still valid, unless something else removed sources since
+    (and (::build-api/skip-resolve state)
+         (seq (:build-sources state))
+         (every? #(contains? (:sources state) %) (:build-sources state)))
+    (dissoc state ::build-api/skip-resolve)
+
     ;; :modules based build
-    (modules/analyze state)))
+    :else
+    (-> (dissoc state ::build-api/skip-resolve)
+        (modules/analyze))))
 
 
 ;; only prepares data_readers.cljc data, so it can be transferred to cljs.reader/add-data-readers
@@ -413,6 +413,54 @@
 
     (reset-resources state source-ids)))
 
+(defn reload-unchanged-js
+  "keeps classpath JS resources in the build when their requires/provides are still the same
+   (see cp/same-js-deps?), only replacing their source and removing the outputs affected by them.
+   everything else is reset as usual via reset-resources.
+
+   if all of them could be reloaded the next resolve is skipped for :modules based builds,
+   since the dependency graph and modules are still the same. flat builds (eg. :node-test,
+   :browser-test, :npm-module) still run the :resolve stage and its build hooks as usual,
+   since the target may resolve based on more than the sources."
+  [{:keys [classpath] :as state} provides]
+  (let [source-ids
+        (->> provides
+             (map #(get-in state [:sym->id %]))
+             (remove nil?)
+             (into #{}))
+
+        reloaded
+        (reduce
+          (fn [m resource-id]
+            (let [{:keys [file] :as current} (get-in state [:sources resource-id])
+                  updated (when (and file (not (:defined-in-repl current)))
+                            (cp/find-resource-by-file classpath file))]
+              (if (cp/same-js-deps? current updated)
+                ;; the build may have changed :type/:deps (eg. :shadow-js with shadow.js dep)
+                ;; all of those derive from the deps which are still the same
+                (assoc m resource-id (merge current (dissoc updated :type :deps :requires :provides :ns)))
+                m)))
+          {}
+          source-ids)
+
+        reset-ids
+        (set/difference source-ids (set (keys reloaded)))]
+
+    (if-not (seq reloaded)
+      (reset-resources state source-ids)
+      (-> (reduce
+            (fn [state resource-id]
+              (if (get-in state [:sources resource-id :defined-in-repl])
+                state
+                (data/remove-output-by-id state resource-id)))
+            state
+            (find-resources-affected-by state (set (keys reloaded))))
+          (update :sources merge reloaded)
+          (reset-resources reset-ids)
+          (cond->
+            (empty? reset-ids)
+            (assoc ::skip-resolve true))))))
+
 (defn- macro-test-fn [macros]
   (fn [{:keys [type macro-requires source-ns] :as src}]
     (when (= :cljs type)
@@ -23,7 +23,7 @@
            (java.util.jar JarFile JarEntry Attributes$Name)
            (java.net URL URLDecoder)
            (java.util.zip ZipException)
-           (shadow.build.closure JsInspector)
+           (shadow.build.closure JsInspector InspectCache ParallelInspector SharedParser)
            [java.nio.file Paths Path]
            [com.google.javascript.jscomp CompilerOptions$LanguageMode CompilerOptions SourceFile]
            [com.google.javascript.jscomp.deps ModuleNames]
@@ -75,12 +75,17 @@
 (defn service? [x]
   (and (map? x) (::service x)))
 
-(defn inspect-js [{:keys [compiler] :as state} {:keys [resource-name url] :as rc}]
+(defn inspect-js [{:keys [compiler inspect-cache] :as state} {:keys [resource-name url] ::keys [prefetched] :as rc}]
   ;; avoid parsing cljsjs files since they are standalone bundles
   ;; and can never require/import anything, we don't want to ever include them anyways
   (when-not (str/starts-with? resource-name "cljsjs/")
-    (let [source
-          (slurp url)
+    (let [rc
+          (dissoc rc ::prefetched)
+
+          source
+          (if prefetched
+            (:source prefetched)
+            (slurp url))
 
           ;; all requires are collected into
           ;; :js-requires ["foo" "bar/thing" "./baz]
@@ -99,12 +104,17 @@
                   goog-require-types
                   goog-provides]
            :as info}
-          (JsInspector/getFileInfoMap
-            compiler
-            ;; SourceFile/fromFile seems to leak file descriptors
-            (SourceFile/fromCode resource-name source))
-
-          rc (assoc rc :inspect-info info)]
+          (if prefetched
+            (:info prefetched)
+            (let [src
+                  ;; SourceFile/fromFile seems to leak file descriptors
+                  (SourceFile/fromCode resource-name source)]
+              (if inspect-cache
+                (.getFileInfoMap ^InspectCache inspect-cache compiler src)
+                (JsInspector/getFileInfoMap compiler src))))
+
+          ;; info is a lazy view, the resource must only hold regular maps since it gets cached
+          rc (assoc rc :inspect-info (into {} info))]
 
       (when (seq js-errors)
         (throw (ex-info "parsed file had errors"
@@ -471,9 +481,49 @@
 (defmethod log/log-msg ::resource-inspect [_ {:keys [loc]}]
   (format "failed to inspect resource \"%s\", it will not be available." loc))
 
+(defn prefetch-js
+  "inspects all js resources in parallel, inspect-js uses the results instead of parsing them one by one"
+  [{:keys [^ParallelInspector parallel-inspector] :as cp} resources]
+  (let [resources
+        (vec resources)
+
+        todo
+        (->> resources
+             (keep-indexed
+               (fn [idx {:keys [resource-name url]}]
+                 (when (and (util/is-js-file? resource-name)
+                            (not (str/starts-with? resource-name "cljsjs/")))
+                   (try
+                     [idx resource-name (slurp url)]
+                     (catch Exception e
+                       ;; inspect-js will fail properly
+                       (log/debug-ex e ::prefetch-read-ex {:resource-name resource-name})
+                       nil)))))
+             (into []))]
+
+    (if (or (not parallel-inspector) (< (count todo) 2))
+      resources
+      (let [results
+            (.inspect parallel-inspector
+              (mapv (fn [[_ resource-name source]]
+                      (SourceFile/fromCode resource-name source))
+                todo))]
+
+        (reduce
+          (fn [resources [[idx resource-name source] info]]
+            (if-not (map? info)
+              (do (log/debug-ex info ::prefetch-inspect-ex {:resource-name resource-name})
+                  resources)
+              (update resources idx assoc ::prefetched {:source source :info info})))
+          resources
+          (map vector todo results))))))
+
 (defn inspect-resources [cp {:keys [resources] :as contents}]
   (assoc contents :resources
                   (->> resources
+                       ;; only one batch of sources is read at a time, jars may contain lots of JS
+                       (partition-all npm/prefetch-batch-size)
+                       (mapcat #(prefetch-js cp %))
                        (map (fn [src]
                               (try
                                 (inspect-resource cp src)
@@ -974,7 +1024,10 @@
     (tap> svc)
     (stop svc)))
 
-(defn start [cache-root]
+(defn start
+  "opts may contain :inspect-cache false to not cache inspect results on disk
+   and :parallel-inspect false to inspect JS files one by one"
+  [cache-root & [{:keys [inspect-cache parallel-inspect]}]]
   (let [co
         (doto (CompilerOptions.)
           ;; FIXME: good idea to disable ALL warnings?
@@ -989,6 +1042,15 @@
           (.disableThreads)
           (.initOptions co))
 
+        ;; same content addressed cache npm uses, shared dir since keys include the parser config
+        inspect-cache
+        (when (and cache-root (not (false? inspect-cache)))
+          (InspectCache. (io/file cache-root "inspect-cache") co))
+
+        parallel-inspector
+        (when-not (false? parallel-inspect)
+          (npm/make-parallel-inspector (SharedParser. co) inspect-cache))
+
         ignore-patterns
         #{#"node_modules/"
           ;; temp files created by emacs are in the same directory
@@ -1036,6 +1098,8 @@
 
          :compiler cc
          :compiler-options co
+         :inspect-cache inspect-cache
+         :parallel-inspector parallel-inspector
 
          ;; resource-name -> resource
          :sources {}}]
@@ -1048,13 +1112,17 @@
      ;; wait before moving on
      :compiler-options co
      :compiler cc
+     :inspect-cache inspect-cache
+     :parallel-inspector parallel-inspector
      :index-ref (atom index)
      ;; FIXME: ugly duplication because of should-ignore-resource? being used as an api method
      ;; this is also kept in the index-ref but having outside namespaces deref the index-ref
      ;; is uglier than duplicating this little bit
      :ignore-patterns ignore-patterns}))
 
-(defn stop [cp])
+(defn stop [{:keys [^ParallelInspector parallel-inspector] :as cp}]
+  (when parallel-inspector
+    (.close parallel-inspector)))
 
 ;; API
 
@@ -1138,6 +1206,36 @@
   {:pre [(service? cp)]}
   (swap! index-ref index-file-remove source-path file))
 
+;; everything JsInspector finds that decides what a file depends on or provides
+;; :js-str-offsets, :js-warnings and such only matter when compiling the file itself
+(def js-deps-info-keys
+  [:js-requires
+   :js-imports
+   :js-dynamic-imports
+   :js-invalid-requires
+   :js-esm
+   :goog-provides
+   :goog-requires
+   :goog-require-types
+   :goog-module
+   :goog-module-legacy-namespace
+   :uses-global
+   :uses-global-buffer
+   :uses-global-process])
+
+(defn same-js-deps?
+  "true if both JS resources have the same requires/imports/provides, ie. only function bodies
+   and such changed. resolve and the module graph are then still valid after an update."
+  [a b]
+  (and (some? a)
+       (some? b)
+       (= (:resource-name a) (:resource-name b))
+       (= (:provides a) (:provides b))
+       (contains? a :inspect-info)
+       (contains? b :inspect-info)
+       (= (select-keys (:inspect-info a) js-deps-info-keys)
+          (select-keys (:inspect-info b) js-deps-info-keys))))
+
 (defn file-update [{:keys [index-ref] :as cp} source-path file]
   {:pre [(service? cp)]}
   (swap! index-ref
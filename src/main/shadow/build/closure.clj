@@ -25,13 +25,14 @@
      JSError SourceFile CompilerOptions CustomPassExecutionTime
      CommandLineRunner VariableMap SourceMapInput DiagnosticGroups
      CheckLevel JSChunk CompilerOptions$LanguageMode
-     Result ShadowAccess SourceMap$DetailLevel SourceMap$Format
+     Result ShadowAccess SourceMap$DetailLevel SourceMap$Format ShadowESModuleRewriter$Rewritten
      ClosureCodingConvention CompilationLevel VariableRenamingPolicy
      PropertyRenamingPolicy PhaseOptimizer CompilerOptions$ChunkOutputType CompilerOptions$ExtractPrototypeMemberDeclarationsMode]
     [shadow.build.closure
-     ReplaceCLJSConstants NodeEnvInlinePass ReplaceRequirePass PropertyCollector
+     ReplaceCLJSConstants NodeEnvInlinePass ReplaceRequirePass PropertyCollector CombinedPass
      NodeStuffInlinePass FindSurvivingRequireCalls GlobalsAsVar GlobalVars ShadowESMExports ShadowESMImports]
     [com.google.javascript.jscomp.deps ModuleLoader$ResolutionMode]
+    [com.google.javascript.rhino Token]
     [java.nio.charset Charset]
     [java.util.logging Logger Level]
     [com.google.javascript.jscomp.parsing.parser FeatureSet]))
@@ -675,6 +676,28 @@
    (SourceFile/fromCode name code)
    ))
 
+(defn set-precomputed-constants
+  "passes what the CLJS compiler recorded about constants to the pass. the munged name table
+   is filled once for the whole compile, outputs from older caches don't have any of it
+   and are handled like before"
+  [^ReplaceCLJSConstants pass {:keys [build-sources] :as state}]
+  (let [outputs
+        (->> build-sources
+             (map #(data/get-source-by-id state %))
+             (filter #(= :cljs (:type %)))
+             (map #(assoc (data/get-output! state %) :resource-name (:resource-name %)))
+             (into []))]
+
+    (.setInputsWithoutConstants pass
+      (->> outputs
+           (filter #(false? (:cljs-constants-in-js %)))
+           (map :resource-name)
+           (into [])))
+
+    (doseq [{:keys [cljs-constants]} outputs
+            :when (seq cljs-constants)]
+      (.addMungedNames pass cljs-constants))))
+
 (defn add-input-source-maps [{:keys [build-sources] :as state} cc]
   (doseq [src-id build-sources
           :let [{:keys [resource-name type output-name] :as rc}
@@ -1036,12 +1059,14 @@
     (add-input-source-maps state cc)
 
     (.addCustomPass closure-opts CustomPassExecutionTime/BEFORE_CHECKS
-      (ReplaceCLJSConstants.
-        cc
-        (true? (get-in state [:compiler-options :shadow-keywords]))
-        (fn [runtime]
-          (util/log state {:type ::replace-cljs-constants :runtime runtime}))
-        ))
+      (doto (ReplaceCLJSConstants.
+              cc
+              (true? (get-in state [:compiler-options :shadow-keywords]))
+              (fn [runtime]
+                (util/log state {:type ::replace-cljs-constants :runtime runtime}))
+              ;; inputs are searched in parallel, output is the same regardless of threads
+              (get-in state [:compiler-options :closure-threads] 1))
+        (set-precomputed-constants state)))
     (.addCustomPass closure-opts CustomPassExecutionTime/BEFORE_CHECKS
       (NodeEnvInlinePass. cc (if (= :release (:mode state))
                                "production"
@@ -1909,13 +1934,14 @@
     (assoc state ::closure-js-cache cache-index-updated)
     ))
 
-(defn require-replacement-map [{:keys [str->sym sym->id] :as state}]
-  (reduce-kv
-    (fn [m ns require-map]
-      (let [rc-id
-            (data/get-source-id-by-provide state ns)
-            {:keys [resource-name] :as rc}
-            (data/get-source-by-id state rc-id)
+(defn require-replacement-map
+  "resource-name -> require string -> replacement, only for the given sources.
+   there is no need to compute this for everything on every incremental compile."
+  [{:keys [str->sym sym->id] :as state} sources]
+  (reduce
+    (fn [m {:keys [ns resource-name] :as rc}]
+      (let [require-map
+            (get str->sym ns {})
 
             ;; we want requires to stay as they are in case of shadow-js requiring npm
             ;; which can be the case for node targets using shadow-js on the classpath
@@ -1947,7 +1973,7 @@
 
         (assoc m resource-name require-map)))
     {}
-    str->sym))
+    sources))
 
 (defn cleanup-package-json-source
   "npm adds a bunch of keys to package.json on install. none of those should ever be relevant in code
@@ -1972,24 +1998,57 @@
   ;; Closure doesn't complain anymore
   (str/replace source #"\* @define" "* .define"))
 
+(defn shadow-js-prefix [js-options {:keys [ns require-id] :as src}]
+  (str "shadow$provide["
+       (if (and require-id (:minimize-require js-options))
+         (pr-str require-id)
+         (str "\"" ns "\""))
+       "] = function(require,module,exports" (when (:uses-global src) ",global") ") {\n"
+       (when (:uses-global-process src)
+         "var process = require('process');\n")
+       (when (:uses-global-buffer src)
+         "var Buffer = require('buffer').Buffer;\n")))
+
+(defn esm-input-source-map
+  "source map of the ESM rewrite, moved down by the lines the shadow$provide prefix adds"
+  [js-options src ^ShadowESModuleRewriter$Rewritten rewritten]
+  (let [prepend-lines
+        (->> (repeat (output/line-count (shadow-js-prefix js-options src)) ";")
+             (str/join ""))]
+
+    (-> (json/read-str (.-sourceMap rewritten))
+        (update "mappings" (fn [s] (str prepend-lines s)))
+        (json/write-str :escape-slash false))))
+
 (defn convert-sources-simple*
   "takes a list of :npm sources and rewrites in a browser compatible way, no full conversion"
   [{:keys [js-options mode] :as state} sources]
-  (let [source-files
-        (->> (for [{:keys [resource-id resource-name ns require-id file deps] :as src} sources]
-               (let [source (data/get-source-code state src)
+  (let [generate-source-map?
+        (not (false? (:source-map js-options)))
+
+        ;; ESM rewrites are independent per file, no need to do them one by one
+        ;; with source maps enabled each rewrite also provides the map back to the ESM source
+        esm-rewritten
+        (if (or (not (:npm state)) (:use-babel js-options))
+          {}
+          (npm/rewrite-esm-sources (:npm state) (filter :esm-rewrite sources) generate-source-map?))
+
+        source-files
+        (->> (for [{:keys [resource-id resource-name file deps] :as src} sources]
+               (let [rewritten (get esm-rewritten resource-id)
+                     source (cond
+                              (instance? ShadowESModuleRewriter$Rewritten rewritten)
+                              (.-code ^ShadowESModuleRewriter$Rewritten rewritten)
+
+                              (some? rewritten)
+                              rewritten
+
+                              :else
+                              (data/get-source-code state src))
                      source-file
                      (closure-source-file
                        resource-name
-                       (str "shadow$provide["
-                            (if (and require-id (:minimize-require js-options))
-                              (pr-str require-id)
-                              (str "\"" ns "\""))
-                            "] = function(require,module,exports" (when (:uses-global src) ",global") ") {\n"
-                            (when (:uses-global-process src)
-                              "var process = require('process');\n")
-                            (when (:uses-global-buffer src)
-                              "var Buffer = require('buffer').Buffer;\n")
+                       (str (shadow-js-prefix js-options src)
                             (cond
                               (str/ends-with? resource-name "package.json")
                               (str "module.exports=(" (cleanup-package-json-source source) ");")
@@ -2038,14 +2097,18 @@
           ;; always enable source-map, just skip emitting them later if desired
           {:source-map true})
 
-        generate-source-map?
-        (not (false? (:source-map js-options)))
+        ;; resource-name -> rc for all ESM sources that got a map from their rewrite
+        esm-mapped
+        (->> sources
+             (filter #(instance? ShadowESModuleRewriter$Rewritten (get esm-rewritten (:resource-id %))))
+             (map (juxt :resource-name identity))
+             (into {}))
 
         property-collector
         (PropertyCollector. cc)
 
         require-replacements
-        (require-replacement-map state)
+        (require-replacement-map state sources)
 
         closure-opts
         (doto (make-options)
@@ -2059,14 +2122,6 @@
 
           (.setStrictModeInput false)
 
-          (.addCustomPass CustomPassExecutionTime/BEFORE_CHECKS
-            (NodeEnvInlinePass. cc (if (= :release mode)
-                                     "production"
-                                     "development")))
-
-          (.addCustomPass CustomPassExecutionTime/BEFORE_CHECKS
-            (NodeStuffInlinePass. cc))
-
           ;; google SourceMapResolver is broken since it always resolves source map files relative
           ;; from the input name not from its original path. since we always use the resource-name
           ;; as the input it can never find anything. can't use the full path as input as that
@@ -2081,15 +2136,40 @@
           (.setWarningLevel DiagnosticGroups/CHECK_USELESS_CODE CheckLevel/OFF)
           (.setNumParallelThreads (get-in state [:compiler-options :closure-threads] 1)))
 
+        ;; map the output of rewritten ESM back to the original source, same as add-input-source-maps
+        ;; the rewrite created the map from the AST it already had, so no need to parse anything again
+        _ (when (seq esm-mapped)
+            (.initOptions cc closure-opts)
+            (.setApplyInputSourceMaps closure-opts true)
+            (doseq [[resource-name {:keys [resource-id] :as src}] esm-mapped]
+              (->> (esm-input-source-map js-options src (get esm-rewritten resource-id))
+                   (closure-source-file (str resource-name ".map"))
+                   (SourceMapInput.)
+                   (.addInputSourceMap cc resource-name))))
+
         js-provider
         (get-in state [:js-options :js-provider])
 
+        ;; all npm preprocessing in one traversal instead of one each, in the order they used to run
+        preprocess-pass
+        (doto (CombinedPass. cc)
+          (.add (NodeEnvInlinePass. cc (if (= :release mode)
+                                         "production"
+                                         "development"))
+            (into-array Token [Token/GETPROP]))
+          (.add (NodeStuffInlinePass. cc)
+            (into-array Token [Token/NAME])))
+
         ;; classpath commonjs may still use require, npm packages are not processed by external
         ;; so for :external we want to keep them as is, so the bridge can provide them
         _ (when (not= :external js-provider)
-            (let [replace-require-pass
-                  (ReplaceRequirePass. cc require-replacements)]
-              (.addCustomPass closure-opts CustomPassExecutionTime/BEFORE_CHECKS replace-require-pass)))
+            (.add preprocess-pass
+              ;; sources are the inputs that missed the shadow-js cache in convert-sources-simple
+              ;; everything else in the compile, ie. the polyfills input, is left alone
+              (ReplaceRequirePass. cc require-replacements (into #{} (map :resource-name) sources))
+              (into-array Token [Token/CALL Token/DYNAMIC_IMPORT])))
+
+        _ (.addCustomPass closure-opts CustomPassExecutionTime/BEFORE_CHECKS preprocess-pass)
 
         ;; :js-provider :shadow uses this for es6 on the classpath
         ;; we want to collect the props only for :shadow not :closure
@@ -2162,8 +2242,12 @@
                       (when generate-source-map?
                         (let [sw (StringWriter.)]
                           ;; for sourcesContent
+                          ;; rewritten ESM maps to the original source, not to what closure got
                           (when (:source-map-include-sources-content co-opts)
-                            (.addSourceFile source-map (.getName source-file) (.getCode source-file)))
+                            (.addSourceFile source-map (.getName source-file)
+                              (if (contains? esm-mapped source-name)
+                                (npm/esm-source rc)
+                                (.getCode source-file))))
                           (.appendTo source-map sw output-name)
                           (.toString sw)))
 
@@ -0,0 +1,215 @@
+package shadow.build.closure;
+
+import com.google.javascript.jscomp.*;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.Token;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * runs multiple callbacks in one traversal instead of one full traversal per pass.
+ * <p>
+ * each callback is only called for the tokens it was added with, in the order they were added.
+ * shouldTraverse is still called for every node, a callback that returns false skips that subtree
+ * and doesn't get the visit for that node, same as if it ran on its own. the others still see it.
+ * <p>
+ * the result is the same as running the callbacks as separate passes, as long as they don't create
+ * nodes that a callback added before them would have matched. replacing the visited node is fine,
+ * callbacks after the one that replaced it are not called for the detached node anymore.
+ */
+public class CombinedPass implements CompilerPass, NodeTraversal.ScopedCallback {
+
+    private static class Visitor {
+        final NodeTraversal.Callback callback;
+        // set while shouldTraverse returned false for this node, until the traversal leaves it
+        Node skipUntil;
+
+        Visitor(NodeTraversal.Callback callback) {
+            this.callback = callback;
+        }
+    }
+
+    private final static Visitor[] NONE = new Visitor[0];
+
+    private final AbstractCompiler compiler;
+    private final List<Visitor> visitors = new ArrayList<>();
+    private final EnumMap<Token, Visitor[]> byToken = new EnumMap<>(Token.class);
+    private final List<Visitor> scoped = new ArrayList<>();
+
+    public CombinedPass(AbstractCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * @param tokens the node tokens callback.visit is called for
+     */
+    public CombinedPass add(NodeTraversal.Callback callback, Token... tokens) {
+        Visitor v = new Visitor(callback);
+        visitors.add(v);
+
+        if (callback instanceof NodeTraversal.ScopedCallback) {
+            scoped.add(v);
+        }
+
+        for (Token token : tokens) {
+            Visitor[] prev = byToken.getOrDefault(token, NONE);
+            Visitor[] next = Arrays.copyOf(prev, prev.length + 1);
+            next[prev.length] = v;
+            byToken.put(token, next);
+        }
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return visitors.isEmpty();
+    }
+
+    @Override
+    public boolean shouldTraverse(NodeTraversal t, Node node, Node parent) {
+        for (Visitor v : visitors) {
+            if (v.skipUntil == null && !v.callback.shouldTraverse(t, node, parent)) {
+                v.skipUntil = node;
+            }
+        }
+        // others may still want to see the children
+        return true;
+    }
+
+    @Override
+    public void visit(NodeTraversal t, Node node, Node parent) {
+        Visitor[] interested = byToken.get(node.getToken());
+        if (interested != null) {
+            for (Visitor v : interested) {
+                // node was replaced by a previous callback
+                if (node.getParent() != parent) {
+                    break;
+                }
+                if (v.skipUntil == null) {
+                    v.callback.visit(t, node, parent);
+                }
+            }
+        }
+
+        // done with the subtree they skipped
+        for (Visitor v : visitors) {
+            if (v.skipUntil == node) {
+                v.skipUntil = null;
+            }
+        }
+    }
+
+    @Override
+    public void enterScope(NodeTraversal t) {
+        for (Visitor v : scoped) {
+            if (v.skipUntil == null) {
+                ((NodeTraversal.ScopedCallback) v.callback).enterScope(t);
+            }
+        }
+    }
+
+    @Override
+    public void exitScope(NodeTraversal t) {
+        for (Visitor v : scoped) {
+            if (v.skipUntil == null) {
+                ((NodeTraversal.ScopedCallback) v.callback).exitScope(t);
+            }
+        }
+    }
+
+    @Override
+    public void process(Node externs, Node root) {
+        NodeTraversal.traverse(compiler, root, this);
+    }
+
+    // runs the npm preprocessing passes over all .js files in a directory, one traversal each vs combined
+    public static void main(String... args) throws Exception {
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(Paths.get(args[0]))) {
+            files = s.filter(p -> p.toString().endsWith(".js")).filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        List<SourceFile> sources = new ArrayList<>(files.size());
+        for (Path file : files) {
+            sources.add(SourceFile.fromCode(file.toString(), new String(Files.readAllBytes(file), StandardCharsets.UTF_8)));
+        }
+
+        CompilerOptions co = new CompilerOptions();
+        co.setLanguageIn(CompilerOptions.LanguageMode.UNSTABLE);
+        co.setLanguageOut(CompilerOptions.LanguageMode.NO_TRANSPILE);
+        co.setPrettyPrint(true);
+
+        for (int round = 0; round < 5; round++) {
+            Compiler separateCC = new Compiler();
+            separateCC.initOptions(co);
+            List<Node> separate = parse(separateCC, sources);
+
+            Compiler combinedCC = new Compiler();
+            combinedCC.initOptions(co);
+            List<Node> combined = parse(combinedCC, sources);
+
+            // every string require replaced by its own name, like require-replacement-map would
+            Map<String, Map<String, Object>> replacements = new HashMap<>();
+            for (Node script : separate) {
+                Map<String, Object> requires = new HashMap<>();
+                NodeTraversal.traverse(separateCC, script, new NodeTraversal.AbstractPostOrderCallback() {
+                    @Override
+                    public void visit(NodeTraversal t, Node n, Node parent) {
+                        if (NodeUtil.isCallTo(n, "require") && n.getSecondChild() != null && n.getSecondChild().isString()) {
+                            requires.put(n.getSecondChild().getString(), "module$" + n.getSecondChild().getString());
+                        }
+                    }
+                });
+                replacements.put(script.getSourceFileName(), requires);
+            }
+
+            long start = System.nanoTime();
+            NodeEnvInlinePass nodeEnv = new NodeEnvInlinePass(separateCC, "production");
+            NodeStuffInlinePass nodeStuff = new NodeStuffInlinePass(separateCC);
+            ReplaceRequirePass replaceRequire = new ReplaceRequirePass(separateCC, replacements);
+            for (Node script : separate) {
+                NodeTraversal.traverse(separateCC, script, nodeEnv);
+                NodeTraversal.traverse(separateCC, script, nodeStuff);
+                NodeTraversal.traverse(separateCC, script, replaceRequire);
+            }
+            long separateTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CombinedPass pass = new CombinedPass(combinedCC)
+                    .add(new NodeEnvInlinePass(combinedCC, "production"), Token.GETPROP)
+                    .add(new NodeStuffInlinePass(combinedCC), Token.NAME)
+                    .add(new ReplaceRequirePass(combinedCC, replacements), Token.CALL, Token.DYNAMIC_IMPORT);
+            for (Node script : combined) {
+                NodeTraversal.traverse(combinedCC, script, pass);
+            }
+            long combinedTime = System.nanoTime() - start;
+
+            int different = 0;
+            for (int i = 0; i < separate.size(); i++) {
+                if (!separateCC.toSource(separate.get(i)).equals(combinedCC.toSource(combined.get(i)))) {
+                    different++;
+                }
+            }
+
+            System.out.format("files:%d separate:%dms combined:%dms different:%d%n",
+                    sources.size(),
+                    separateTime / 1_000_000,
+                    combinedTime / 1_000_000,
+                    different);
+        }
+    }
+
+    private static List<Node> parse(Compiler cc, List<SourceFile> sources) {
+        List<Node> nodes = new ArrayList<>(sources.size());
+        for (SourceFile src : sources) {
+            nodes.add(new CompilerInput(src).getAstRoot(cc));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,206 @@
+package shadow.build.closure;
+
+import clojure.lang.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static shadow.build.closure.JsInspector.*;
+
+/**
+ * read-only map view of a JsInspector.FileInfo.
+ * <p>
+ * values are created on first access and are always regular persistent vectors and maps.
+ * anything that modifies the map or walks all entries turns it into a regular map first,
+ * so resources built from it can be cached and sent to workers like any other.
+ */
+final class FileInfoMap extends APersistentMap implements IObj {
+
+    private static final Keyword[] KEYS = new Keyword[]{
+            KW_REQUIRES,
+            KW_IMPORTS,
+            KW_DYNAMIC_IMPORTS,
+            KW_ESM,
+            KW_GOOG_PROVIDES,
+            KW_GOOG_REQUIRES,
+            KW_GOOG_REQUIRE_TYPES,
+            KW_GOOG_MODULE,
+            KW_GOOG_MODULE_LEGACY_NAMESPACE,
+            KW_INVALID_REQUIRES,
+            KW_LANGUAGE,
+            KW_STR_OFFSETS,
+            KW_USES_GLOBAL,
+            KW_USES_GLOBAL_BUFFER,
+            KW_USES_GLOBAL_PROCESS,
+            KW_ERRORS,
+            KW_WARNINGS
+    };
+
+    private static final Object NOT_CREATED = new Object();
+
+    private final FileInfo info;
+    // races only create equal values twice
+    private final Object[] vals = new Object[KEYS.length];
+    private IPersistentMap map;
+
+    FileInfoMap(FileInfo info) {
+        this.info = info;
+        Arrays.fill(vals, NOT_CREATED);
+    }
+
+    private static int indexOf(Object key) {
+        for (int i = 0; i < KEYS.length; i++) {
+            if (KEYS[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Object create(int idx) {
+        switch (idx) {
+            case 0:
+                return info.strings(FileInfo.REQUIRE);
+            case 1:
+                return info.strings(FileInfo.IMPORT);
+            case 2:
+                return info.strings(FileInfo.DYNAMIC_IMPORT);
+            case 3:
+                return info.esm;
+            case 4:
+                return info.strings(FileInfo.GOOG_PROVIDE);
+            case 5:
+                return info.strings(FileInfo.GOOG_REQUIRE);
+            case 6:
+                return info.strings(FileInfo.GOOG_REQUIRE_TYPE);
+            case 7:
+                return info.googModule;
+            case 8:
+                return info.googModuleLegacyNamespace;
+            case 9:
+                return info.invalidRequires();
+            case 10:
+                return info.language;
+            case 11:
+                return strOffsets(info);
+            case 12:
+                return info.usesGlobal;
+            case 13:
+                return info.usesGlobalBuffer;
+            case 14:
+                return info.usesGlobalProcess;
+            case 15:
+                return info.errors;
+            case 16:
+                return info.warnings;
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private Object val(int idx) {
+        Object val = vals[idx];
+        if (val == NOT_CREATED) {
+            val = create(idx);
+            vals[idx] = val;
+        }
+        return val;
+    }
+
+    private IPersistentMap materialize() {
+        IPersistentMap m = map;
+        if (m == null) {
+            ITransientMap t = PersistentHashMap.EMPTY.asTransient();
+            for (int i = 0; i < KEYS.length; i++) {
+                t = t.assoc(KEYS[i], val(i));
+            }
+            m = t.persistent();
+            map = m;
+        }
+        return m;
+    }
+
+    @Override
+    public Object valAt(Object key) {
+        return valAt(key, null);
+    }
+
+    @Override
+    public Object valAt(Object key, Object notFound) {
+        int idx = indexOf(key);
+        return idx == -1 ? notFound : val(idx);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) != -1;
+    }
+
+    @Override
+    public IMapEntry entryAt(Object key) {
+        int idx = indexOf(key);
+        return idx == -1 ? null : MapEntry.create(KEYS[idx], val(idx));
+    }
+
+    @Override
+    public int count() {
+        return KEYS.length;
+    }
+
+    @Override
+    public IPersistentMap assoc(Object key, Object val) {
+        return materialize().assoc(key, val);
+    }
+
+    @Override
+    public IPersistentMap assocEx(Object key, Object val) {
+        return materialize().assocEx(key, val);
+    }
+
+    @Override
+    public IPersistentMap without(Object key) {
+        return materialize().without(key);
+    }
+
+    @Override
+    public ISeq seq() {
+        return materialize().seq();
+    }
+
+    @Override
+    public Iterator iterator() {
+        return ((Iterable) materialize()).iterator();
+    }
+
+    @Override
+    public IPersistentCollection empty() {
+        return PersistentArrayMap.EMPTY;
+    }
+
+    @Override
+    public IPersistentMap meta() {
+        return null;
+    }
+
+    @Override
+    public IObj withMeta(IPersistentMap meta) {
+        return ((IObj) materialize()).withMeta(meta);
+    }
+
+    /**
+     * [{:string "foo" :offset 123 :import false} ...]
+     */
+    private static IPersistentVector strOffsets(FileInfo info) {
+        ITransientCollection strOffsets = PersistentVector.EMPTY.asTransient();
+        for (int i = 0; i < info.entryCount; i++) {
+            int flags = info.entryFlags[i];
+            if ((flags & FileInfo.STR_OFFSET) != 0) {
+                strOffsets = strOffsets.conj(RT.map(
+                        KW_STRING, info.strings[info.entryStrings[i]],
+                        KW_OFFSET, info.entryOffsets[i],
+                        KW_IMPORT, (flags & FileInfo.STR_OFFSET_IMPORT) != 0));
+            }
+        }
+        return (IPersistentVector) strOffsets.persistent();
+    }
+}
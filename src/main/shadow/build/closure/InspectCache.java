@@ -0,0 +1,312 @@
+package shadow.build.closure;
+
+import clojure.lang.*;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.SourceFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static shadow.build.closure.JsInspector.*;
+
+/**
+ * disk cache for JsInspector.getFileInfoMap results, so cold starts don't have to parse
+ * thousands of node_modules files again just to find their requires.
+ * <p>
+ * entries are addressed by the sha1 of the source plus everything that may change the result:
+ * the closure compiler jar, the parser language and the JsInspector classes themselves. so there is
+ * nothing to invalidate, changed files just end up with a different key. results with errors
+ * are never cached.
+ * <p>
+ * entries are stored in a small binary format instead of EDN since reading them back
+ * needs to be much cheaper than parsing the JS again.
+ */
+public class InspectCache {
+
+    private final static int MAGIC = 0x4A534943;
+    private final static int VERSION = 2;
+
+    private final Path dir;
+    private final byte[] salt;
+    private final SharedParser parser;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public InspectCache(Path dir, CompilerOptions co) throws IOException {
+        this.dir = dir;
+
+        MessageDigest md = sha1();
+        // closure doesn't expose its version, the jar name contains it
+        CodeSource closureSource = Compiler.class.getProtectionDomain().getCodeSource();
+        if (closureSource != null) {
+            md.update(String.valueOf(closureSource.getLocation()).getBytes(StandardCharsets.UTF_8));
+        }
+        md.update(String.valueOf(co.getLanguageIn()).getBytes(StandardCharsets.UTF_8));
+
+        // the inspector is shipped with shadow-cljs, any change to it must invalidate everything
+        for (Class<?> c : new Class[]{JsInspector.class, JsInspector.FileInfo.class, ParserHelper.class, SharedParser.class, InspectCache.class}) {
+            String resource = c.getName().substring(c.getPackageName().length() + 1) + ".class";
+            try (InputStream in = c.getResourceAsStream(resource)) {
+                if (in != null) {
+                    md.update(in.readAllBytes());
+                }
+            }
+        }
+
+        this.salt = md.digest();
+        // co is the same the compilers passed in were created with, no need to parse through them
+        this.parser = new SharedParser(co);
+    }
+
+    public InspectCache(File dir, CompilerOptions co) throws IOException {
+        this(dir.toPath(), co);
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    Path cacheFile(String source) {
+        MessageDigest md = sha1();
+        md.update(salt);
+        md.update(source.getBytes(StandardCharsets.UTF_8));
+        return cacheFile(md);
+    }
+
+    // same key as for the String of the source
+    Path cacheFile(MappedSource source) {
+        MessageDigest md = sha1();
+        md.update(salt);
+        source.digest(md);
+        return cacheFile(md);
+    }
+
+    private Path cacheFile(MessageDigest md) {
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        String key = sb.toString();
+
+        // split to avoid a single dir with 50k+ files
+        return dir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    /**
+     * same as JsInspector.getFileInfoMap, but only parses if the source was not inspected before
+     */
+    public IPersistentMap getFileInfoMap(Compiler cc, SourceFile srcFile) throws IOException {
+        Path file = cacheFile(srcFile.getCode());
+
+        IPersistentMap cached = read(file);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        return parseAndWrite(cc, srcFile, file);
+    }
+
+    /**
+     * same as above, but the String of the source is only created if the file actually needs parsing
+     *
+     * @param lexical try JsScanner before parsing. its results are not written, so the cache only
+     *                ever contains full results and can be shared with builds not using the scanner.
+     */
+    public IPersistentMap getFileInfoMap(Compiler cc, String name, MappedSource source, boolean lexical) throws IOException {
+        Path file = cacheFile(source);
+
+        IPersistentMap cached = read(file);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        misses.incrementAndGet();
+
+        if (lexical) {
+            FileInfo scanned = JsScanner.scan(source, parser.getFeatures());
+            if (scanned != null) {
+                return asMap(scanned);
+            }
+        }
+
+        return parseAndWrite(cc, SourceFile.fromCode(name, source.toString()), file);
+    }
+
+    private IPersistentMap parseAndWrite(Compiler cc, SourceFile srcFile, Path file) throws IOException {
+        // the traversal may report to the compiler instead of the map, must not lose those
+        int errorsBefore = cc.getErrorManager().getErrorCount();
+        FileInfo info = JsInspector.getFileInfo(cc, parser, srcFile);
+
+        if (info.errors.count() == 0 && cc.getErrorManager().getErrorCount() == errorsBefore) {
+            try {
+                write(file, info);
+            } catch (IOException e) {
+                // cache is optional, next run just parses again
+            }
+        }
+
+        return asMap(info);
+    }
+
+    static IPersistentMap read(Path file) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            String language = readString(in);
+
+            ITransientCollection warnings = PersistentVector.EMPTY.asTransient();
+            int numWarnings = in.readInt();
+            for (int i = 0; i < numWarnings; i++) {
+                warnings = warnings.conj(RT.map(
+                        ParserHelper.KW_MESSAGE, readString(in),
+                        ParserHelper.KW_LINE, in.readInt(),
+                        ParserHelper.KW_COLUMN, in.readInt()));
+            }
+
+            FileInfo info = new FileInfo(PersistentVector.EMPTY, (IPersistentVector) warnings.persistent(), language);
+
+            // strings first so entries can refer to them by index
+            int numStrings = in.readInt();
+            String[] strings = new String[numStrings];
+            for (int i = 0; i < numStrings; i++) {
+                strings[i] = readString(in);
+            }
+
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                int flags = in.readInt();
+                int string = in.readInt();
+                int offset = in.readInt();
+                if (string < 0 || string >= numStrings) {
+                    return null;
+                }
+                info.addEntry(flags, strings[string], offset);
+            }
+
+            int numInvalid = in.readInt();
+            for (int i = 0; i < numInvalid; i++) {
+                info.addInvalidRequire(in.readInt(), in.readInt());
+            }
+
+            info.googModule = in.readBoolean() ? readString(in) : null;
+            info.esm = in.readBoolean();
+            info.googModuleLegacyNamespace = in.readBoolean();
+            info.usesGlobal = in.readBoolean();
+            info.usesGlobalBuffer = in.readBoolean();
+            info.usesGlobalProcess = in.readBoolean();
+
+            return asMap(info);
+        } catch (IOException e) {
+            // truncated or otherwise corrupt, treated as miss and overwritten
+            return null;
+        }
+    }
+
+    static void write(Path file, FileInfo info) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            writeString(out, info.language);
+
+            IPersistentVector warnings = info.warnings;
+            out.writeInt(warnings.count());
+            for (int i = 0; i < warnings.count(); i++) {
+                IPersistentMap m = (IPersistentMap) warnings.nth(i);
+                writeString(out, String.valueOf(m.valAt(ParserHelper.KW_MESSAGE)));
+                out.writeInt(RT.intCast(m.valAt(ParserHelper.KW_LINE)));
+                out.writeInt(RT.intCast(m.valAt(ParserHelper.KW_COLUMN)));
+            }
+
+            out.writeInt(info.stringCount);
+            for (int i = 0; i < info.stringCount; i++) {
+                writeString(out, info.strings[i]);
+            }
+
+            out.writeInt(info.entryCount);
+            for (int i = 0; i < info.entryCount; i++) {
+                out.writeInt(info.entryFlags[i]);
+                out.writeInt(info.entryStrings[i]);
+                out.writeInt(info.entryOffsets[i]);
+            }
+
+            out.writeInt(info.invalidRequireCount);
+            for (int i = 0; i < info.invalidRequireCount * 2; i++) {
+                out.writeInt(info.invalidRequires[i]);
+            }
+
+            out.writeBoolean(info.googModule != null);
+            if (info.googModule != null) {
+                writeString(out, info.googModule);
+            }
+            out.writeBoolean(info.esm);
+            out.writeBoolean(info.googModuleLegacyNamespace);
+            out.writeBoolean(info.usesGlobal);
+            out.writeBoolean(info.usesGlobalBuffer);
+            out.writeBoolean(info.usesGlobalProcess);
+        }
+
+        Files.createDirectories(file.getParent());
+
+        // unique temp name since multiple builds or JVMs may write the same entry at the same time
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // writeUTF is limited to 64kb
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > in.available()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
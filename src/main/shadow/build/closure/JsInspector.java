@@ -12,6 +12,7 @@ import com.google.javascript.rhino.Token;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 
 /**
  * Created by thheller on 29/06/2017.
@@ -28,22 +29,47 @@ public class JsInspector {
     public static class FileInfo implements NodeTraversal.Callback {
         final IPersistentVector errors;
         final IPersistentVector warnings;
-        final FeatureSet features;
+        final String language;
 
         public FileInfo(IPersistentVector errors, IPersistentVector warnings, FeatureSet features) {
+            this(errors, warnings, features.version());
+        }
+
+        FileInfo(IPersistentVector errors, IPersistentVector warnings, String language) {
             this.errors = errors;
             this.warnings = warnings;
-            this.features = features;
+            this.language = language;
         }
 
-        ITransientCollection googRequires = PersistentVector.EMPTY.asTransient();
-        ITransientCollection googRequireTypes = PersistentVector.EMPTY.asTransient();
-        ITransientCollection googProvides = PersistentVector.EMPTY.asTransient();
-        ITransientCollection requires = PersistentVector.EMPTY.asTransient();
-        ITransientCollection invalidRequires = PersistentVector.EMPTY.asTransient();
-        ITransientCollection imports = PersistentVector.EMPTY.asTransient();
-        ITransientCollection dynamicImports = PersistentVector.EMPTY.asTransient();
-        ITransientCollection strOffsets = PersistentVector.EMPTY.asTransient();
+        // everything found is recorded as one entry in traversal order, the flags say which
+        // results it belongs to. FileInfoMap only turns them into vectors when asked.
+        static final int REQUIRE = 1;
+        static final int IMPORT = 2;
+        static final int DYNAMIC_IMPORT = 4;
+        static final int GOOG_REQUIRE = 8;
+        static final int GOOG_REQUIRE_TYPE = 16;
+        static final int GOOG_PROVIDE = 32;
+        static final int STR_OFFSET = 64;
+        static final int STR_OFFSET_IMPORT = 128;
+
+        // most files don't have anything, arrays are only allocated once needed
+        private static final int[] NO_INTS = new int[0];
+        private static final String[] NO_STRINGS = new String[0];
+
+        int entryCount = 0;
+        int[] entryFlags = NO_INTS;
+        int[] entryStrings = NO_INTS;
+        int[] entryOffsets = NO_INTS;
+
+        // bundled files tend to require the same few things over and over, each string is kept once
+        String[] strings = NO_STRINGS;
+        int stringCount = 0;
+        // open addressing, index into strings + 1, 0 is empty
+        private int[] stringSlots = NO_INTS;
+
+        // line, column pairs
+        int[] invalidRequires = NO_INTS;
+        int invalidRequireCount = 0;
 
         boolean esm = false;
         boolean usesGlobalBuffer = false;
@@ -53,6 +79,142 @@ public class JsInspector {
         String googModule = null;
         boolean googModuleLegacyNamespace = false;
 
+        private static int slot(String s, int mask) {
+            int h = s.hashCode();
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        int intern(String s) {
+            if (stringSlots.length == 0) {
+                strings = new String[8];
+                stringSlots = new int[16];
+            }
+
+            int mask = stringSlots.length - 1;
+            int slot = slot(s, mask);
+            for (int idx = stringSlots[slot]; idx != 0; idx = stringSlots[slot]) {
+                if (strings[idx - 1].equals(s)) {
+                    return idx - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (stringCount == strings.length) {
+                strings = Arrays.copyOf(strings, stringCount * 2);
+            }
+            strings[stringCount] = s;
+            stringSlots[slot] = ++stringCount;
+
+            // keep at most half full
+            if (stringCount * 2 > stringSlots.length) {
+                int[] slots = new int[stringSlots.length * 2];
+                int newMask = slots.length - 1;
+                for (int i = 0; i < stringCount; i++) {
+                    int n = slot(strings[i], newMask);
+                    while (slots[n] != 0) {
+                        n = (n + 1) & newMask;
+                    }
+                    slots[n] = i + 1;
+                }
+                stringSlots = slots;
+            }
+
+            return stringCount - 1;
+        }
+
+        void addEntry(int flags, String s, int offset) {
+            if (entryCount == entryFlags.length) {
+                int capacity = Math.max(8, entryCount * 2);
+                entryFlags = Arrays.copyOf(entryFlags, capacity);
+                entryStrings = Arrays.copyOf(entryStrings, capacity);
+                entryOffsets = Arrays.copyOf(entryOffsets, capacity);
+            }
+            entryFlags[entryCount] = flags;
+            entryStrings[entryCount] = intern(s);
+            entryOffsets[entryCount] = offset;
+            entryCount++;
+        }
+
+        public void recordStrOffset(Node x, boolean isImport) {
+            recordStrOffset(x.getString(), x.getSourceOffset(), isImport);
+        }
+
+        public void recordStrOffset(String s, int offset, boolean isImport) {
+            addEntry(isImport ? STR_OFFSET | STR_OFFSET_IMPORT : STR_OFFSET, s, offset);
+        }
+
+        void addRequire(String require, int offset) {
+            addEntry(REQUIRE | STR_OFFSET, require, offset);
+        }
+
+        void addInvalidRequire(int line, int column) {
+            if (invalidRequireCount * 2 == invalidRequires.length) {
+                invalidRequires = Arrays.copyOf(invalidRequires, Math.max(8, invalidRequires.length * 2));
+            }
+            invalidRequires[invalidRequireCount * 2] = line;
+            invalidRequires[invalidRequireCount * 2 + 1] = column;
+            invalidRequireCount++;
+        }
+
+        void addImport(String from, int offset) {
+            addEntry(IMPORT | STR_OFFSET | STR_OFFSET_IMPORT, from, offset);
+        }
+
+        void addDynamicImport(String x, int offset) {
+            addEntry(DYNAMIC_IMPORT | STR_OFFSET, x, offset);
+        }
+
+        void addGoogRequire(String x) {
+            addEntry(GOOG_REQUIRE, x, -1);
+        }
+
+        void addGoogRequireType(String x) {
+            addEntry(GOOG_REQUIRE_TYPE, x, -1);
+        }
+
+        void addGoogProvide(String x) {
+            addEntry(GOOG_PROVIDE, x, -1);
+        }
+
+        /**
+         * @return strings of all entries with the flag, in order
+         */
+        IPersistentVector strings(int flag) {
+            int n = 0;
+            for (int i = 0; i < entryCount; i++) {
+                if ((entryFlags[i] & flag) != 0) {
+                    n++;
+                }
+            }
+            if (n == 0) {
+                return PersistentVector.EMPTY;
+            }
+
+            Object[] arr = new Object[n];
+            n = 0;
+            for (int i = 0; i < entryCount; i++) {
+                if ((entryFlags[i] & flag) != 0) {
+                    arr[n++] = strings[entryStrings[i]];
+                }
+            }
+            return LazilyPersistentVector.createOwning(arr);
+        }
+
+        IPersistentVector invalidRequires() {
+            if (invalidRequireCount == 0) {
+                return PersistentVector.EMPTY;
+            }
+
+            Object[] arr = new Object[invalidRequireCount];
+            for (int i = 0; i < invalidRequireCount; i++) {
+                arr[i] = RT.map(
+                        KW_LINE, invalidRequires[i * 2],
+                        KW_COLUMN, invalidRequires[i * 2 + 1]
+                );
+            }
+            return LazilyPersistentVector.createOwning(arr);
+        }
+
         @Override
         public boolean shouldTraverse(NodeTraversal t, Node node, Node parent) {
             if (node.isFunction()) {
@@ -74,16 +236,6 @@ public class JsInspector {
             return true;
         }
 
-        public void recordStrOffset(Node x, boolean isImport) {
-            strOffsets = strOffsets.conj(
-                    RT.map(
-                            KW_STRING, x.getString(),
-                            KW_OFFSET, x.getSourceOffset(),
-                            KW_IMPORT, isImport
-                    )
-            );
-        }
-
         public static boolean isProcessEnvNode(Node node) {
             Node p = node.getParent();
             if (p != null && p.isGetProp()) {
@@ -110,39 +262,26 @@ public class JsInspector {
 
 
                 if (requireString.isString()) {
-                    String require = requireString.getString();
-                    requires = requires.conj(require);
-                    recordStrOffset(requireString, false);
+                    addRequire(requireString.getString(), requireString.getSourceOffset());
                 } else {
-                    invalidRequires = invalidRequires.conj(
-                            RT.map(
-                                    KW_LINE, node.getLineno(),
-                                    KW_COLUMN, node.getCharno()
-                            ));
+                    addInvalidRequire(node.getLineno(), node.getCharno());
                 }
             } else if (node.isImport() || (node.isExport() && node.hasTwoChildren())) {
                 Node importString = node.getLastChild();
-                String from = importString.getString();
-                imports = imports.conj(from);
-                recordStrOffset(importString, true);
+                addImport(importString.getString(), importString.getSourceOffset());
             } else if (node.getToken() == Token.DYNAMIC_IMPORT) {
                 Node arg = node.getFirstChild();
                 if (node.getChildCount() == 1 && arg.isStringLit()) {
-                    String x = arg.getString();
-                    dynamicImports = dynamicImports.conj(x);
-                    recordStrOffset(arg, false);
+                    addDynamicImport(arg.getString(), arg.getSourceOffset());
                 } else {
                     t.report(arg, TranspilationUtil.CANNOT_CONVERT_YET, "file uses import() with unsupported arguments and cannot be processed");
                 }
             } else if (NodeUtil.isCallTo(node, "goog.require")) {
-                String x = node.getLastChild().getString();
-                googRequires = googRequires.conj(x);
+                addGoogRequire(node.getLastChild().getString());
             } else if (NodeUtil.isCallTo(node, "goog.requireType")) {
-                String x = node.getLastChild().getString();
-                googRequireTypes = googRequireTypes.conj(x);
+                addGoogRequireType(node.getLastChild().getString());
             } else if (NodeUtil.isCallTo(node, "goog.provide")) {
-                String x = node.getLastChild().getString();
-                googProvides = googProvides.conj(x);
+                addGoogProvide(node.getLastChild().getString());
             } else if (NodeUtil.isCallTo(node, "goog.module")) {
                 googModule = node.getLastChild().getString();
             } else if (NodeUtil.isCallTo(node, "goog.module.declareLegacyNamespace")) {
@@ -180,7 +319,14 @@ public class JsInspector {
     public static final Keyword KW_USES_GLOBAL_PROCESS = RT.keyword(NS, "uses-global-process");
 
     public static FileInfo getFileInfo(Compiler cc, SourceFile srcFile) throws IOException {
-        ParserHelper result = ParserHelper.parse(cc, srcFile);
+        return getFileInfo(cc, null, srcFile);
+    }
+
+    /**
+     * @param parser may be null to parse with the config of cc, which is still used for the traversal
+     */
+    public static FileInfo getFileInfo(Compiler cc, SharedParser parser, SourceFile srcFile) throws IOException {
+        ParserHelper result = parser != null ? parser.parse(srcFile) : ParserHelper.parse(cc, srcFile);
 
         FileInfo fileInfo = new FileInfo(result.errors, result.warnings, result.features);
 
@@ -198,28 +344,31 @@ public class JsInspector {
         return asMap(fileInfo);
     }
 
-    public static IPersistentMap asMap(FileInfo fileInfo) {
-        IPersistentMap map = RT.map(
-                KW_REQUIRES, fileInfo.requires.persistent(),
-                KW_IMPORTS, fileInfo.imports.persistent(),
-                KW_DYNAMIC_IMPORTS, fileInfo.dynamicImports.persistent(),
-                KW_ESM, fileInfo.esm,
-                KW_GOOG_PROVIDES, fileInfo.googProvides.persistent(),
-                KW_GOOG_REQUIRES, fileInfo.googRequires.persistent(),
-                KW_GOOG_REQUIRE_TYPES, fileInfo.googRequireTypes.persistent(),
-                KW_GOOG_MODULE, fileInfo.googModule,
-                KW_GOOG_MODULE_LEGACY_NAMESPACE, fileInfo.googModuleLegacyNamespace,
-                KW_INVALID_REQUIRES, fileInfo.invalidRequires.persistent(),
-                KW_LANGUAGE, fileInfo.features.version(),
-                KW_STR_OFFSETS, fileInfo.strOffsets.persistent(),
-                KW_USES_GLOBAL, fileInfo.usesGlobal,
-                KW_USES_GLOBAL_BUFFER, fileInfo.usesGlobalBuffer,
-                KW_USES_GLOBAL_PROCESS, fileInfo.usesGlobalProcess,
-                KW_ERRORS, fileInfo.errors,
-                KW_WARNINGS, fileInfo.warnings
-        );
+    public static IPersistentMap getFileInfoMap(Compiler cc, SharedParser parser, SourceFile srcFile) throws IOException {
+        FileInfo fileInfo = getFileInfo(cc, parser, srcFile);
 
-        return map;
+        return asMap(fileInfo);
+    }
+
+    /**
+     * same as getFileInfoMap but tries JsScanner first, only parses when the scan can't decide.
+     * the result never has errors or warnings unless the file ended up being parsed. the String
+     * of the source is only created for parsing.
+     */
+    public static IPersistentMap getFileInfoMapLexical(Compiler cc, SharedParser parser, String name, MappedSource source) throws IOException {
+        FileInfo fileInfo = JsScanner.scan(source, parser.getFeatures());
+        if (fileInfo == null) {
+            fileInfo = getFileInfo(cc, parser, SourceFile.fromCode(name, source.toString()));
+        }
+
+        return asMap(fileInfo);
+    }
+
+    /**
+     * the map is a view over the FileInfo, values are only created when accessed
+     */
+    public static IPersistentMap asMap(FileInfo fileInfo) {
+        return new FileInfoMap(fileInfo);
     }
 
 
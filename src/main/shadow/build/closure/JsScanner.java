@@ -0,0 +1,1161 @@
+package shadow.build.closure;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.SourceFile;
+import com.google.javascript.jscomp.parsing.parser.FeatureSet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * finds the same things JsInspector.FileInfo does by only tokenizing the source, no AST.
+ * <p>
+ * the tokenizer knows just enough JS to not get confused by strings, comments, templates and regexps.
+ * everything the AST based traversal would treat differently than a plain token match is not guessed,
+ * instead scan returns null and the file must be parsed properly. that covers things like locally
+ * declared Buffer/process/global, functions taking a require param, require calls with nested
+ * requires or escaped strings and / after } which may be either a regexp or a division.
+ * <p>
+ * the scan cannot report syntax errors or parser warnings, so it is only useful for code that is
+ * known to parse, ie. node_modules.
+ */
+final class JsScanner {
+
+    // token types, punctuation uses the char itself
+    static final int IDENT = 1;
+    static final int STRING = 2;
+    // string containing escapes, value would need cooking
+    static final int STRING_ESC = 3;
+    static final int NUMBER = 4;
+    // complete template or the part after the last ${}
+    static final int TEMPLATE = 5;
+    // template part ending in ${
+    static final int TEMPLATE_HEAD = 6;
+    static final int REGEXP = 7;
+
+    static final int ARROW = 256; // =>
+    static final int OPT_CHAIN = 257; // ?.
+    static final int ELLIPSIS = 258; // ...
+    static final int INC_DEC = 259; // ++ --
+    static final int OTHER_OP = 260; // everything else with more than one char
+
+    // frame flags
+    private static final int PARAMS = 1;
+    private static final int PATTERN = 2;
+    private static final int VAR_DECL = 4;
+    private static final int CLASS_BODY = 8;
+
+    private static final class Fallback extends Exception {
+        Fallback() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Fallback FALLBACK = new Fallback();
+
+    private final CharSequence code;
+    private final int length;
+
+    private int count = 0;
+    private int[] types;
+    private int[] starts;
+    private int[] ends;
+    // index of the matching close token for ( [ {
+    private int[] matches;
+
+    private JsScanner(CharSequence code) {
+        this.code = code;
+        this.length = code.length();
+
+        // roughly one token per 5 chars for regular code, minified code has more
+        int capacity = Math.max(16, length / 4);
+        this.types = new int[capacity];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+        this.matches = new int[capacity];
+    }
+
+    /**
+     * @return null if the code contains anything that needs the real parser to decide
+     */
+    static JsInspector.FileInfo scan(CharSequence code, FeatureSet features) {
+        JsScanner scanner = new JsScanner(code);
+        JsInspector.FileInfo info = new JsInspector.FileInfo(PersistentVector.EMPTY, PersistentVector.EMPTY, features);
+        try {
+            scanner.tokenize();
+            scanner.analyze(info);
+        } catch (Fallback e) {
+            return null;
+        }
+        return info;
+    }
+
+    // tokenizer
+
+    private void add(int type, int start, int end) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            matches = Arrays.copyOf(matches, capacity);
+        }
+        types[count] = type;
+        starts[count] = start;
+        ends[count] = end;
+        matches[count] = -1;
+        count++;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isIdentStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '$' || c == '_'
+                || (c > 127 && Character.isUnicodeIdentifierStart(c));
+    }
+
+    private static boolean isIdentPart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '$' || c == '_'
+                || (c > 127 && (Character.isUnicodeIdentifierPart(c) || c == '\u200C' || c == '\u200D'));
+    }
+
+    // open brackets as token index, -1 for ${ in templates
+    private int[] stack = new int[64];
+    private int depth = 0;
+
+    private void push(int idx) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = idx;
+    }
+
+    private void tokenize() throws Fallback {
+        int pos = 0;
+
+        // hashbang
+        if (length >= 2 && code.charAt(0) == '#' && code.charAt(1) == '!') {
+            while (pos < length && !isLineTerminator(code.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        while (pos < length) {
+            char c = code.charAt(pos);
+
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                pos++;
+                continue;
+            }
+
+            if (c == '/') {
+                char next = pos + 1 < length ? code.charAt(pos + 1) : 0;
+                if (next == '/') {
+                    pos += 2;
+                    while (pos < length && !isLineTerminator(code.charAt(pos))) {
+                        pos++;
+                    }
+                } else if (next == '*') {
+                    int end = pos + 2;
+                    while (end + 1 < length && !(code.charAt(end) == '*' && code.charAt(end + 1) == '/')) {
+                        end++;
+                    }
+                    if (end + 1 >= length) {
+                        throw FALLBACK;
+                    }
+                    pos = end + 2;
+                } else if (regexpAllowed()) {
+                    pos = readRegexp(pos);
+                } else if (next == '=') {
+                    pos = addOp(pos, 2);
+                } else {
+                    add('/', pos, pos + 1);
+                    pos++;
+                }
+                continue;
+            }
+
+            if (isIdentStart(c)) {
+                int start = pos++;
+                while (pos < length && isIdentPart(code.charAt(pos))) {
+                    pos++;
+                }
+                if (pos < length && code.charAt(pos) == '\\') {
+                    // unicode escaped identifier, could spell require
+                    throw FALLBACK;
+                }
+                add(IDENT, start, pos);
+                continue;
+            }
+
+            if (isDigit(c) || (c == '.' && pos + 1 < length && isDigit(code.charAt(pos + 1)))) {
+                pos = readNumber(pos);
+                continue;
+            }
+
+            switch (c) {
+                case '"':
+                case '\'':
+                    pos = readString(pos, c);
+                    continue;
+                case '`':
+                    pos = readTemplate(pos + 1, pos);
+                    continue;
+                case '(':
+                case '[':
+                case '{':
+                    push(count);
+                    add(c, pos, pos + 1);
+                    pos++;
+                    continue;
+                case ')':
+                case ']':
+                case '}': {
+                    if (depth == 0) {
+                        throw FALLBACK;
+                    }
+                    int open = stack[--depth];
+                    if (open == -1) {
+                        if (c != '}') {
+                            throw FALLBACK;
+                        }
+                        // end of ${}, continue the template
+                        pos = readTemplate(pos + 1, pos);
+                        continue;
+                    }
+                    int expected = types[open] == '(' ? ')' : types[open] == '[' ? ']' : '}';
+                    if (c != expected) {
+                        throw FALLBACK;
+                    }
+                    matches[open] = count;
+                    add(c, pos, pos + 1);
+                    pos++;
+                    continue;
+                }
+                case '#':
+                    // private names, never equal to any of the names we look for
+                    if (pos + 1 < length && isIdentStart(code.charAt(pos + 1))) {
+                        int start = pos++;
+                        while (pos < length && isIdentPart(code.charAt(pos))) {
+                            pos++;
+                        }
+                        add(IDENT, start, pos);
+                        continue;
+                    }
+                    throw FALLBACK;
+                case '\\':
+                    throw FALLBACK;
+            }
+
+            if (c > 127) {
+                if (Character.isWhitespace(c) || Character.isSpaceChar(c) || c == '\uFEFF') {
+                    pos++;
+                    continue;
+                }
+                throw FALLBACK;
+            }
+
+            pos = readPunctuator(pos, c);
+        }
+
+        if (depth != 0) {
+            throw FALLBACK;
+        }
+
+        // sentinel so lookahead past the end just sees a token that matches nothing
+        add(0, length, length);
+        count--;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private boolean isIdent(int idx, String name) {
+        return idx >= 0
+                && idx < count
+                && types[idx] == IDENT
+                && ends[idx] - starts[idx] == name.length()
+                && regionMatches(starts[idx], name);
+    }
+
+    private boolean regionMatches(int offset, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (code.charAt(offset + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regexpAllowed() throws Fallback {
+        if (count == 0) {
+            return true;
+        }
+
+        int prev = count - 1;
+        switch (types[prev]) {
+            case IDENT:
+                // a.return / x, keywords are allowed as property names
+                if (isPropertyName(prev)) {
+                    return false;
+                }
+                return isIdent(prev, "return")
+                        || isIdent(prev, "typeof")
+                        || isIdent(prev, "instanceof")
+                        || isIdent(prev, "in")
+                        || isIdent(prev, "new")
+                        || isIdent(prev, "delete")
+                        || isIdent(prev, "void")
+                        || isIdent(prev, "throw")
+                        || isIdent(prev, "case")
+                        || isIdent(prev, "do")
+                        || isIdent(prev, "else")
+                        || isIdent(prev, "yield")
+                        || isIdent(prev, "await");
+            case STRING:
+            case STRING_ESC:
+            case NUMBER:
+            case TEMPLATE:
+            case REGEXP:
+            case ']':
+            case INC_DEC:
+                return false;
+            case ')': {
+                // if (x) /foo/.test(y)
+                int open = findOpen(prev);
+                // a.if(x) / y is a method call
+                if (isPropertyName(open - 1)) {
+                    return false;
+                }
+                return isIdent(open - 1, "if")
+                        || isIdent(open - 1, "while")
+                        || isIdent(open - 1, "for")
+                        || isIdent(open - 1, "with");
+            }
+            case '}':
+                // block end or object literal end, can't tell without parsing
+                throw FALLBACK;
+            default:
+                return true;
+        }
+    }
+
+    private boolean isPropertyName(int idx) {
+        return idx > 0
+                && types[idx] == IDENT
+                && (types[idx - 1] == '.' || types[idx - 1] == OPT_CHAIN);
+    }
+
+    private int findOpen(int close) {
+        // only called for the few ) before a /, no need to keep a reverse index
+        for (int i = close - 1; i >= 0; i--) {
+            if (matches[i] == close) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int readRegexp(int start) throws Fallback {
+        int pos = start + 1;
+        boolean inClass = false;
+        while (true) {
+            if (pos >= length) {
+                throw FALLBACK;
+            }
+            char c = code.charAt(pos);
+            if (isLineTerminator(c)) {
+                throw FALLBACK;
+            } else if (c == '\\') {
+                pos += 2;
+                continue;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if (c == '/' && !inClass) {
+                pos++;
+                break;
+            }
+            pos++;
+        }
+
+        // flags
+        while (pos < length && isIdentPart(code.charAt(pos))) {
+            pos++;
+        }
+
+        add(REGEXP, start, pos);
+        return pos;
+    }
+
+    private int readNumber(int start) {
+        int pos = start;
+        boolean dot = false;
+        boolean hex = code.charAt(pos) == '0' && pos + 1 < length && "xXbBoO".indexOf(code.charAt(pos + 1)) != -1;
+
+        while (pos < length) {
+            char c = code.charAt(pos);
+            if (isIdentPart(c)) {
+                pos++;
+            } else if (c == '.' && !dot && !hex) {
+                dot = true;
+                pos++;
+            } else if ((c == '+' || c == '-') && !hex && (code.charAt(pos - 1) == 'e' || code.charAt(pos - 1) == 'E')) {
+                pos++;
+            } else {
+                break;
+            }
+        }
+
+        add(NUMBER, start, pos);
+        return pos;
+    }
+
+    private int readString(int start, char quote) throws Fallback {
+        int pos = start + 1;
+        int type = STRING;
+        while (true) {
+            if (pos >= length) {
+                throw FALLBACK;
+            }
+            char c = code.charAt(pos);
+            if (c == quote) {
+                pos++;
+                break;
+            } else if (c == '\\') {
+                type = STRING_ESC;
+                // skips escaped quotes and line continuations, \r\n continuation is irrelevant
+                // since the \n alone can't end a string
+                pos += 2;
+            } else if (c == '\n' || c == '\r') {
+                throw FALLBACK;
+            } else {
+                pos++;
+            }
+        }
+
+        add(type, start, pos);
+        return pos;
+    }
+
+    // start is the ` or } that started this part
+    private int readTemplate(int pos, int start) throws Fallback {
+        while (true) {
+            if (pos >= length) {
+                throw FALLBACK;
+            }
+            char c = code.charAt(pos);
+            if (c == '`') {
+                pos++;
+                add(TEMPLATE, start, pos);
+                return pos;
+            } else if (c == '\\') {
+                pos += 2;
+            } else if (c == '$' && pos + 1 < length && code.charAt(pos + 1) == '{') {
+                pos += 2;
+                add(TEMPLATE_HEAD, start, pos);
+                push(-1);
+                return pos;
+            } else {
+                pos++;
+            }
+        }
+    }
+
+    private int readPunctuator(int pos, char c) {
+        char c1 = pos + 1 < length ? code.charAt(pos + 1) : 0;
+        char c2 = pos + 2 < length ? code.charAt(pos + 2) : 0;
+
+        switch (c) {
+            case '.':
+                if (c1 == '.' && c2 == '.') {
+                    add(ELLIPSIS, pos, pos + 3);
+                    return pos + 3;
+                }
+                break;
+            case '?':
+                // a?.5:1 is a conditional, not optional chaining
+                if (c1 == '.' && !isDigit(c2)) {
+                    add(OPT_CHAIN, pos, pos + 2);
+                    return pos + 2;
+                }
+                if (c1 == '?') {
+                    return addOp(pos, c2 == '=' ? 3 : 2);
+                }
+                break;
+            case '=':
+                if (c1 == '>') {
+                    add(ARROW, pos, pos + 2);
+                    return pos + 2;
+                }
+                if (c1 == '=') {
+                    return addOp(pos, c2 == '=' ? 3 : 2);
+                }
+                break;
+            case '+':
+            case '-':
+                if (c1 == c) {
+                    add(INC_DEC, pos, pos + 2);
+                    return pos + 2;
+                }
+                if (c1 == '=') {
+                    return addOp(pos, 2);
+                }
+                break;
+            case '!':
+                if (c1 == '=') {
+                    return addOp(pos, c2 == '=' ? 3 : 2);
+                }
+                break;
+            case '*':
+                if (c1 == '*') {
+                    return addOp(pos, c2 == '=' ? 3 : 2);
+                }
+                if (c1 == '=') {
+                    return addOp(pos, 2);
+                }
+                break;
+            case '&':
+            case '|':
+                if (c1 == c) {
+                    return addOp(pos, c2 == '=' ? 3 : 2);
+                }
+                if (c1 == '=') {
+                    return addOp(pos, 2);
+                }
+                break;
+            case '<':
+                if (c1 == '<') {
+                    return addOp(pos, c2 == '=' ? 3 : 2);
+                }
+                if (c1 == '=') {
+                    return addOp(pos, 2);
+                }
+                break;
+            case '>':
+                if (c1 == '>') {
+                    if (c2 == '>') {
+                        char c3 = pos + 3 < length ? code.charAt(pos + 3) : 0;
+                        return addOp(pos, c3 == '=' ? 4 : 3);
+                    }
+                    return addOp(pos, c2 == '=' ? 3 : 2);
+                }
+                if (c1 == '=') {
+                    return addOp(pos, 2);
+                }
+                break;
+            case '%':
+            case '^':
+                if (c1 == '=') {
+                    return addOp(pos, 2);
+                }
+                break;
+        }
+
+        add(c, pos, pos + 1);
+        return pos + 1;
+    }
+
+    private int addOp(int pos, int len) {
+        add(OTHER_OP, pos, pos + len);
+        return pos + len;
+    }
+
+    // analysis
+
+    private int type(int idx) {
+        return idx >= 0 && idx < count ? types[idx] : 0;
+    }
+
+    private String stringValue(int idx) {
+        return code.subSequence(starts[idx] + 1, ends[idx] - 1).toString();
+    }
+
+    // the node positions closure would report, 1-based lines and 0-based columns
+    private int[] lineColumn(int offset) {
+        int line = 1;
+        int lineStart = 0;
+        for (int pos = 0; pos < offset; pos++) {
+            char c = code.charAt(pos);
+            if (c == '\r' && pos + 1 < length && code.charAt(pos + 1) == '\n') {
+                pos++;
+            }
+            if (isLineTerminator(c)) {
+                line++;
+                lineStart = pos + 1;
+            }
+        }
+        return new int[]{line, offset - lineStart};
+    }
+
+    private boolean isParamList(int open) {
+        int prev = open - 1;
+        if (isIdent(prev, "function") || (isIdent(prev, "catch") && type(prev - 1) == '}')) {
+            return true;
+        }
+        // function foo(, function* foo(, function* (
+        if (type(prev) == IDENT && (isIdent(prev - 1, "function") || (type(prev - 1) == '*' && isIdent(prev - 2, "function")))) {
+            return true;
+        }
+        if (type(prev) == '*' && isIdent(prev - 1, "function")) {
+            return true;
+        }
+
+        int after = type(matches[open] + 1);
+        if (after == ARROW) {
+            return true;
+        }
+
+        // method definitions, in classes and object literals
+        if (after == '{') {
+            int p = type(prev);
+            return p == ']'
+                    || p == STRING
+                    || p == NUMBER
+                    || (p == IDENT
+                    && !isIdent(prev, "if")
+                    && !isIdent(prev, "while")
+                    && !isIdent(prev, "for")
+                    && !isIdent(prev, "with")
+                    && !isIdent(prev, "switch"));
+        }
+
+        return false;
+    }
+
+    private boolean isPatternStart(int open, int parentFlags) {
+        int prev = open - 1;
+        return isIdent(prev, "var")
+                || isIdent(prev, "let")
+                || isIdent(prev, "const")
+                || isIdent(prev, "import")
+                || isIdent(prev, "export")
+                || (type(prev) == ',' && (parentFlags & VAR_DECL) != 0);
+    }
+
+    // results of reference
+    private static final int REF = 0;
+    private static final int KEY = 1;
+    private static final int TOP_LEVEL_DECL = 2;
+
+    private boolean newlineBefore(int idx) {
+        for (int pos = idx > 0 ? ends[idx - 1] : 0; pos < starts[idx]; pos++) {
+            if (isLineTerminator(code.charAt(pos))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * classifies the identifier at idx the way the traversal would see it. anything that may
+     * declare a local, other than plain top level declarations, needs scope information
+     * and fails the scan.
+     */
+    private int reference(int idx, int flags, int level) throws Fallback {
+        int prev = type(idx - 1);
+        int next = type(idx + 1);
+
+        if (next == ':') {
+            // object key or label
+            if (prev == '{' || prev == ',') {
+                return KEY;
+            }
+            // a ? b : c, case b:
+            if (prev != '?' && !isIdent(idx - 1, "case")) {
+                throw FALLBACK;
+            }
+        }
+
+        // member names, field initializers are just expressions
+        if ((flags & CLASS_BODY) != 0) {
+            if (prev == '{'
+                    || prev == '}'
+                    || prev == ';'
+                    || prev == '*'
+                    || isIdent(idx - 1, "get")
+                    || isIdent(idx - 1, "set")
+                    || isIdent(idx - 1, "static")
+                    || isIdent(idx - 1, "async")
+                    || newlineBefore(idx)) {
+                throw FALLBACK;
+            }
+        }
+
+        // bindings in params or destructuring, default values are just expressions
+        if ((flags & (PARAMS | PATTERN)) != 0) {
+            if ((prev == '(' || prev == '{' || prev == '[' || prev == ',' || prev == ELLIPSIS || prev == ':')
+                    && (next == ',' || next == ')' || next == '}' || next == ']' || next == '=' || isIdent(idx + 1, "as"))) {
+                throw FALLBACK;
+            }
+        }
+
+        if (prev == IDENT) {
+            if (isIdent(idx - 1, "var")
+                    || isIdent(idx - 1, "let")
+                    || isIdent(idx - 1, "const")
+                    || isIdent(idx - 1, "import")) {
+                if (level == 0) {
+                    return TOP_LEVEL_DECL;
+                }
+                throw FALLBACK;
+            }
+
+            if (isIdent(idx - 1, "function")
+                    || isIdent(idx - 1, "class")
+                    || isIdent(idx - 1, "export")
+                    || isIdent(idx - 1, "as")
+                    || isIdent(idx - 1, "get")
+                    || isIdent(idx - 1, "set")
+                    || isIdent(idx - 1, "static")
+                    || isIdent(idx - 1, "async")
+                    || isIdent(idx - 1, "break")
+                    || isIdent(idx - 1, "continue")) {
+                throw FALLBACK;
+            }
+        } else if (prev == '*') {
+            if (isIdent(idx - 2, "function")) {
+                throw FALLBACK;
+            }
+        } else if (prev == ',') {
+            if ((flags & VAR_DECL) != 0) {
+                throw FALLBACK;
+            }
+        }
+
+        // x => ...
+        if (next == ARROW) {
+            throw FALLBACK;
+        }
+        // method definitions
+        if (next == '(' && type(matches[idx + 1] + 1) == '{') {
+            throw FALLBACK;
+        }
+        return REF;
+    }
+
+    private void analyze(JsInspector.FileInfo info) throws Fallback {
+        // flags per open bracket, 0 is the top level
+        int[] flags = new int[64];
+        int level = 0;
+        // level of the last class keyword, its next { is the body
+        int pendingClass = -1;
+
+        // top level declarations are visible everywhere, hoisting included
+        boolean usesGlobal = false;
+        boolean usesBuffer = false;
+        boolean usesProcess = false;
+        boolean declaredGlobal = false;
+        boolean declaredBuffer = false;
+        boolean declaredProcess = false;
+
+        for (int i = 0; i < count; i++) {
+            int type = types[i];
+
+            switch (type) {
+                case '(':
+                case '[':
+                case '{': {
+                    int parent = flags[level];
+                    // default values in params and patterns are not worth telling apart from declarations
+                    int f = parent & (PARAMS | PATTERN);
+                    if (type == '(') {
+                        if (isParamList(i)) {
+                            f |= PARAMS;
+                        }
+                    } else if (isPatternStart(i, parent)) {
+                        f |= PATTERN;
+                    }
+                    if (type == '{' && pendingClass == level) {
+                        f |= CLASS_BODY;
+                        pendingClass = -1;
+                    }
+                    if (++level == flags.length) {
+                        flags = Arrays.copyOf(flags, level * 2);
+                    }
+                    flags[level] = f;
+                    continue;
+                }
+                case ')':
+                case ']':
+                case '}':
+                    level--;
+                    if (pendingClass > level) {
+                        pendingClass = -1;
+                    }
+                    continue;
+                case ';':
+                    flags[level] &= ~VAR_DECL;
+                    continue;
+                case IDENT:
+                    break;
+                default:
+                    continue;
+            }
+
+            // property names
+            int prev = type(i - 1);
+            if (prev == '.' || prev == OPT_CHAIN) {
+                continue;
+            }
+
+            // cheap check first, almost all identifiers are something else
+            switch (code.charAt(starts[i])) {
+                case 'v':
+                    if (isIdent(i, "var")) {
+                        flags[level] |= VAR_DECL;
+                    }
+                    break;
+                case 'l':
+                    if (isIdent(i, "let")) {
+                        flags[level] |= VAR_DECL;
+                    }
+                    break;
+                case 'c':
+                    if (isIdent(i, "const")) {
+                        flags[level] |= VAR_DECL;
+                    } else if (isIdent(i, "class")) {
+                        pendingClass = level;
+                    }
+                    break;
+                case 'r':
+                    if (isIdent(i, "require")) {
+                        require(info, i, flags[level], level);
+                    }
+                    break;
+                case 'i':
+                    if (isIdent(i, "import")) {
+                        if (importDecl(info, i, level)) {
+                            flags[level] |= VAR_DECL;
+                        }
+                    }
+                    break;
+                case 'e':
+                    if (isIdent(i, "export")) {
+                        exportDecl(info, i, level);
+                    }
+                    break;
+                case 'g':
+                    if (isIdent(i, "goog")) {
+                        goog(info, i);
+                    } else if (isIdent(i, "global")) {
+                        int ref = reference(i, flags[level], level);
+                        if (ref == REF) {
+                            usesGlobal = true;
+                        } else if (ref == TOP_LEVEL_DECL) {
+                            declaredGlobal = true;
+                        }
+                    }
+                    break;
+                case 'B':
+                    if (isIdent(i, "Buffer")) {
+                        int ref = reference(i, flags[level], level);
+                        if (ref == REF) {
+                            usesBuffer = true;
+                        } else if (ref == TOP_LEVEL_DECL) {
+                            declaredBuffer = true;
+                        }
+                    }
+                    break;
+                case 'p':
+                    if (isIdent(i, "process")) {
+                        int ref = reference(i, flags[level], level);
+                        if (ref == REF) {
+                            // same as FileInfo.isProcessEnvNode
+                            boolean processEnv = type(i + 1) == '.'
+                                    && isIdent(i + 2, "env")
+                                    && type(i + 3) == '.'
+                                    && isIdent(i + 4, "NODE_ENV");
+                            usesProcess = usesProcess || !processEnv;
+                        } else if (ref == TOP_LEVEL_DECL) {
+                            declaredProcess = true;
+                        }
+                    }
+                    break;
+            }
+        }
+
+        info.usesGlobal = usesGlobal && !declaredGlobal;
+        info.usesGlobalBuffer = usesBuffer && !declaredBuffer;
+        info.usesGlobalProcess = usesProcess && !declaredProcess;
+    }
+
+    private void require(JsInspector.FileInfo info, int idx, int flags, int level) throws Fallback {
+        // function(require, module, exports) {} is not traversed at all and fails here,
+        // declaring it elsewhere doesn't matter since calls are found by name only
+        if (reference(idx, flags, level) == KEY) {
+            return;
+        }
+
+        // new require("foo") is not a call
+        if (isIdent(idx - 1, "new")) {
+            return;
+        }
+
+        int next = type(idx + 1);
+        if (next == '(') {
+            int close = matches[idx + 1];
+            int arg = idx + 2;
+
+            if (type(arg) == STRING && close == arg + 1) {
+                info.addRequire(stringValue(arg), starts[arg]);
+                return;
+            }
+
+            // require(), require((...)), require("a" , ...) and escaped strings
+            // would need the AST to be exact
+            if (close == arg
+                    || type(arg) == '('
+                    || type(arg) == STRING_ESC
+                    || (type(arg) == STRING && type(arg + 1) == ',')) {
+                throw FALLBACK;
+            }
+
+            // the traversal visits nested requires first
+            for (int i = arg; i < close; i++) {
+                if (isIdent(i, "require")) {
+                    throw FALLBACK;
+                }
+            }
+
+            int[] pos = lineColumn(starts[idx]);
+            info.addInvalidRequire(pos[0], pos[1]);
+        } else if (next == '.') {
+            if (isIdent(idx + 2, "ensure")) {
+                throw FALLBACK;
+            }
+        } else if (next == ')' && type(idx - 1) == '(') {
+            // (require)("foo") is still a call
+            throw FALLBACK;
+        }
+    }
+
+    /**
+     * @return true if this was an import declaration
+     */
+    private boolean importDecl(JsInspector.FileInfo info, int idx, int level) throws Fallback {
+        int next = type(idx + 1);
+        if (next == '(') {
+            int close = matches[idx + 1];
+            int arg = idx + 2;
+            if (type(arg) == STRING && close == arg + 1 && type(close + 1) != '{') {
+                info.addDynamicImport(stringValue(arg), starts[arg]);
+                return false;
+            }
+            // the traversal reports those as errors, import.meta and the rest need the parser too
+            throw FALLBACK;
+        }
+
+        if (level != 0) {
+            throw FALLBACK;
+        }
+
+        info.esm = true;
+
+        int i = idx + 1;
+        if (type(i) != STRING) {
+            // import x from, import x, * as y from, import x, { y } from
+            if (type(i) == IDENT) {
+                i++;
+                if (type(i) == ',') {
+                    i++;
+                } else if (!isIdent(i, "from")) {
+                    throw FALLBACK;
+                }
+            }
+            if (type(i) == '*') {
+                if (!isIdent(i + 1, "as") || type(i + 2) != IDENT) {
+                    throw FALLBACK;
+                }
+                i += 3;
+            } else if (type(i) == '{') {
+                i = matches[i] + 1;
+            }
+            if (!isIdent(i, "from")) {
+                throw FALLBACK;
+            }
+            i++;
+        }
+
+        importFrom(info, i);
+        return true;
+    }
+
+    private void exportDecl(JsInspector.FileInfo info, int idx, int level) throws Fallback {
+        if (level != 0) {
+            throw FALLBACK;
+        }
+
+        info.esm = true;
+
+        int next = type(idx + 1);
+        if (next == '*') {
+            // closure doesn't support export * as x from
+            if (!isIdent(idx + 2, "from")) {
+                throw FALLBACK;
+            }
+            importFrom(info, idx + 3);
+        } else if (next == '{') {
+            int after = matches[idx + 1] + 1;
+            if (isIdent(after, "from")) {
+                importFrom(info, after + 1);
+            }
+        } else if (next != IDENT) {
+            throw FALLBACK;
+        }
+    }
+
+    private void importFrom(JsInspector.FileInfo info, int idx) throws Fallback {
+        if (type(idx) != STRING) {
+            throw FALLBACK;
+        }
+        // import attributes
+        if (isIdent(idx + 1, "with") || isIdent(idx + 1, "assert")) {
+            throw FALLBACK;
+        }
+        info.addImport(stringValue(idx), starts[idx]);
+    }
+
+    private void goog(JsInspector.FileInfo info, int idx) throws Fallback {
+        if (type(idx + 1) != '.' || type(idx + 2) != IDENT) {
+            return;
+        }
+
+        int name = idx + 2;
+        if (isIdent(name, "module") && type(name + 1) == '.') {
+            if (isIdent(name + 2, "declareLegacyNamespace") && type(name + 3) == '(') {
+                info.googModuleLegacyNamespace = true;
+            }
+            return;
+        }
+
+        if (type(name + 1) != '('
+                || !(isIdent(name, "require")
+                || isIdent(name, "requireType")
+                || isIdent(name, "provide")
+                || isIdent(name, "module"))) {
+            return;
+        }
+
+        int arg = name + 2;
+        if (type(arg) != STRING || matches[name + 1] != arg + 1) {
+            throw FALLBACK;
+        }
+
+        String value = stringValue(arg);
+        if (isIdent(name, "require")) {
+            info.addGoogRequire(value);
+        } else if (isIdent(name, "requireType")) {
+            info.addGoogRequireType(value);
+        } else if (isIdent(name, "provide")) {
+            info.addGoogProvide(value);
+        } else {
+            info.googModule = value;
+        }
+    }
+
+    static boolean same(IPersistentMap a, IPersistentMap b) {
+        // scan doesn't know the features actually used or warnings
+        return a.without(JsInspector.KW_LANGUAGE).without(JsInspector.KW_WARNINGS)
+                .equiv(b.without(JsInspector.KW_LANGUAGE).without(JsInspector.KW_WARNINGS));
+    }
+
+    /**
+     * compares scan against the full parse for all .js files in a directory, ie. a node_modules folder
+     */
+    public static void main(String... args) throws IOException {
+        Path root = Paths.get(args.length > 0 ? args[0] : "node_modules");
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(root)) {
+            files = stream
+                    .filter(p -> p.getFileName().toString().endsWith(".js"))
+                    .filter(Files::isRegularFile)
+                    .collect(Collectors.toList());
+        }
+
+        List<String> sources = new ArrayList<>(files.size());
+        long bytes = 0;
+        for (Path file : files) {
+            String code = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            sources.add(code);
+            bytes += code.length();
+        }
+
+        Compiler cc = new Compiler();
+        CompilerOptions co = new CompilerOptions();
+        co.setLanguageIn(CompilerOptions.LanguageMode.ECMASCRIPT_NEXT);
+        cc.initOptions(co);
+        FeatureSet features = co.getLanguageIn().toFeatureSet();
+        SharedParser parser = new SharedParser(co);
+
+        System.out.format("files:%d chars:%d%n", files.size(), bytes);
+
+        for (int run = 0; run < 5; run++) {
+            List<IPersistentMap> parsed = new ArrayList<>(files.size());
+            long start = System.nanoTime();
+            for (int i = 0; i < files.size(); i++) {
+                parsed.add(JsInspector.getFileInfoMap(cc, SourceFile.fromCode(files.get(i).toString(), sources.get(i))));
+            }
+            long parseTime = System.nanoTime() - start;
+
+            List<JsInspector.FileInfo> scanned = new ArrayList<>(files.size());
+            start = System.nanoTime();
+            for (String code : sources) {
+                scanned.add(scan(code, features));
+            }
+            long scanTime = System.nanoTime() - start;
+
+            // what a build would actually spend, scan plus parsing whatever the scan gave up on
+            start = System.nanoTime();
+            for (int i = 0; i < files.size(); i++) {
+                try (MappedSource source = MappedSource.open(files.get(i))) {
+                    JsInspector.getFileInfoMapLexical(cc, parser, files.get(i).toString(), source);
+                }
+            }
+            long lexicalTime = System.nanoTime() - start;
+
+            int fallbacks = 0;
+            int mismatches = 0;
+            for (int i = 0; i < files.size(); i++) {
+                JsInspector.FileInfo info = scanned.get(i);
+                IPersistentMap expected = parsed.get(i);
+                if (info == null) {
+                    fallbacks++;
+                } else if (RT.count(expected.valAt(JsInspector.KW_ERRORS)) > 0) {
+                    // scan can't tell, not a mismatch since it is not meant for broken code
+                } else if (!same(JsInspector.asMap(info), expected)) {
+                    mismatches++;
+                    if (run == 0) {
+                        System.out.println("MISMATCH " + files.get(i));
+                        System.out.println("  parse: " + expected);
+                        System.out.println("  scan:  " + JsInspector.asMap(info));
+                    }
+                }
+            }
+
+            System.out.format("parse:%dms scan:%dms scan+fallback:%dms fallbacks:%d mismatches:%d%n",
+                    parseTime / 1_000_000,
+                    scanTime / 1_000_000,
+                    lexicalTime / 1_000_000,
+                    fallbacks,
+                    mismatches);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package shadow.build.closure;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * source file contents as a CharSequence without creating a String first.
+ * <p>
+ * almost all npm code is plain ASCII, in which case the chars are read straight from the mapped
+ * file. anything else is decoded once, the same way slurp would. the closure parser only accepts
+ * Strings, so this mostly helps JsScanner and everything that only needs the hash, the source
+ * itself can then be dropped and loaded again when it is actually compiled.
+ * <p>
+ * must be closed, which unmaps the file right away instead of waiting for GC. not thread safe,
+ * accessing chars after close throws.
+ */
+public final class MappedSource implements CharSequence, AutoCloseable {
+
+    // like ContentHash, small files are cheaper to read than to map
+    // and windows won't allow deleting a mapped file, so windows always reads
+    private final static long MAP_THRESHOLD = 64 * 1024;
+    private final static boolean CAN_MAP = !System.getProperty("os.name", "").toLowerCase().contains("windows");
+
+    private final static Method INVOKE_CLEANER;
+    private final static Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            // not available, mapped buffers are released by GC
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private ByteBuffer bytes;
+    private final boolean mapped;
+    private final int length;
+    // only set when the contents are not ASCII
+    private String decoded;
+
+    private MappedSource(ByteBuffer bytes, boolean mapped) {
+        this.bytes = bytes;
+        this.mapped = mapped;
+
+        if (isAscii(bytes)) {
+            this.length = bytes.limit();
+        } else {
+            this.decoded = StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+            this.length = decoded.length();
+        }
+    }
+
+    public static MappedSource open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file too large: " + file);
+            }
+
+            if (CAN_MAP && size > MAP_THRESHOLD) {
+                // the mapping stays valid after the channel is closed
+                return new MappedSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), true);
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && channel.read(buf) >= 0) {
+            }
+            buf.flip();
+            return new MappedSource(buf, false);
+        }
+    }
+
+    private static boolean isAscii(ByteBuffer buf) {
+        int limit = buf.limit();
+        int i = 0;
+
+        // 8 at a time, any byte with the high bit set is not ASCII
+        for (; i + 8 <= limit; i += 8) {
+            if ((buf.getLong(i) & 0x8080808080808080L) != 0) {
+                return false;
+            }
+        }
+        for (; i < limit; i++) {
+            if (buf.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer bytes() {
+        ByteBuffer buf = bytes;
+        if (buf == null) {
+            throw new IllegalStateException("source already closed");
+        }
+        return buf;
+    }
+
+    public boolean isAscii() {
+        return decoded == null;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (decoded != null) {
+            return decoded.charAt(index);
+        }
+        if (index < 0 || index >= length) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        return (char) bytes().get(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (decoded != null) {
+            return decoded.substring(start, end);
+        }
+        if (start < 0 || end > length || start > end) {
+            throw new StringIndexOutOfBoundsException("begin " + start + ", end " + end + ", length " + length);
+        }
+        byte[] chars = new byte[end - start];
+        bytes().get(start, chars);
+        // ASCII is a subset of latin1, so this is just a copy into a compact string
+        return new String(chars, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * the full contents as a new String, only needed when the contents go to the parser
+     */
+    @Override
+    public String toString() {
+        if (decoded != null) {
+            return decoded;
+        }
+        return (String) subSequence(0, length);
+    }
+
+    /**
+     * feeds the contents to md as UTF-8, without copying when the file is ASCII
+     */
+    void digest(MessageDigest md) {
+        if (decoded != null) {
+            md.update(decoded.getBytes(StandardCharsets.UTF_8));
+        } else {
+            md.update(bytes().duplicate());
+        }
+    }
+
+    /**
+     * same as data/sha1-string of the slurped source
+     */
+    public String sha1Hex() {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest(md);
+
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        ByteBuffer buf = bytes;
+        if (buf == null) {
+            return;
+        }
+        bytes = null;
+        decoded = null;
+
+        if (mapped && INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+            } catch (Exception e) {
+                // left to GC
+            }
+        }
+    }
+
+    // heap retained by keeping slurped sources around vs. keeping only the hash
+    public static void main(String... args) throws Exception {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> s = Files.walk(Paths.get(args[0]))) {
+            s.filter(p -> p.toString().endsWith(".js")).forEach(files::add);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            System.gc();
+            long before = usedHeap();
+            long start = System.nanoTime();
+
+            List<Object> retained = new ArrayList<>(files.size());
+            for (Path file : files) {
+                String source = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                retained.add(source);
+            }
+
+            long slurpTime = System.nanoTime() - start;
+            System.gc();
+            long slurpHeap = usedHeap() - before;
+            retained.clear();
+
+            System.gc();
+            before = usedHeap();
+            start = System.nanoTime();
+
+            int ascii = 0;
+            for (Path file : files) {
+                try (MappedSource source = open(file)) {
+                    if (source.isAscii()) {
+                        ascii++;
+                    }
+                    retained.add(source.sha1Hex());
+                }
+            }
+
+            long mappedTime = System.nanoTime() - start;
+            System.gc();
+            long mappedHeap = usedHeap() - before;
+
+            System.out.format("files: %d ascii: %d%n", files.size(), ascii);
+            System.out.format("slurp:  %6dms retained %8dkb%n", slurpTime / 1_000_000, slurpHeap / 1024);
+            System.out.format("mapped: %6dms retained %8dkb%n", mappedTime / 1_000_000, mappedHeap / 1024);
+            retained.clear();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
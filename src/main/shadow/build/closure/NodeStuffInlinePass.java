@@ -23,9 +23,11 @@ public class NodeStuffInlinePass extends NodeTraversal.AbstractPostOrderCallback
             switch (node.getString()) {
                 case "__filename":
                     node.replaceWith(IR.string("/" + t.getSourceName()));
+                    t.reportCodeChange();
                     break;
                 case "__dirname":
                     node.replaceWith(IR.string("/"));
+                    t.reportCodeChange();
                     break;
                 default:
                     break;
@@ -0,0 +1,199 @@
+package shadow.build.closure;
+
+import clojure.lang.IPersistentVector;
+import clojure.lang.ITransientCollection;
+import clojure.lang.PersistentVector;
+import com.google.javascript.jscomp.ShadowESModuleRewriter;
+import com.google.javascript.jscomp.ShadowESModuleRewriter.Rewritten;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * runs ShadowESModuleRewriter.rewrite over many sources at once using a fixed set of worker threads.
+ * <p>
+ * each worker reuses its compiler via ShadowESModuleRewriter, results are returned in input order
+ * and are the same as rewriting them one by one.
+ */
+public class ParallelESMRewriter implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final RewriteCache cache;
+
+    public ParallelESMRewriter(int threads) {
+        this(null, threads);
+    }
+
+    /**
+     * @param cache may be null
+     */
+    public ParallelESMRewriter(RewriteCache cache, int threads) {
+        this.cache = cache;
+
+        // same as ParallelInspector, idle workers go away on their own
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                Thread.ofPlatform()
+                        .daemon(true)
+                        .name("shadow.build.closure.ParallelESMRewriter-", 0)
+                        .factory());
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    public RewriteCache getCache() {
+        return cache;
+    }
+
+    /**
+     * same as ShadowESModuleRewriter.rewrite but uses the cache if there is one
+     */
+    public String rewrite(String source) {
+        if (cache != null) {
+            return cache.rewrite(source);
+        }
+        return ShadowESModuleRewriter.rewrite(source);
+    }
+
+    /**
+     * same as ShadowESModuleRewriter.rewriteWithSourceMap but uses the cache if there is one,
+     * the map always uses RewriteCache.SOURCE_MAP_NAME as the source name
+     */
+    public Rewritten rewriteWithSourceMap(String source) {
+        if (cache != null) {
+            return cache.rewriteWithSourceMap(source);
+        }
+        return ShadowESModuleRewriter.rewriteWithSourceMap(RewriteCache.SOURCE_MAP_NAME, source);
+    }
+
+    /**
+     * @return vector in the order of sources, each element either the rewritten source
+     * or the Throwable rewriting it failed with
+     */
+    public IPersistentVector rewrite(List<String> sources) throws InterruptedException {
+        List<Future<Object>> tasks = new ArrayList<>(sources.size());
+        for (String source : sources) {
+            tasks.add(executor.submit(() -> rewrite(source)));
+        }
+        return collect(tasks);
+    }
+
+    /**
+     * @return vector in the order of sources, each element either a Rewritten with source map
+     * or the Throwable rewriting it failed with
+     */
+    public IPersistentVector rewriteWithSourceMaps(List<String> sources) throws InterruptedException {
+        List<Future<Object>> tasks = new ArrayList<>(sources.size());
+        for (String source : sources) {
+            tasks.add(executor.submit(() -> rewriteWithSourceMap(source)));
+        }
+        return collect(tasks);
+    }
+
+    private static IPersistentVector collect(List<Future<Object>> tasks) throws InterruptedException {
+        ITransientCollection results = PersistentVector.EMPTY.asTransient();
+        try {
+            for (Future<Object> task : tasks) {
+                try {
+                    results = results.conj(task.get());
+                } catch (ExecutionException e) {
+                    results = results.conj(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Object> task : tasks) {
+                task.cancel(true);
+            }
+            throw e;
+        }
+
+        return (IPersistentVector) results.persistent();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // rewrites all ESM .js/.mjs files in a directory: new compiler per file vs reused vs parallel vs cached vs with source maps
+    public static void main(String... args) throws Exception {
+        List<String> sources = new ArrayList<>();
+        try (Stream<Path> s = Files.walk(Paths.get(args[0]))) {
+            for (Path file : s.filter(p -> p.toString().endsWith(".js") || p.toString().endsWith(".mjs")).filter(Files::isRegularFile).collect(Collectors.toList())) {
+                String source = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                if (source.contains("export ") || source.contains("import ")) {
+                    try {
+                        // skip what the rewriter can't handle anyways, would only compare exceptions
+                        ShadowESModuleRewriter.rewrite(ShadowESModuleRewriter.createCompiler(), source);
+                        sources.add(source);
+                    } catch (Exception e) {
+                    }
+                }
+            }
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path cacheDir = Files.createTempDirectory("shadow-esm-rewrite-cache");
+        try (ParallelESMRewriter rewriter = new ParallelESMRewriter(threads);
+             ParallelESMRewriter cached = new ParallelESMRewriter(new RewriteCache(cacheDir, 0), threads)) {
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                List<String> fresh = new ArrayList<>(sources.size());
+                for (String source : sources) {
+                    fresh.add(ShadowESModuleRewriter.rewrite(ShadowESModuleRewriter.createCompiler(), source));
+                }
+                long freshTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                List<String> reused = new ArrayList<>(sources.size());
+                for (String source : sources) {
+                    reused.add(ShadowESModuleRewriter.rewrite(source));
+                }
+                long reusedTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                IPersistentVector parallel = rewriter.rewrite(sources);
+                long parallelTime = System.nanoTime() - start;
+
+                // memory cache disabled, so this is what a restart would do after the first round
+                start = System.nanoTime();
+                IPersistentVector fromCache = cached.rewrite(sources);
+                long cachedTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                IPersistentVector withMaps = rewriter.rewriteWithSourceMaps(sources);
+                long mapsTime = System.nanoTime() - start;
+
+                int different = 0;
+                for (int i = 0; i < sources.size(); i++) {
+                    if (!fresh.get(i).equals(reused.get(i))
+                            || !fresh.get(i).equals(parallel.nth(i))
+                            || !fresh.get(i).equals(fromCache.nth(i))
+                            || !fresh.get(i).equals(((Rewritten) withMaps.nth(i)).code)) {
+                        different++;
+                    }
+                }
+
+                System.out.format("files:%d threads:%d fresh:%dms reused:%dms parallel:%dms disk-cache:%dms source-maps:%dms different:%d%n",
+                        sources.size(),
+                        threads,
+                        freshTime / 1_000_000,
+                        reusedTime / 1_000_000,
+                        parallelTime / 1_000_000,
+                        cachedTime / 1_000_000,
+                        mapsTime / 1_000_000,
+                        different);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package shadow.build.closure;
+
+import clojure.lang.*;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.SourceFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * runs JsInspector over many files at once using a fixed set of worker threads.
+ * <p>
+ * Compiler instances are not thread safe, so each worker creates its own via the factory
+ * on first use and keeps it for its lifetime. results are returned in input order regardless
+ * of which worker finished first.
+ */
+public class ParallelInspector implements AutoCloseable {
+
+    public static final Keyword KW_INFO = RT.keyword(null, "info");
+    public static final Keyword KW_SHA1 = RT.keyword(null, "sha1");
+    public static final Keyword KW_SOURCE = RT.keyword(null, "source");
+
+    private final ExecutorService executor;
+    private final ThreadLocal<Compiler> compilers;
+    private final SharedParser parser;
+    private final InspectCache cache;
+
+    private volatile boolean lexical = false;
+
+    /**
+     * @param cache may be null
+     */
+    public ParallelInspector(Supplier<Compiler> compilerFactory, InspectCache cache, int threads) {
+        this(compilerFactory, null, cache, threads);
+    }
+
+    /**
+     * @param parser may be null, otherwise used by all workers instead of the config of their compiler
+     * @param cache  may be null
+     */
+    public ParallelInspector(Supplier<Compiler> compilerFactory, SharedParser parser, InspectCache cache, int threads) {
+        this.compilers = ThreadLocal.withInitial(compilerFactory);
+        this.parser = parser;
+        this.cache = cache;
+
+        // builds may create and drop these without closing them, idle workers go away on their own
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                Thread.ofPlatform()
+                        .daemon(true)
+                        .name("shadow.build.closure.ParallelInspector-", 0)
+                        .factory());
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    /**
+     * use JsScanner where possible for inspectFiles, see JsInspector.getFileInfoMapLexical
+     */
+    public void setLexical(boolean lexical) {
+        this.lexical = lexical;
+    }
+
+    private IPersistentMap inspect(SourceFile srcFile) throws IOException {
+        Compiler cc = compilers.get();
+        if (cache != null) {
+            return cache.getFileInfoMap(cc, srcFile);
+        } else {
+            return JsInspector.getFileInfoMap(cc, parser, srcFile);
+        }
+    }
+
+    private IPersistentMap inspect(Path file, boolean keepSource) throws IOException {
+        Compiler cc = compilers.get();
+        String name = file.toAbsolutePath().toString();
+
+        try (MappedSource source = MappedSource.open(file)) {
+            IPersistentMap info;
+            if (cache != null) {
+                info = cache.getFileInfoMap(cc, name, source, lexical);
+            } else if (lexical && parser != null) {
+                info = JsInspector.getFileInfoMapLexical(cc, parser, name, source);
+            } else {
+                info = JsInspector.getFileInfoMap(cc, parser, SourceFile.fromCode(name, source.toString()));
+            }
+
+            IPersistentMap result = RT.map(KW_INFO, info, KW_SHA1, source.sha1Hex());
+            if (keepSource) {
+                result = result.assoc(KW_SOURCE, source.toString());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return vector in the order of files, each element either the JsInspector.getFileInfoMap
+     * result or the Throwable inspecting that file failed with
+     */
+    public IPersistentVector inspect(List<SourceFile> files) throws InterruptedException {
+        List<Future<IPersistentMap>> tasks = new ArrayList<>(files.size());
+        for (SourceFile srcFile : files) {
+            tasks.add(executor.submit(() -> inspect(srcFile)));
+        }
+
+        return collect(tasks);
+    }
+
+    /**
+     * same as above but reads the files via MappedSource, so sources are never all in memory at once
+     *
+     * @param keepSource false to only return the sha1 of the source, it must be loaded again when needed
+     * @return vector in the order of files, each element either a map of :info, :sha1 and
+     * maybe :source, or the Throwable inspecting that file failed with
+     */
+    public IPersistentVector inspectFiles(List<Path> files, boolean keepSource) throws InterruptedException {
+        List<Future<IPersistentMap>> tasks = new ArrayList<>(files.size());
+        for (Path file : files) {
+            tasks.add(executor.submit(() -> inspect(file, keepSource)));
+        }
+
+        return collect(tasks);
+    }
+
+    private static IPersistentVector collect(List<Future<IPersistentMap>> tasks) throws InterruptedException {
+        ITransientCollection results = PersistentVector.EMPTY.asTransient();
+        try {
+            for (Future<IPersistentMap> task : tasks) {
+                try {
+                    results = results.conj(task.get());
+                } catch (ExecutionException e) {
+                    results = results.conj(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<IPersistentMap> task : tasks) {
+                task.cancel(true);
+            }
+            throw e;
+        }
+
+        return (IPersistentVector) results.persistent();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -2,58 +2,94 @@ package shadow.build.closure;
 
 import clojure.lang.IPersistentVector;
 import clojure.lang.Keyword;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.PersistentVector;
 import clojure.lang.RT;
 import com.google.javascript.jscomp.AbstractCompiler;
 import com.google.javascript.jscomp.ShadowAccess;
 import com.google.javascript.jscomp.SourceFile;
+import com.google.javascript.jscomp.parsing.Config;
 import com.google.javascript.jscomp.parsing.ParserRunner;
 import com.google.javascript.jscomp.parsing.parser.FeatureSet;
 import com.google.javascript.rhino.ErrorReporter;
 import com.google.javascript.rhino.Node;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 public class ParserHelper implements ErrorReporter {
     public static final Keyword KW_LINE = RT.keyword(null, "line");
     public static final Keyword KW_COLUMN = RT.keyword(null, "column");
     public static final Keyword KW_MESSAGE = RT.keyword(null, "message");
 
-    public IPersistentVector warnings = RT.vector();
-    public IPersistentVector errors = RT.vector();
+    public IPersistentVector warnings = PersistentVector.EMPTY;
+    public IPersistentVector errors = PersistentVector.EMPTY;
     public Node ast;
     public FeatureSet features;
 
+    // collected as plain arrays while parsing, only turned into vectors once at the end
+    private Object[] pendingWarnings;
+    private int warningCount = 0;
+    private Object[] pendingErrors;
+    private int errorCount = 0;
+
     ParserHelper() {
     }
 
-    @Override
-    public void warning(String message, String sourceName, int line, int lineOffset) {
-        warnings = (IPersistentVector) warnings.assoc(warnings.length(), RT.map(
+    private static Object[] add(Object[] arr, int count, String message, int line, int lineOffset) {
+        if (arr == null) {
+            arr = new Object[4];
+        } else if (count == arr.length) {
+            arr = Arrays.copyOf(arr, count * 2);
+        }
+        arr[count] = RT.map(
                 KW_MESSAGE, message,
                 KW_LINE, line,
-                KW_COLUMN, lineOffset));
+                KW_COLUMN, lineOffset);
+        return arr;
+    }
+
+    private static IPersistentVector toVector(Object[] arr, int count) {
+        if (count == 0) {
+            return PersistentVector.EMPTY;
+        }
+        return LazilyPersistentVector.createOwning(count == arr.length ? arr : Arrays.copyOf(arr, count));
+    }
+
+    @Override
+    public void warning(String message, String sourceName, int line, int lineOffset) {
+        pendingWarnings = add(pendingWarnings, warningCount++, message, line, lineOffset);
     }
 
     @Override
     public void error(String message, String sourceName, int line, int lineOffset) {
-        errors = (IPersistentVector) errors.assoc(errors.length(), RT.map(
-                KW_MESSAGE, message,
-                KW_LINE, line,
-                KW_COLUMN, lineOffset));
+        pendingErrors = add(pendingErrors, errorCount++, message, line, lineOffset);
     }
 
     public static ParserHelper parse(AbstractCompiler cc, SourceFile srcFile) throws IOException {
+        return parse(ShadowAccess.getParserConfig(cc), srcFile);
+    }
+
+    /**
+     * parse without a Compiler, Config is immutable so the same instance may be used from any thread.
+     * see SharedParser.
+     */
+    public static ParserHelper parse(Config config, SourceFile srcFile) throws IOException {
         ParserHelper helper = new ParserHelper();
 
         ParserRunner.ParseResult result =
                 ParserRunner.parse(
                         srcFile,
                         srcFile.getCode(),
-                        ShadowAccess.getParserConfig(cc),
+                        config,
                         helper);
 
         helper.ast = result.ast;
         helper.features = result.features;
+        helper.warnings = toVector(helper.pendingWarnings, helper.warningCount);
+        helper.errors = toVector(helper.pendingErrors, helper.errorCount);
+        helper.pendingWarnings = null;
+        helper.pendingErrors = null;
 
         // FIXME: result.comments, result.sourceMapURL?
 
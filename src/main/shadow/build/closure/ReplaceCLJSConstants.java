@@ -8,6 +8,10 @@ import com.google.javascript.rhino.IR;
 import com.google.javascript.rhino.Node;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -18,14 +22,49 @@ public class ReplaceCLJSConstants implements CompilerPass, NodeTraversal.Callbac
     private final Compiler compiler;
     private final boolean shadowKeywords;
     private final Map<String, ConstantRef> constants = new HashMap<>();
+    // same refs by fqn, so finding one doesn't need to build the lookup string first
+    private final Map<String, ConstantRef> keywords = new HashMap<>();
+    private final Map<String, ConstantRef> symbols = new HashMap<>();
     private final IFn reportFn;
+    private final int threads;
+
+    // JSChunk.getIndex() -> JSChunk, to turn usedInBits back into chunks
+    private final ArrayList<JSChunk> chunksByIndex = new ArrayList<>();
 
     private int idSeq = 0;
 
+    // recorded when the CLJS was compiled, see setInputsWithoutConstants and addMungedNames
+    private Set<String> inputsWithoutConstants = Collections.emptySet();
+    private final Map<String, String> mungedNames = new HashMap<>();
+
     public ReplaceCLJSConstants(Compiler compiler, boolean shadowKeywords, IFn reportFn) {
+        this(compiler, shadowKeywords, reportFn, 1);
+    }
+
+    /**
+     * @param threads more than 1 searches inputs in parallel, the result is the same
+     */
+    public ReplaceCLJSConstants(Compiler compiler, boolean shadowKeywords, IFn reportFn, int threads) {
         this.compiler = compiler;
         this.shadowKeywords = shadowKeywords;
         this.reportFn = reportFn;
+        this.threads = threads;
+    }
+
+    /**
+     * inputs the CLJS compiler recorded as not containing any constants, cached with its output.
+     * those are skipped entirely, anything not covered is traversed as usual.
+     */
+    public void setInputsWithoutConstants(Collection<String> inputsWithoutConstants) {
+        this.inputsWithoutConstants = new HashSet<>(inputsWithoutConstants);
+    }
+
+    /**
+     * fqn to munged name as created by mungeConstant, recorded per namespace when the CLJS was compiled.
+     * called once per namespace before the pass runs, constants not covered are munged when found.
+     */
+    public void addMungedNames(Map<String, String> names) {
+        mungedNames.putAll(names);
     }
 
     @Override
@@ -36,41 +75,32 @@ public class ReplaceCLJSConstants implements CompilerPass, NodeTraversal.Callbac
 
         final long start = System.currentTimeMillis();
 
+        List<CompilerInput> inputs = new ArrayList<>();
         for (CompilerInput input : ShadowAccess.getInputsInOrder(compiler)) {
             // clj/cljs/cljc files only, clj because of self-host macros
-            if (input.getName().indexOf(".clj") != -1) {
-                NodeTraversal.traverse(compiler, input.getAstRoot(compiler), this);
+            if (input.getName().indexOf(".clj") != -1 && !inputsWithoutConstants.contains(input.getName())) {
+                inputs.add(input);
             }
         }
 
-        for (ConstantRef ref : constants.values()) {
-            JSChunk targetModule;
-            if (ref.usedIn.size() == 1) {
-                targetModule = ref.usedIn.iterator().next();
-            } else {
-                targetModule = ShadowAccess
-                        .getChunkGraph(compiler)
-                        .getDeepestCommonDependencyInclusive(ref.usedIn);
+        if (threads > 1 && inputs.size() > 1) {
+            replaceParallel(inputs);
+        } else {
+            for (CompilerInput input : inputs) {
+                NodeTraversal.traverse(compiler, input.getAstRoot(compiler), this);
             }
+        }
 
-            // System.out.format("Moving %s to %s (used in %d)\n", ref.fqn, targetModule.getName(), ref.usedIn.size());
-
-            Node target = null;
-
-            for (CompilerInput input : targetModule.getInputs()) {
-                if (input.getName().startsWith("shadow/cljs/constants/")) {
-                    target = compiler.getScriptNode(input.getName());
-                    break;
-                }
-            }
+        // most constants share their set of chunks with many others, e.g. everything only used
+        // in the base chunk, so the target is only resolved once per distinct set of chunks
+        Map<BitSet, Node> targetByUsedIn = new HashMap<>();
+        Map<JSChunk, Node> targetByChunk = new IdentityHashMap<>();
 
-            // sometimes the closure-compiler selects a shared module that isn't cljs
-            // and doesn't have the constants input to place things in
-            // in that case just append to cljs.core things that is guaranteed to be shared among all
-            // mostly affects :npm-module since it creates quite a few modules
-            // not a big deal if things get placed in cljs.core, closure might move it on its own again
+        for (ConstantRef ref : constants.values()) {
+            Node target = targetByUsedIn.get(ref.usedInBits);
             if (target == null) {
-                target = compiler.getScriptNode("cljs/core.cljs");
+                target = targetByChunk.computeIfAbsent(findTargetChunk(ref.usedInBits), this::findTargetNode);
+                targetByUsedIn.put(ref.usedInBits, target);
             }
 
             Node constantNode;
@@ -110,9 +140,102 @@ public class ReplaceCLJSConstants implements CompilerPass, NodeTraversal.Callbac
     }
 
 
+    private JSChunk findTargetChunk(BitSet usedIn) {
+        if (usedIn.cardinality() == 1) {
+            return chunksByIndex.get(usedIn.nextSetBit(0));
+        }
+
+        Set<JSChunk> chunks = new HashSet<>();
+        for (int i = usedIn.nextSetBit(0); i >= 0; i = usedIn.nextSetBit(i + 1)) {
+            chunks.add(chunksByIndex.get(i));
+        }
+
+        return ShadowAccess
+                .getChunkGraph(compiler)
+                .getDeepestCommonDependencyInclusive(chunks);
+    }
+
+    private Node findTargetNode(JSChunk targetModule) {
+        for (CompilerInput input : targetModule.getInputs()) {
+            if (input.getName().startsWith("shadow/cljs/constants/")) {
+                return compiler.getScriptNode(input.getName());
+            }
+        }
+
+        // sometimes the closure-compiler selects a shared module that isn't cljs
+        // and doesn't have the constants input to place things in
+        // in that case just append to cljs.core things that is guaranteed to be shared among all
+        // mostly affects :npm-module since it creates quite a few modules
+        // not a big deal if things get placed in cljs.core, closure might move it on its own again
+        return compiler.getScriptNode("cljs/core.cljs");
+    }
+
+    /**
+     * finding the constants is most of the work and each input can be searched on its own.
+     * the replacing is then done in input order, exactly like the traversal would, so the
+     * var names don't depend on which thread finished first.
+     */
+    private void replaceParallel(List<CompilerInput> inputs) {
+        List<Node> roots = new ArrayList<>(inputs.size());
+        for (CompilerInput input : inputs) {
+            // may parse, which isn't something to do concurrently
+            roots.add(input.getAstRoot(compiler));
+        }
+
+        // not using NodeTraversal here since that may touch compiler state
+        // only reading the AST from multiple threads is safe
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "shadow.build.closure.ReplaceCLJSConstants");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<List<Node>>> found = new ArrayList<>(roots.size());
+            for (Node root : roots) {
+                found.add(executor.submit(() -> {
+                    List<Node> constants = new ArrayList<>();
+                    findConstants(root, constants);
+                    return constants;
+                }));
+            }
+
+            for (int i = 0; i < inputs.size(); i++) {
+                JSChunk chunk = inputs.get(i).getChunk();
+                for (Node n : found.get(i).get()) {
+                    replaceConstant(chunk, n, n.getParent(), constantType(n) == KEYWORD);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while replacing constants", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("failed to find constants", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // same order as the post order NodeTraversal
+    private static void findConstants(Node n, List<Node> constants) {
+        for (Node child = n.getFirstChild(); child != null; child = child.getNext()) {
+            findConstants(child, constants);
+        }
+        if (constantType(n) != NONE) {
+            constants.add(n);
+        }
+    }
+
     public String munge(String sym) {
+        return mungeConstant(sym);
+    }
+
+    /**
+     * the part of the constant var name derived from its fqn
+     */
+    public static String mungeConstant(String fqn) {
         // munge doesn't replace dots
-        return clojure.lang.Compiler.munge(sym).replaceAll("\\.", "_DOT_");
+        return clojure.lang.Compiler.munge(fqn).replace(".", "_DOT_");
     }
 
     @Override
@@ -121,53 +244,99 @@ public class ReplaceCLJSConstants implements CompilerPass, NodeTraversal.Callbac
     }
 
     public void visit(NodeTraversal t, Node n, Node parent) {
+        int type = constantType(n);
+        if (type != NONE) {
+            replaceConstant(t.getChunk(), n, parent, type == KEYWORD);
+        }
+    }
+
+    private static final int NONE = 0;
+    private static final int KEYWORD = 1;
+    private static final int SYMBOL = 2;
+
+    /**
+     * @return KEYWORD or SYMBOL if n creates a constant that can be replaced, NONE otherwise
+     */
+    private static int constantType(Node n) {
         // new cljs.core.Keyword(ns, name, fqn, hash);
         // new cljs.core.Symbol(ns, name, fqn, hash, meta);
 
-        if (n.isNew()) {
-            int childCount = n.getChildCount();
-
-            // cljs.core.Keyword NOT new something()
-            // must check isGetProp, new something['whatever']() blows up getQualifiedName()
-            // getprop, ns, name, fqn, hash (keyword), 5 nodes
-            // getprop, ns, name, fqn, hash, meta (symbol), 6 nodes, if meta is not null don't replace the symbol
-            if (n.getFirstChild().isGetProp() && (childCount == 5 || (childCount == 6 && n.getChildAtIndex(5).isNull()))) {
-                String typeName = n.getFirstChild().getQualifiedName();
-
-                if (typeName.equals("cljs.core.Keyword") || typeName.equals("cljs.core.Symbol")) {
-                    final Node nsNode = n.getChildAtIndex(1);
-                    final Node nameNode = n.getChildAtIndex(2);
-                    final Node fqnNode = n.getChildAtIndex(3);
-                    final Node hashNode = n.getChildAtIndex(4);
-
-                    if ((nsNode.isString() || nsNode.isNull()) // ns may be null
-                            && nameNode.isString() // name is never null
-                            && fqnNode.isString() // fqn is never null
-                            && (hashNode.isNumber() || hashNode.isNeg())) { // hash is precomputed, number, can be negative number
-
-                        String fqn = fqnNode.getString();
-
-                        // this must never munge, otherwise it may end up with conflicts where = creates the same lookup as _EQ_
-                        String lookup = typeName + "$" + fqn;
-
-                        ConstantRef ref = constants.get(lookup);
-                        if (ref == null) {
-                            // appending the munged name to the variable to aid pseudo-names debugging
-                            // will be shortened by :advanced anyways, so size doesn't matter here, the idSeq makes it unique
-                            String varName = "cljs$cst$" + (idSeq++) + "$" + munge(fqn);
-                            ref = new ConstantRef(varName, typeName.equals("cljs.core.Keyword"), n, nsNode, nameNode, hashNode);
-                            constants.put(lookup, ref);
-                        }
-                        ref.usedIn.add(t.getChunk());
-                        // new versions use a bitset
-                        ref.usedInBits.set(t.getChunk().getIndex());
-
-                        n.replaceWith(IR.name(ref.varName));
-                        ShadowAccess.reportChangeToEnclosingScope(compiler, parent);
-                    }
-                }
+        if (!n.isNew()) {
+            return NONE;
+        }
+
+        int childCount = n.getChildCount();
+
+        // cljs.core.Keyword NOT new something()
+        // must check isGetProp, new something['whatever']() blows up getQualifiedName()
+        // getprop, ns, name, fqn, hash (keyword), 5 nodes
+        // getprop, ns, name, fqn, hash, meta (symbol), 6 nodes, if meta is not null don't replace the symbol
+        if (!n.getFirstChild().isGetProp() || !(childCount == 5 || (childCount == 6 && n.getChildAtIndex(5).isNull()))) {
+            return NONE;
+        }
+
+        // matching doesn't build the qualified name string
+        int type;
+        if (n.getFirstChild().matchesQualifiedName("cljs.core.Keyword")) {
+            type = KEYWORD;
+        } else if (n.getFirstChild().matchesQualifiedName("cljs.core.Symbol")) {
+            type = SYMBOL;
+        } else {
+            return NONE;
+        }
+
+        final Node nsNode = n.getChildAtIndex(1);
+        final Node nameNode = n.getChildAtIndex(2);
+        final Node fqnNode = n.getChildAtIndex(3);
+        final Node hashNode = n.getChildAtIndex(4);
+
+        if ((nsNode.isString() || nsNode.isNull()) // ns may be null
+                && nameNode.isString() // name is never null
+                && fqnNode.isString() // fqn is never null
+                && (hashNode.isNumber() || hashNode.isNeg())) { // hash is precomputed, number, can be negative number
+            return type;
+        }
+
+        return NONE;
+    }
+
+    private void replaceConstant(JSChunk chunk, Node n, Node parent, boolean keyword) {
+        final Node nsNode = n.getChildAtIndex(1);
+        final Node nameNode = n.getChildAtIndex(2);
+        final Node fqnNode = n.getChildAtIndex(3);
+        final Node hashNode = n.getChildAtIndex(4);
+
+        String fqn = fqnNode.getString();
+
+        Map<String, ConstantRef> refs = keyword ? keywords : symbols;
+        ConstantRef ref = refs.get(fqn);
+        if (ref == null) {
+            String munged = mungedNames.get(fqn);
+            if (munged == null) {
+                munged = mungeConstant(fqn);
             }
+
+            // appending the munged name to the variable to aid pseudo-names debugging
+            // will be shortened by :advanced anyways, so size doesn't matter here, the idSeq makes it unique
+            String varName = "cljs$cst$" + (idSeq++) + "$" + munged;
+            ref = new ConstantRef(varName, keyword, n, nsNode, nameNode, hashNode);
+            refs.put(fqn, ref);
+
+            // this must never munge, otherwise it may end up with conflicts where = creates the same lookup as _EQ_
+            // the order of this map decides the order constants are emitted in
+            String typeName = keyword ? "cljs.core.Keyword" : "cljs.core.Symbol";
+            constants.put(typeName + "$" + fqn, ref);
+        }
+
+        int index = chunk.getIndex();
+        while (chunksByIndex.size() <= index) {
+            chunksByIndex.add(null);
         }
+        chunksByIndex.set(index, chunk);
+        ref.usedInBits.set(index);
+
+        n.replaceWith(IR.name(ref.varName));
+        ShadowAccess.reportChangeToEnclosingScope(compiler, parent);
     }
 
     public class ConstantRef {
@@ -177,7 +346,6 @@ public class ReplaceCLJSConstants implements CompilerPass, NodeTraversal.Callbac
         final Node nsNode;
         final Node nameNode;
         final Node hashNode;
-        Set<JSChunk> usedIn;
         BitSet usedInBits;
 
         public ConstantRef(String varName, boolean keyword, Node node, Node nsNode, Node nameNode, Node hashNode) {
@@ -187,7 +355,6 @@ public class ReplaceCLJSConstants implements CompilerPass, NodeTraversal.Callbac
             this.nsNode = nsNode;
             this.nameNode = nameNode;
             this.hashNode = hashNode;
-            this.usedIn = new HashSet<>();
             this.usedInBits = new BitSet();
         }
     }
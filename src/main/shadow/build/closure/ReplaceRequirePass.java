@@ -7,14 +7,50 @@ import com.google.javascript.rhino.Token;
 
 import java.util.*;
 
-public class ReplaceRequirePass extends NodeTraversal.AbstractPostOrderCallback implements CompilerPass {
+public class ReplaceRequirePass implements NodeTraversal.Callback, CompilerPass {
 
     private final AbstractCompiler compiler;
     private final Map<String, Map<String, Object>> replacements;
+    // null to process all inputs
+    private final Set<String> sourceNames;
+
+    // replacements of the script currently traversed
+    private Map<String, Object> requires;
 
     public ReplaceRequirePass(AbstractCompiler compiler, Map<String, Map<String, Object>> replacements) {
+        this(compiler, replacements, null);
+    }
+
+    /**
+     * only processes the inputs with the given names, all others are left untouched
+     * so incremental compiles don't have to walk everything
+     *
+     * @param sourceNames null to process all inputs
+     */
+    public ReplaceRequirePass(AbstractCompiler compiler, Map<String, Map<String, Object>> replacements, Collection<String> sourceNames) {
         this.compiler = compiler;
-        this.replacements = replacements;
+        this.sourceNames = sourceNames == null ? null : new HashSet<>(sourceNames);
+
+        // one lookup per script instead of one per require call, into a plain HashMap
+        // instead of the persistent map from CLJS
+        this.replacements = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> e : replacements.entrySet()) {
+            if (e.getValue() != null && (this.sourceNames == null || this.sourceNames.contains(e.getKey()))) {
+                this.replacements.put(e.getKey(), new HashMap<>(e.getValue()));
+            }
+        }
+    }
+
+    @Override
+    public boolean shouldTraverse(NodeTraversal t, Node node, Node parent) {
+        if (node.isScript()) {
+            String sfn = node.getSourceFileName();
+            if (sourceNames != null && !sourceNames.contains(sfn)) {
+                return false;
+            }
+            requires = sfn == null ? null : replacements.get(sfn);
+        }
+        return true;
     }
 
     @Override
@@ -37,31 +73,24 @@ public class ReplaceRequirePass extends NodeTraversal.AbstractPostOrderCallback
                     // so it is easier to just replace it with false
                 //    node.replaceWith(IR.falseNode());
                 //    t.reportCodeChange();
-                } else {
-                    String sfn = node.getSourceFileName();
-                    if (sfn != null) {
-                        Map<String, Object> requires = replacements.get(sfn);
-
-                        if (requires != null) {
-                            // might be a clj-sym or String
-                            Object replacement = requires.get(require);
-                            if (replacement != null) {
-                                if (replacement instanceof Long) {
-                                    Node replacementNode = IR.number((Long) replacement);
-                                    requireString.replaceWith(replacementNode);
-                                } else { // symbol or string
-                                    String s = replacement.toString();
-                                    if (s.startsWith("esm_import$")) {
-                                        node.replaceWith(NodeUtil.newQName(compiler, s));
-                                    } else {
-                                        Node replacementNode = IR.string(s);
-                                        requireString.replaceWith(replacementNode);
-                                    }
-                                }
-
-                                t.reportCodeChange();
+                } else if (requires != null) {
+                    // might be a clj-sym or String
+                    Object replacement = requires.get(require);
+                    if (replacement != null) {
+                        if (replacement instanceof Long) {
+                            Node replacementNode = IR.number((Long) replacement);
+                            requireString.replaceWith(replacementNode);
+                        } else { // symbol or string
+                            String s = replacement.toString();
+                            if (s.startsWith("esm_import$")) {
+                                node.replaceWith(NodeUtil.newQName(compiler, s));
+                            } else {
+                                Node replacementNode = IR.string(s);
+                                requireString.replaceWith(replacementNode);
                             }
                         }
+
+                        t.reportCodeChange();
                     }
                 }
             }
@@ -69,37 +98,32 @@ public class ReplaceRequirePass extends NodeTraversal.AbstractPostOrderCallback
             // assuming that the only way we get here is that JSInspector already threw for invalid import() args
             String require = node.getFirstChild().getString();
 
-            String sfn = node.getSourceFileName();
-            if (sfn != null) {
-                Map<String, Object> requires = replacements.get(sfn);
+            if (requires != null) {
+                // might be a clj-sym or String
+                Object replacement = requires.get(require);
+                if (replacement != null) {
+                    Node replacementNode = null;
 
-                if (requires != null) {
-                    // might be a clj-sym or String
-                    Object replacement = requires.get(require);
-                    if (replacement != null) {
-                        Node replacementNode = null;
+                    Node requireFn = IR.name("require");
 
-                        Node requireFn = IR.name("require");
+                    Node getProp = IR.getprop(requireFn, "dynamic");
 
-                        Node getProp = IR.getprop(requireFn, "dynamic");
-
-                        if (replacement instanceof Long) {
-                            replacementNode = IR.call(getProp, IR.number((Long) replacement));
-                        } else {
-                            replacementNode = IR.call(getProp, IR.string(replacement.toString()));
-                        }
+                    if (replacement instanceof Long) {
+                        replacementNode = IR.call(getProp, IR.number((Long) replacement));
+                    } else {
+                        replacementNode = IR.call(getProp, IR.string(replacement.toString()));
+                    }
 
-                        // placing import("foo") with require.dynamic("foo")
+                    // placing import("foo") with require.dynamic("foo")
 
-                        node.replaceWith(replacementNode);
+                    node.replaceWith(replacementNode);
 
-                        // for FindSurvivingRequireCalls, otherwise nil
-                        // replaceWith transfers src infos to the new nodes
-                        // so this must be called after that is done, otherwise it'll override wil null
-                        requireFn.setOriginalName("require");
+                    // for FindSurvivingRequireCalls, otherwise nil
+                    // replaceWith transfers src infos to the new nodes
+                    // so this must be called after that is done, otherwise it'll override wil null
+                    requireFn.setOriginalName("require");
 
-                        t.reportCodeChange();
-                    }
+                    t.reportCodeChange();
                 }
             }
         }
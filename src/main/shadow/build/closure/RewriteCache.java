@@ -0,0 +1,253 @@
+package shadow.build.closure;
+
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.ShadowESModuleRewriter;
+import com.google.javascript.jscomp.ShadowESModuleRewriter.Rewritten;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * cache for ShadowESModuleRewriter.rewrite results, the output only depends on the source.
+ * <p>
+ * entries may include the source map, which is only created when asked for. the map always uses
+ * SOURCE_MAP_NAME as its source, it is meant as a closure input source map which replaces
+ * the name anyways. that way identical files in different packages still share one entry.
+ * <p>
+ * recently used results are kept in memory up to a total size, everything is also written to disk
+ * so restarts don't have to rewrite unchanged npm packages again. entries are addressed by the sha1
+ * of the source plus the closure compiler jar and the rewriter class, same as InspectCache.
+ * <p>
+ * thread safe, may be used by all ParallelESMRewriter workers.
+ */
+public class RewriteCache {
+
+    private final static int MAGIC = 0x4A535243;
+    private final static int VERSION = 2;
+
+    public final static String SOURCE_MAP_NAME = "convert.js";
+
+    private final Path dir;
+    private final byte[] salt;
+
+    // access ordered, so iteration starts with the least recently used
+    private final LinkedHashMap<String, Rewritten> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private final long maxMemoryChars;
+    private long memoryChars = 0;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param dir            may be null to only cache in memory
+     * @param maxMemoryChars total length of the results kept in memory
+     */
+    public RewriteCache(Path dir, long maxMemoryChars) throws IOException {
+        this.dir = dir;
+        this.maxMemoryChars = maxMemoryChars;
+
+        MessageDigest md = sha1();
+        CodeSource closureSource = Compiler.class.getProtectionDomain().getCodeSource();
+        if (closureSource != null) {
+            md.update(String.valueOf(closureSource.getLocation()).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // the rewriter is shipped with shadow-cljs, any change to it must invalidate everything
+        try (InputStream in = ShadowESModuleRewriter.class.getResourceAsStream("ShadowESModuleRewriter.class")) {
+            if (in != null) {
+                md.update(in.readAllBytes());
+            }
+        }
+
+        this.salt = md.digest();
+    }
+
+    public RewriteCache(File dir, long maxMemoryChars) throws IOException {
+        this(dir == null ? null : dir.toPath(), maxMemoryChars);
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    String cacheKey(String source) {
+        MessageDigest md = sha1();
+        md.update(salt);
+        md.update(source.getBytes(StandardCharsets.UTF_8));
+
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * same as ShadowESModuleRewriter.rewrite, but only rewrites if the source was not rewritten before
+     */
+    public String rewrite(String source) {
+        return rewrite(source, false).code;
+    }
+
+    /**
+     * same as ShadowESModuleRewriter.rewriteWithSourceMap using SOURCE_MAP_NAME
+     */
+    public Rewritten rewriteWithSourceMap(String source) {
+        return rewrite(source, true);
+    }
+
+    private Rewritten rewrite(String source, boolean sourceMap) {
+        String key = cacheKey(source);
+
+        Rewritten cached = getMemory(key);
+        if (cached == null && dir != null) {
+            cached = read(file(key));
+            if (cached != null) {
+                putMemory(key, cached);
+            }
+        }
+
+        // the code is the same either way, entries without a map are replaced by one with it
+        if (cached != null && (!sourceMap || cached.sourceMap != null)) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        misses.incrementAndGet();
+
+        Rewritten result = sourceMap ?
+                ShadowESModuleRewriter.rewriteWithSourceMap(SOURCE_MAP_NAME, source) :
+                new Rewritten(ShadowESModuleRewriter.rewrite(source), null);
+        putMemory(key, result);
+
+        if (dir != null) {
+            try {
+                write(file(key), result);
+            } catch (IOException e) {
+                // cache is optional, next run just rewrites again
+            }
+        }
+
+        return result;
+    }
+
+    private synchronized Rewritten getMemory(String key) {
+        return memory.get(key);
+    }
+
+    private static long size(Rewritten result) {
+        return result.code.length() + (result.sourceMap == null ? 0 : result.sourceMap.length());
+    }
+
+    private synchronized void putMemory(String key, Rewritten result) {
+        long size = size(result);
+
+        // not worth evicting everything else for
+        if (size > maxMemoryChars / 4) {
+            return;
+        }
+
+        Rewritten prev = memory.put(key, result);
+        if (prev != null) {
+            memoryChars -= size(prev);
+        }
+        memoryChars += size;
+
+        Iterator<Map.Entry<String, Rewritten>> it = memory.entrySet().iterator();
+        while (memoryChars > maxMemoryChars && it.hasNext()) {
+            Map.Entry<String, Rewritten> eldest = it.next();
+            memoryChars -= size(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    private Path file(String key) {
+        // split to avoid a single dir with 50k+ files
+        return dir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    static Rewritten read(Path file) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String code = readString(in);
+            String sourceMap = in.readBoolean() ? readString(in) : null;
+            return new Rewritten(code, sourceMap);
+        } catch (IOException e) {
+            // truncated or otherwise corrupt, treated as miss and overwritten
+            return null;
+        }
+    }
+
+    static void write(Path file, Rewritten result) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) size(result) + 64);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, result.code);
+            out.writeBoolean(result.sourceMap != null);
+            if (result.sourceMap != null) {
+                writeString(out, result.sourceMap);
+            }
+        }
+
+        Files.createDirectories(file.getParent());
+
+        // unique temp name since multiple builds or JVMs may write the same entry at the same time
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // writeUTF is limited to 64kb
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > in.available()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
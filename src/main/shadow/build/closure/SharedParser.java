@@ -0,0 +1,120 @@
+package shadow.build.closure;
+
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.ShadowAccess;
+import com.google.javascript.jscomp.SourceFile;
+import com.google.javascript.jscomp.parsing.Config;
+import com.google.javascript.jscomp.parsing.parser.FeatureSet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * parser configuration built once from CompilerOptions and shared by all threads.
+ * <p>
+ * the parser itself only needs the immutable Config, so parsing doesn't have to go through
+ * a Compiler. the Compiler used to create the Config is thrown away right after.
+ */
+public final class SharedParser {
+
+    private final Config config;
+    private final FeatureSet features;
+
+    public SharedParser(CompilerOptions co) {
+        Compiler cc = new Compiler();
+        cc.initOptions(co);
+
+        this.config = ShadowAccess.getParserConfig(cc);
+        this.features = co.getLanguageIn().toFeatureSet();
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * the features allowed by the language in, as used by JsScanner
+     */
+    public FeatureSet getFeatures() {
+        return features;
+    }
+
+    public ParserHelper parse(SourceFile srcFile) throws IOException {
+        return ParserHelper.parse(config, srcFile);
+    }
+
+    // parses all .js files in a directory, per thread compilers vs one shared parser
+    public static void main(String... args) throws Exception {
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(Paths.get(args[0]))) {
+            files = s.filter(p -> p.toString().endsWith(".js")).filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        List<SourceFile> sources = new ArrayList<>(files.size());
+        for (Path file : files) {
+            sources.add(SourceFile.fromCode(file.toString(), new String(Files.readAllBytes(file), StandardCharsets.UTF_8)));
+        }
+
+        CompilerOptions co = new CompilerOptions();
+        co.setLanguageIn(CompilerOptions.LanguageMode.ECMASCRIPT_NEXT);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int round = 0; round < 5; round++) {
+            // what callers did so far, a compiler per thread just to get at its parser config
+            ThreadLocal<Compiler> compilers = ThreadLocal.withInitial(() -> {
+                Compiler cc = new Compiler();
+                cc.initOptions(co);
+                return cc;
+            });
+            long compilerTime = run(executor, sources, src -> () -> ParserHelper.parse(compilers.get(), src));
+
+            long start = System.nanoTime();
+            SharedParser parser = new SharedParser(co);
+            long setupTime = System.nanoTime() - start;
+            long sharedTime = run(executor, sources, src -> () -> parser.parse(src));
+
+            System.out.format("files:%d threads:%d compiler:%dms shared:%dms (setup %dms)%n",
+                    files.size(),
+                    threads,
+                    compilerTime / 1_000_000,
+                    sharedTime / 1_000_000,
+                    setupTime / 1_000_000);
+        }
+
+        executor.shutdown();
+    }
+
+    interface Task {
+        ParserHelper parse() throws IOException;
+    }
+
+    interface TaskFactory {
+        Task create(SourceFile src);
+    }
+
+    private static long run(ExecutorService executor, List<SourceFile> sources, TaskFactory factory) throws Exception {
+        long start = System.nanoTime();
+        List<Future<ParserHelper>> results = new ArrayList<>(sources.size());
+        for (SourceFile src : sources) {
+            Task task = factory.create(src);
+            results.add(executor.submit(task::parse));
+        }
+        for (Future<ParserHelper> result : results) {
+            result.get();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -32,7 +32,8 @@
     [shadow.build.async :as async])
   (:import (java.util.concurrent ExecutorService)
            (java.io File StringReader PushbackReader StringWriter)
-           [java.util.concurrent.atomic AtomicLong]))
+           [java.util.concurrent.atomic AtomicLong]
+           [shadow.build.closure ReplaceCLJSConstants]))
 
 (def SHADOW-TIMESTAMP
   ;; timestamp to ensure that new shadow-cljs release always invalidate caches
@@ -712,6 +713,20 @@
     (visit-fn init ast)
     children))
 
+(defn add-constant-name [names x]
+  (let [fqn (cond
+              (keyword? x) (subs (str x) 1)
+              (symbol? x) (str x))]
+    (if (or (nil? fqn) (contains? names fqn))
+      names
+      (assoc names fqn (ReplaceCLJSConstants/mungeConstant fqn)))))
+
+(defn may-contain-constants?
+  "false if the JS certainly doesn't create any keywords or symbols ReplaceCLJSConstants would replace"
+  [js]
+  (or (str/includes? js "cljs.core.Keyword")
+      (str/includes? js "cljs.core.Symbol")))
+
 (defn do-compile-cljs-resource
   [{:keys [compiler-options] :as state}
    {:keys [resource-id resource-name from-jar] :as rc}
@@ -813,7 +828,23 @@
                           result
                           (conj result (:name ast))))))
                   #{}
-                  ast)]
+                  ast)
+
+                ;; keywords and symbols used by this namespace, munged once here and cached with the output
+                ;; so ReplaceCLJSConstants doesn't have to. may miss constants emitted in other ways
+                ;; (eg. js* in macros), those just get munged by the pass as usual. only release builds
+                ;; run the pass and they have their own cache
+                constant-names
+                (when (= :release (:mode state))
+                  (reduce
+                    (fn [result ast-entry]
+                      (walk-ast ast-entry result
+                        (fn [result {:keys [op val] :as ast}]
+                          (if-not (= :const op)
+                            result
+                            (reduce add-constant-name result (tree-seq coll? seq val))))))
+                    {}
+                    ast))]
 
             (binding [comp/*source-map-data* sm-ref
                       comp/*source-map-data-gen-col* (AtomicLong.)
@@ -859,8 +890,13 @@
                 (update :warnings into @size-warnings-ref)
                 (cond->
                   (= ns 'cljs.core)
-                  (update :js str "\n" (make-runtime-setup state))
-                  ))))))))
+                  (update :js str "\n" (make-runtime-setup state)))
+                ;; lets ReplaceCLJSConstants skip namespaces without constants in release builds
+                (as-> output
+                  (assoc output :cljs-constants-in-js (may-contain-constants? (:js output))))
+                (cond->
+                  constant-names
+                  (assoc :cljs-constants constant-names)))))))))
 
 (defn get-cache-file-for-rc
   ^File [state {:keys [resource-name] :as rc}]
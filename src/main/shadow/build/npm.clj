@@ -14,8 +14,9 @@
   (:import (java.io File)
            (com.google.javascript.jscomp SourceFile CompilerOptions CompilerOptions$LanguageMode)
            (com.google.javascript.jscomp.deps ModuleNames)
-           (shadow.build.closure JsInspector)
-           [java.nio.file Path]))
+           (shadow.build.closure JsInspector InspectCache ParallelInspector ParallelESMRewriter RewriteCache MappedSource SharedParser)
+           [java.nio.file Path]
+           [java.util.function Supplier]))
 
 (set! *warn-on-reflection* true)
 
@@ -337,113 +338,138 @@
            (str)
            (rc/normalize-name)))))
 
+(defn inspect-source [{:keys [compiler parser inspect-cache lexical-inspect] :as npm} ^File file ^MappedSource source]
+  (let [name (.getAbsolutePath file)]
+    (cond
+      inspect-cache
+      (.getFileInfoMap ^InspectCache inspect-cache compiler name source (boolean lexical-inspect))
+
+      lexical-inspect
+      (JsInspector/getFileInfoMapLexical compiler parser name source)
+
+      :else
+      ;; SourceFile/fromFile seems to leak file descriptors
+      (JsInspector/getFileInfoMap compiler ^SharedParser parser (SourceFile/fromCode name (.toString source))))))
+
+(defn read-source
+  "reads file once for inspection, :source is only kept with :retain-sources
+   otherwise data/get-source-code loads it again from :file when actually compiled"
+  [{:keys [retain-sources] :as npm} ^File file inspect?]
+  (with-open [source (MappedSource/open (.toPath file))]
+    {:sha1 (.sha1Hex source)
+     :source (when retain-sources (.toString source))
+     :info (when inspect? (inspect-source npm file source))}))
+
 (defn get-file-info*
   "extract some basic information from a given file, does not resolve dependencies"
-  [{:keys [compiler] :as npm} ^File file]
-  {:pre [(service? npm)
-         (util/is-file-instance? file)
-         (.isAbsolute file)]}
-
-  ;; normalize node_modules files since they may not be at the root of the project
-  (let [resource-name
-        (resource-name-for-file npm file)
-
-        ns (-> (ModuleNames/fileToModuleName resource-name)
-               ;; (cljs-comp/munge) ;; FIXME: the above already does basically the same, does it cover everything?
-               ;; WTF node ppl ... node_modules/es5-ext/array/#/index.js
-               (str/replace #"#" "_HASH_")
-               (symbol))
-
-        last-modified
-        (.lastModified file)
-
-        source
-        (slurp file)
-
-        cache-key
-        [NPM-CACHE-KEY CLOSURE-CACHE-KEY (data/sha1-string source)]]
-
-    ;; require("../package.json").version is a thing
-    ;; no need to parse it since it can't have any require/import/export
-    (-> (if (str/ends-with? (.getName file) ".json")
-          {:resource-id [::resource resource-name]
-           :resource-name resource-name
-           :output-name (str ns ".js")
-           :json true
-           :type :js
-           :file file
-           :last-modified last-modified
-           :cache-key cache-key
-           :ns ns
-           :provides #{ns}
-           :requires #{}
-           :source source
-           :js-deps []}
-
-          ;; FIXME: check if a .babelrc applies and then run source through babel first
-          ;; that should take care of .jsx and others if I actually want to support that?
-          ;; all requires are collected into
-          ;; :js-requires ["foo" "bar/thing" "./baz]
-          ;; all imports are collected into
-          ;; :js-imports ["react"]
-          (let [{:keys [js-requires js-dynamic-imports js-imports js-errors js-warnings js-invalid-requires js-language] :as info}
-                (JsInspector/getFileInfoMap
-                  compiler
-                  ;; SourceFile/fromFile seems to leak file descriptors
-                  (SourceFile/fromCode (.getAbsolutePath file) source))
-
-                _
-                (when (seq js-errors)
-                  (throw (ex-info (format "errors in file: %s" (.getAbsolutePath file))
-                           {:tag ::file-info-errors
-                            :info {:js-errors js-errors}
-                            :file file})))
-
-                js-deps
-                (->> (concat js-requires js-imports js-dynamic-imports)
-                     (distinct)
-                     (map maybe-convert-goog)
-                     (into []))
-
-                js-deps
-                (cond-> js-deps
-                  (:uses-global-buffer info)
-                  (conj "buffer")
-                  (:uses-global-process info)
-                  (conj "process"))]
-
-            (when (seq js-errors)
-              (throw (ex-info (format "errors in file: %s" (.getAbsolutePath file))
-                       {:tag ::file-info-errors
-                        :info info
-                        :file file})))
-
-            ;; moment.js has require('./locale/' + name); inside a function
-            ;; it shouldn't otherwise hurt though
-            (when (seq js-invalid-requires)
-              (log/info ::js-invalid-requires {:resource-name resource-name
-                                               :requires js-invalid-requires}))
-
-            (assoc info
-              :resource-id [::resource resource-name]
-              :resource-name resource-name
-              ;; work around file names ending up too long on some linux systems for certain npm deps
-              ;; FileNotFoundException: .shadow-cljs/builds/foo/dev/shadow-js/module$node_modules$$emotion$react$isolated_hoist_non_react_statics_do_not_use_this_in_your_code$dist$emotion_react_isolated_hoist_non_react_statics_do_not_use_this_in_your_code_browser_cjs.js (File name too long)
-              :output-name
-              (if (> (count resource-name) 127)
-                (str "module$too_long_" (util/md5hex resource-name) ".js")
-                (str ns ".js"))
-              :type :js
-              :file file
-              :last-modified last-modified
-              :cache-key cache-key
-              :ns ns
-              :provides #{ns}
-              :requires #{}
-              :source source
-              :js-language js-language
-              :js-deps js-deps
-              :deps js-deps))))))
+  ([npm file]
+   (get-file-info* npm file nil))
+  ([npm ^File file prefetched]
+   {:pre [(service? npm)
+          (util/is-file-instance? file)
+          (.isAbsolute file)]}
+
+   ;; normalize node_modules files since they may not be at the root of the project
+   (let [resource-name
+         (resource-name-for-file npm file)
+
+         ns (-> (ModuleNames/fileToModuleName resource-name)
+                ;; (cljs-comp/munge) ;; FIXME: the above already does basically the same, does it cover everything?
+                ;; WTF node ppl ... node_modules/es5-ext/array/#/index.js
+                (str/replace #"#" "_HASH_")
+                (symbol))
+
+         last-modified
+         (.lastModified file)
+
+         ;; require("../package.json").version is a thing
+         ;; no need to parse it since it can't have any require/import/export
+         json?
+         (str/ends-with? (.getName file) ".json")
+
+         {:keys [source sha1] :as loaded}
+         (or prefetched
+             (read-source npm file (not json?)))
+
+         cache-key
+         [NPM-CACHE-KEY CLOSURE-CACHE-KEY sha1]]
+
+     (-> (if json?
+           {:resource-id [::resource resource-name]
+            :resource-name resource-name
+            :output-name (str ns ".js")
+            :json true
+            :type :js
+            :file file
+            :last-modified last-modified
+            :cache-key cache-key
+            :ns ns
+            :provides #{ns}
+            :requires #{}
+            :source source
+            :js-deps []}
+
+           ;; FIXME: check if a .babelrc applies and then run source through babel first
+           ;; that should take care of .jsx and others if I actually want to support that?
+           ;; all requires are collected into
+           ;; :js-requires ["foo" "bar/thing" "./baz]
+           ;; all imports are collected into
+           ;; :js-imports ["react"]
+           (let [{:keys [js-requires js-dynamic-imports js-imports js-errors js-warnings js-invalid-requires js-language] :as info}
+                 (:info loaded)
+
+                 _
+                 (when (seq js-errors)
+                   (throw (ex-info (format "errors in file: %s" (.getAbsolutePath file))
+                            {:tag ::file-info-errors
+                             :info {:js-errors js-errors}
+                             :file file})))
+
+                 js-deps
+                 (->> (concat js-requires js-imports js-dynamic-imports)
+                      (distinct)
+                      (map maybe-convert-goog)
+                      (into []))
+
+                 js-deps
+                 (cond-> js-deps
+                   (:uses-global-buffer info)
+                   (conj "buffer")
+                   (:uses-global-process info)
+                   (conj "process"))]
+
+             (when (seq js-errors)
+               (throw (ex-info (format "errors in file: %s" (.getAbsolutePath file))
+                        {:tag ::file-info-errors
+                         :info info
+                         :file file})))
+
+             ;; moment.js has require('./locale/' + name); inside a function
+             ;; it shouldn't otherwise hurt though
+             (when (seq js-invalid-requires)
+               (log/info ::js-invalid-requires {:resource-name resource-name
+                                                :requires js-invalid-requires}))
+
+             (assoc info
+               :resource-id [::resource resource-name]
+               :resource-name resource-name
+               ;; work around file names ending up too long on some linux systems for certain npm deps
+               ;; FileNotFoundException: .shadow-cljs/builds/foo/dev/shadow-js/module$node_modules$$emotion$react$isolated_hoist_non_react_statics_do_not_use_this_in_your_code$dist$emotion_react_isolated_hoist_non_react_statics_do_not_use_this_in_your_code_browser_cjs.js (File name too long)
+               :output-name
+               (if (> (count resource-name) 127)
+                 (str "module$too_long_" (util/md5hex resource-name) ".js")
+                 (str ns ".js"))
+               :type :js
+               :file file
+               :last-modified last-modified
+               :cache-key cache-key
+               :ns ns
+               :provides #{ns}
+               :requires #{}
+               :source source
+               :js-language js-language
+               :js-deps js-deps
+               :deps js-deps)))))))
 
 (defn get-file-info [{:keys [index-ref] :as npm} ^File file]
   {:pre [(service? npm)]}
@@ -453,6 +479,37 @@
         file-info
         )))
 
+(def prefetch-batch-size
+  "max files inspected in parallel at once, bounds the sources held in memory while waiting on the batch"
+  256)
+
+(defn prefetch-file-infos
+  "inspects all files not inspected yet in parallel, so get-file-info later finds them ready.
+   files that fail are skipped, get-file-info will report the problem when they are actually used"
+  [{:keys [index-ref ^ParallelInspector parallel-inspector retain-sources] :as npm} files]
+  (let [todo
+        (->> files
+             (remove #(get-in @index-ref [:files %]))
+             ;; not parsed anyways
+             (remove #(str/ends-with? (.getName ^File %) ".json"))
+             (distinct)
+             (into []))]
+
+    (when (and parallel-inspector (> (count todo) 1))
+      (doseq [batch (partition-all prefetch-batch-size todo)
+              :let [results
+                    (.inspectFiles parallel-inspector
+                      (mapv #(.toPath ^File %) batch)
+                      (boolean retain-sources))]
+              [^File file loaded] (map vector batch results)]
+        (if-not (map? loaded)
+          (log/debug-ex loaded ::prefetch-inspect-ex {:file (.getAbsolutePath file)})
+          (try
+            (let [file-info (get-file-info* npm file loaded)]
+              (swap! index-ref assoc-in [:files file] file-info))
+            (catch Exception e
+              (log/debug-ex e ::prefetch-inspect-ex {:file (.getAbsolutePath file)}))))))))
+
 (defn find-package-for-require* [npm {::keys [package] :as require-from} require]
   (if (or (not require-from) (not (:allow-nested-packages (:js-options npm))))
     (find-package npm require)
@@ -661,13 +718,17 @@
        :file file})
 
     ;; regular js file
-    (try
-      (with-npm-info npm package (get-file-info npm file))
-      (catch Exception e
-        (throw (ex-info "failed to inspect node_modules file"
-                 {:tag ::file-info-failed
-                  :file file}
-                 e))))))
+    (if-some [prefetch (::prefetch npm)]
+      ;; only collecting files for prefetch-deps
+      (do (swap! prefetch conj file)
+          empty-rc)
+      (try
+        (with-npm-info npm package (get-file-info npm file))
+        (catch Exception e
+          (throw (ex-info "failed to inspect node_modules file"
+                   {:tag ::file-info-failed
+                    :file file}
+                   e)))))))
 
 (defn find-exports-conditional-match
   [npm match]
@@ -1012,6 +1073,25 @@
         (find-resource npm require-from override)
         ))))
 
+(defn prefetch-deps
+  "finds the files for the string deps of a npm resource without inspecting them and then
+   inspects them all in parallel, resolving them one by one afterwards finds them already inspected.
+   only an optimization, the regular resolve reports all problems."
+  [{:keys [parallel-inspector] :as npm} require-from deps]
+  (when parallel-inspector
+    (let [found (atom [])
+          collect (assoc npm ::prefetch found)]
+      (doseq [dep deps
+              :when (and (string? dep)
+                         ;; :resolve config might send this elsewhere
+                         (nil? (get-in npm [:js-options :resolve dep])))]
+        (try
+          (find-resource collect require-from dep)
+          (catch Exception e
+            ;; resolve reports this properly later
+            (log/debug-ex e ::prefetch-resolve-ex {:require dep}))))
+      (prefetch-file-infos npm @found))))
+
 (defn shadow-js-require
   ([rc]
    (shadow-js-require rc true))
@@ -1046,27 +1126,66 @@
 
 ;; FIXME: allow configuration of :extensions :entry-keys
 ;; maybe some closure opts
-(defn start [{:keys [node-modules-dir js-package-dirs] :as config}]
+(defn inspect-compiler-options []
+  ;; FIXME: share this with classpath
+  (doto (CompilerOptions.)
+    ;; FIXME: good idea to disable ALL warnings?
+    ;; I think its fine since we are just looking for require anyways
+    ;; if the code has any other problems we'll get to it when importing
+    (.resetWarningsGuard)
+    ;; should be the highest possible option, since we can't tell before parsing
+    (.setLanguageIn CompilerOptions$LanguageMode/ECMASCRIPT_NEXT)))
+
+(defn make-parallel-inspector
+  "parser and inspect-cache may be nil"
+  [^SharedParser parser inspect-cache]
+  (ParallelInspector.
+    ;; compilers are not thread safe, each worker gets its own
+    ;; they are still needed for the traversal, parsing uses the shared config
+    (reify Supplier
+      (get [_]
+        (doto (data/make-closure-compiler)
+          (.initOptions (inspect-compiler-options)))))
+    parser
+    ^InspectCache inspect-cache
+    (.availableProcessors (Runtime/getRuntime))))
+
+(defn start [{:keys [node-modules-dir js-package-dirs cache-root inspect-cache lexical-inspect retain-sources esm-rewrite-cache parallel-inspect] :as config}]
   (let [index-ref
         (atom {:files {}
                :require-cache {}
                :packages {}
                :package-json-cache {}})
 
-        ;; FIXME: share this with classpath
         co
-        (doto (CompilerOptions.)
-          ;; FIXME: good idea to disable ALL warnings?
-          ;; I think its fine since we are just looking for require anyways
-          ;; if the code has any other problems we'll get to it when importing
-          (.resetWarningsGuard)
-          ;; should be the highest possible option, since we can't tell before parsing
-          (.setLanguageIn CompilerOptions$LanguageMode/ECMASCRIPT_NEXT))
+        (inspect-compiler-options)
 
         cc
         (doto (data/make-closure-compiler)
           (.initOptions co))
 
+        ;; parser config is immutable, built once and used by all inspections
+        parser
+        (SharedParser. co)
+
+        ;; parsing node_modules files for their requires dominates cold starts
+        ;; so the results are kept on disk, addressed by content
+        inspect-cache
+        (when (and cache-root (not (false? inspect-cache)))
+          (InspectCache. (io/file cache-root "inspect-cache") co))
+
+        ;; rewriting ESM only depends on the source, so unchanged packages never need it again
+        ;; keeps up to 32m chars of recently used results in memory, everything else on disk
+        rewrite-cache
+        (when-not (false? esm-rewrite-cache)
+          (RewriteCache.
+            ^File (when cache-root (io/file cache-root "esm-rewrite-cache"))
+            (* 32 1024 1024)))
+
+        ;; :parallel-inspect false keeps inspecting and rewriting on the calling thread
+        parallel?
+        (not (false? parallel-inspect))
+
         project-dir
         (-> (io/file "")
             (absolute-file))
@@ -1092,6 +1211,20 @@
      :index-ref index-ref
      :compiler cc
      :compiler-options co
+     :parser parser
+     :inspect-cache inspect-cache
+     ;; opt-in since the scan can't report syntax errors, only finds requires and such
+     :lexical-inspect (true? lexical-inspect)
+     ;; sources of all npm files used by a build take a lot of memory in a long running server
+     ;; without them they are read again from disk whenever they need compiling
+     :retain-sources (not (false? retain-sources))
+     ;; ESM files from node_modules are rewritten to CJS, lodash-es and such have thousands
+     :esm-rewriter
+     (ParallelESMRewriter. ^RewriteCache rewrite-cache (if parallel? (.availableProcessors (Runtime/getRuntime)) 1))
+     :parallel-inspector
+     (when parallel?
+       (doto ^ParallelInspector (make-parallel-inspector parser inspect-cache)
+         (.setLexical (true? lexical-inspect))))
      ;; JVM working dir always
      :project-dir project-dir
      :js-package-dirs js-package-dirs
@@ -1110,7 +1243,48 @@
                   :export-conditions ["browser" "require" "default" "module" "import"]}
      }))
 
-(defn stop [npm])
+(defn stop [{:keys [^ParallelInspector parallel-inspector ^ParallelESMRewriter esm-rewriter] :as npm}]
+  (when parallel-inspector
+    (.close parallel-inspector))
+  (.close esm-rewriter))
+
+(defn esm-source
+  "source of a resource marked by resolve/make-babel-source-fn, before its ESM rewrite"
+  [{:keys [esm-source ^File file] :as rc}]
+  (or esm-source (slurp file)))
+
+(defn rewrite-esm
+  "ShadowESModuleRewriter/rewrite, using the rewrite cache if npm has one"
+  [{:keys [^ParallelESMRewriter esm-rewriter] :as npm} source]
+  (.rewrite esm-rewriter ^String source))
+
+(defn rewrite-esm-sources
+  "rewrites all given ESM resources in parallel, the same as their :source-fn would one by one.
+   returns a map of resource-id to rewritten source, failures are left out so that
+   the :source-fn reports them properly later.
+
+   with source-maps? the values are ShadowESModuleRewriter$Rewritten instead, with the map
+   from the rewritten code back to the original source."
+  [{:keys [^ParallelESMRewriter esm-rewriter] :as npm} rcs source-maps?]
+  (let [todo (into [] rcs)]
+    (if (and (not source-maps?) (< (count todo) 2))
+      {}
+      (reduce
+        (fn [m batch]
+          (let [sources (mapv esm-source batch)
+                results
+                (if source-maps?
+                  (.rewriteWithSourceMaps esm-rewriter ^java.util.List sources)
+                  (.rewrite esm-rewriter ^java.util.List sources))]
+            (reduce
+              (fn [m [{:keys [resource-id]} result]]
+                (if (instance? Throwable result)
+                  m
+                  (assoc m resource-id result)))
+              m
+              (map vector batch results))))
+        {}
+        (partition-all prefetch-batch-size todo)))))
 
 
 (defn js-resource-for-global
@@ -31,6 +31,13 @@
 
 (declare resolve-require)
 
+(defn prefetch-npm-deps [{:keys [npm] :as state} {:keys [deps] :as rc}]
+  ;; deps are resolved one at a time below, so npm files would also be inspected one at a time
+  ;; inspect them in parallel first, most npm files have quite a few relative requires
+  (when (and npm (::npm/package rc))
+    (npm/prefetch-deps npm rc deps))
+  state)
+
 (defn resolve-deps
   [{:keys [resolved-stack] :as state} {:keys [resource-id deps] :as rc}]
   {:pre [(data/build-state? state)]}
@@ -47,6 +54,7 @@
           (not (resolved? state resource-id))
           (-> (update :resolved-set conj resource-id)
               (stack-push resource-id)
+              (prefetch-npm-deps rc)
               (util/reduce->
                 (fn [state dep]
                   (resolve-require state rc dep))
@@ -198,12 +206,23 @@
 (defn make-babel-source-fn [{:keys [source file] :as rc}]
   (-> rc
       (dissoc :source)
-      (assoc :source-fn
-             (fn [{:keys [babel] :as state}]
-               (if (get-in state [:js-options :use-babel])
-                 (babel/convert-source babel state source (.getAbsolutePath file))
-                 (ShadowESModuleRewriter/rewrite source))
-               ))))
+      ;; closure/convert-sources-simple* rewrites all of these at once via npm/rewrite-esm-sources
+      ;; source may be nil with :retain-sources false, loaded from file again when needed
+      (assoc :esm-rewrite true
+             :esm-source source
+             :source-fn
+             (fn [{:keys [babel npm] :as state}]
+               (let [source (or source (slurp file))]
+                 (cond
+                   (get-in state [:js-options :use-babel])
+                   (babel/convert-source babel state source (.getAbsolutePath file))
+
+                   npm
+                   (npm/rewrite-esm npm source)
+
+                   :else
+                   (ShadowESModuleRewriter/rewrite source))
+                 )))))
 
 (defn maybe-esm-rewrite [{:keys [js-esm deps] :as rc}]
   {:pre [(map? rc)]}
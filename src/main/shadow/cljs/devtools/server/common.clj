@@ -89,9 +89,9 @@
         (catch InterruptedException ex)))}
 
    :classpath
-   {:depends-on [:cache-root]
-    :start (fn [cache-root]
-             (-> (build-classpath/start cache-root)
+   {:depends-on [:config :cache-root]
+    :start (fn [config cache-root]
+             (-> (build-classpath/start cache-root (select-keys (:js-options config) [:inspect-cache :parallel-inspect]))
                  (build-classpath/index-classpath)))
     :stop build-classpath/stop}
 
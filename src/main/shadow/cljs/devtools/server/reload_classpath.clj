@@ -33,9 +33,15 @@
 
     (case event
       :mod
-      (do (cp/file-update classpath dir file)
-          (let [{:keys [provides] :as rc} (cp/find-resource-by-name classpath name)]
-            (update ns-updates :mod set/union provides)))
+      (let [before (cp/find-resource-by-file classpath file)]
+        (cp/file-update classpath dir file)
+        (let [{:keys [provides] :as rc} (cp/find-resource-by-name classpath name)]
+          (-> ns-updates
+              (update :mod set/union provides)
+              ;; most saves only touch function bodies, builds can then skip resolve
+              (cond->
+                (cp/same-js-deps? before (cp/find-resource-by-file classpath file))
+                (update :deps-unchanged set/union provides)))))
       :new
       (do (cp/file-add classpath dir file)
           (let [{:keys [provides] :as rc} (cp/find-resource-by-name classpath name)]
@@ -83,10 +89,11 @@
             (update result event conj (util/filename->ns name)))
           {:mod #{}
            :del #{}
-           :new #{}}
+           :new #{}
+           :deps-unchanged #{}}
           cljs-updates)
 
-        {:keys [mod del new] :as ns-updates}
+        {:keys [mod del new deps-unchanged] :as ns-updates}
         (reduce #(update-classpath-index state %1 %2) ns-updates js-updates)
 
         update-msg
@@ -94,6 +101,8 @@
          :deleted del
          :updated mod
          :added new
+         ;; subset of :updated, JS files that still require/provide the same things
+         :deps-unchanged deps-unchanged
          :macros updated-macros}]
 
     ;; FIXME: this should be somehow coordinated with the workers
@@ -347,7 +347,7 @@
     (repl/prepare build-state)))
 
 (defn build-compile
-  [{:keys [build-state macros-modified namespaces-modified] :as worker-state}]
+  [{:keys [build-state macros-modified namespaces-added namespaces-modified namespaces-deps-unchanged] :as worker-state}]
   ;; this may be nil if configure failed, just silently do nothing for now
   (if (nil? build-state)
     worker-state
@@ -355,10 +355,22 @@
       (>!!output worker-state {:type :build-start})
       (send-to-runtimes worker-state {:op :cljs-build-start})
 
-      (let [{:keys [build-sources build-macros] :as build-state}
+      (let [;; JS files the classpath watch reported with unchanged deps, only when nothing else
+            ;; changed the deps. reload-unchanged-js still checks against the build state
+            ;; since several saves may have happened since the last compile
+            reload-only
+            (if (or (seq namespaces-added)
+                    (seq (set/difference namespaces-modified namespaces-deps-unchanged)))
+              #{}
+              (set/intersection namespaces-modified namespaces-deps-unchanged))
+
+            {:keys [build-sources build-macros] :as build-state}
             (-> build-state
                 (cond->
-                  (seq namespaces-modified)
+                  (seq reload-only)
+                  (build-api/reload-unchanged-js reload-only)
+
+                  (and (seq namespaces-modified) (not (seq reload-only)))
                   (build-api/reset-namespaces namespaces-modified)
 
                   (seq macros-modified)
@@ -389,6 +401,7 @@
                      ;; tracking added/modified namespaces since we finished compiling
                      :namespaces-added #{}
                      :namespaces-modified #{}
+                     :namespaces-deps-unchanged #{}
                      :macros-modified #{}
                      :last-build-resources none-code-resources
                      :last-build-provides
@@ -494,7 +507,7 @@
 
 (defn do-resource-update
   [{:keys [autobuild last-build-macros last-build-provides build-state] :as worker-state}
-   {:keys [namespaces added macros] :as msg}]
+   {:keys [namespaces added macros deps-unchanged] :as msg}]
 
   (if-not build-state
     worker-state
@@ -534,6 +547,7 @@
             ;; which break if the state is already half cleaned
             (update :namespaces-added set/union added)
             (update :namespaces-modified set/union added namespaces)
+            (update :namespaces-deps-unchanged set/union (set/difference (set deps-unchanged) added))
             (update :macros-modified set/union macros-used-by-build)
             (cond->
               autobuild
@@ -0,0 +1,112 @@
+package shadow.fswatch;
+
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * turns WatchService file events below root into {"path-to-file" :new|:mod|:del} changes
+ */
+class ChangeTracker {
+
+    private final static Keyword KW_NEW = RT.keyword(null, "new");
+    private final static Keyword KW_MOD = RT.keyword(null, "mod");
+    private final static Keyword KW_DEL = RT.keyword(null, "del");
+
+    private final Path root;
+    private final PathFilter filter;
+
+    // content hashes of files that had events, only used with contentHashing
+    private final Map<Path, Long> hashes = new HashMap<>();
+    private boolean contentHashing = false;
+
+    ChangeTracker(Path root, List<String> extensions) {
+        this.root = root;
+        this.filter = PathFilter.forExtensions(extensions);
+    }
+
+    void setContentHashing(boolean contentHashing) {
+        this.contentHashing = contentHashing;
+        this.hashes.clear();
+    }
+
+    void clear() {
+        hashes.clear();
+    }
+
+    /**
+     * @return true if events for the file would be recorded, ignoring the event kind
+     */
+    boolean isWatched(Path file) throws IOException {
+        return filter.acceptFile(file, 0);
+    }
+
+    private boolean isContentModified(Path file) {
+        if (!contentHashing) {
+            return true;
+        }
+
+        try {
+            long hash = ContentHash.hash(file);
+            Long prev = hashes.put(file, hash);
+            return prev == null || prev != hash;
+        } catch (IOException e) {
+            hashes.remove(file);
+            return true;
+        }
+    }
+
+    /**
+     * @param resolvedName absolute path of a file below root, directories are handled by the caller
+     */
+    ITransientMap record(ITransientMap changes, WatchEvent.Kind<?> kind, Path resolvedName) throws IOException {
+        Path child = root.relativize(resolvedName);
+        String childName = child.toString();
+
+        if (filter.isLockFile(childName)) {
+            // emacs on windows creates a .#x.cljs file for each x.cljs which we should never
+            // be interested in or act on. It does not appear to be a hidden file for some reason.
+            // I can't think of a legit reason to ever use a filename like this for any CLJS resources or assets
+            // so just ignore it globally
+        } else if (filter.matchesExtension(childName)) {
+            if (kind == ENTRY_DELETE) {
+                hashes.remove(resolvedName);
+                changes = changes.assoc(childName, KW_DEL);
+            } else {
+                // windows is really picky here, fails with exception when asking if a
+                // deleted file is hidden
+                // intellij on windows seems to
+                // create a temp file
+                // modify the temp file
+                // swap temp file -> real file
+                // delete temp file
+                // for every file save, this really confuses the watcher
+                if (Files.exists(resolvedName) && !filter.isHidden(resolvedName)) {
+                    if (kind == ENTRY_CREATE) {
+                        if (contentHashing) {
+                            isContentModified(resolvedName);
+                        }
+                        changes = changes.assoc(childName, KW_NEW);
+                    } else if (kind == ENTRY_MODIFY && !KW_NEW.equals(changes.valAt(childName)) && isContentModified(resolvedName)) {
+                        // only assoc as :mod event if not already :new
+                        // depending on OS there is a :new followed by an immediate :mod
+                        // need the new status more than the mod for greedy builds
+                        changes = changes.assoc(childName, KW_MOD);
+                    }
+                }
+            }
+        }
+
+        return changes;
+    }
+}
@@ -0,0 +1,50 @@
+package shadow.fswatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * fast content hash used to filter out :mod events for files that were touched
+ * but didn't actually change, eg. by formatters or git checkout.
+ */
+public class ContentHash {
+
+    // files above this are memory mapped instead of read into a heap buffer
+    // mapped buffers are only released on GC and windows won't allow deleting a mapped file
+    // so windows always reads
+    private final static long MAP_THRESHOLD = 256 * 1024;
+    private final static boolean CAN_MAP = !System.getProperty("os.name", "").toLowerCase().contains("windows");
+
+    /**
+     * @return CRC32C of the file contents, always a positive value
+     */
+    public static long hash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (CAN_MAP && size > MAP_THRESHOLD) {
+                long offset = 0;
+                while (offset < size) {
+                    long len = Math.min(size - offset, Integer.MAX_VALUE);
+                    crc.update(channel.map(FileChannel.MapMode.READ_ONLY, offset, len));
+                    offset += len;
+                }
+            } else {
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size, MAP_THRESHOLD));
+                while (channel.read(buf) > 0 || buf.position() > 0) {
+                    buf.flip();
+                    crc.update(buf);
+                    buf.clear();
+                }
+            }
+        }
+
+        return crc.getValue();
+    }
+}
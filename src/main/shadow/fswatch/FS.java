@@ -1,14 +1,14 @@
 package shadow.fswatch;
 
-import clojure.lang.IPersistentCollection;
-import clojure.lang.ITransientCollection;
-import clojure.lang.PersistentVector;
+import clojure.lang.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashSet;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by zilence on 05.06.15.
@@ -55,6 +55,90 @@ public class FS {
      * how do get all files via glob?
      */
 
+    /**
+     * lazy stream of all files below root, hidden files and directories are skipped.
+     * the walk only progresses as the stream is consumed and subtrees are walked concurrently
+     * when the stream is made parallel.
+     */
+    public static Stream<Path> walk(Path root) throws IOException {
+        return StreamSupport.stream(FileWalker.create(root), false);
+    }
+
+    private static PathMatcher extMatcher(Path root, String ext) {
+        final PathFilter filter = PathFilter.forExtensionGlob(root.getFileSystem(), ext);
+        return path -> filter.matchesExtension(path.toString()); // only matches the filename, path is ignored
+    }
+
+    private static PathMatcher globMatcher(final Path root, String pattern) {
+        final PathFilter filter = PathFilter.forGlob(root.getFileSystem(), pattern);
+        // glob matches relative to root, otherwise glob is too picky
+        final int offset = filter.relativeOffset(root);
+        return path -> filter.matchesGlob(path.toString(), offset);
+    }
+
+    public static Stream<Path> findFilesByExtStream(Path root, String ext) throws IOException {
+        return walk(root).filter(extMatcher(root, ext)::matches);
+    }
+
+    public static Stream<Path> globStream(Path root, String pattern) throws IOException {
+        return walk(root).filter(globMatcher(root, pattern)::matches);
+    }
+
+    /**
+     * reducible over the matching files as File instances, the walk happens while reducing
+     * and stops when the reduction is reduced. eg. (into [] (take 5) (FS/findFilesByExtReducible root "css"))
+     */
+    public static IReduceInit findFilesByExtReducible(Path root, String ext) {
+        return reducible(root, extMatcher(root, ext));
+    }
+
+    public static IReduceInit globReducible(Path root, String pattern) {
+        return reducible(root, globMatcher(root, pattern));
+    }
+
+    private static IReduceInit reducible(final Path root, final PathMatcher matcher) {
+        return new IReduceInit() {
+            @Override
+            public Object reduce(IFn f, Object init) {
+                final Object[] acc = new Object[]{init};
+
+                FileWalker walker;
+                try {
+                    walker = FileWalker.create(root);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                while (walker.tryAdvance(path -> {
+                    if (matcher.matches(path)) {
+                        acc[0] = f.invoke(acc[0], path.toFile());
+                    }
+                })) {
+                    if (RT.isReduced(acc[0])) {
+                        return ((IDeref) acc[0]).deref();
+                    }
+                }
+
+                return acc[0];
+            }
+        };
+    }
+
+    private static IPersistentCollection collect(IReduceInit files) throws IOException {
+        try {
+            return ((ITransientCollection) files.reduce(CONJ_BANG, PersistentVector.EMPTY.asTransient())).persistent();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final IFn CONJ_BANG = new AFn() {
+        @Override
+        public Object invoke(Object coll, Object x) {
+            return ((ITransientCollection) coll).conj(x);
+        }
+    };
+
     /**
      * finds all files matching given extension recursively
      *
@@ -64,27 +148,11 @@ public class FS {
      * @throws IOException
      */
     public static IPersistentCollection findFilesByExt(Path root, String ext) throws IOException {
-        final PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:*." + ext);
-        PersistentFileVisitor visitor = new PersistentFileVisitor(root) {
-            @Override
-            public boolean keep(Path path) {
-                return matcher.matches(path.getFileName()); // only matches the filename, path is ignored
-            }
-        };
-        Files.walkFileTree(root, new HashSet<>(), Integer.MAX_VALUE, visitor);
-        return visitor.getResult();
+        return collect(findFilesByExtReducible(root, ext));
     }
 
     public static IPersistentCollection glob(Path root, String pattern) throws IOException {
-        final PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + pattern);
-        PersistentFileVisitor visitor = new PersistentFileVisitor(root) {
-            @Override
-            public boolean keep(Path path) {
-                return matcher.matches(path);
-            }
-        };
-        Files.walkFileTree(root, new HashSet<>(), Integer.MAX_VALUE, visitor);
-        return visitor.getResult();
+        return collect(globReducible(root, pattern));
     }
 
     public static IPersistentCollection glob(File root, String pattern) throws IOException {
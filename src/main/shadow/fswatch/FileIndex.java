@@ -0,0 +1,336 @@
+package shadow.fswatch;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * compact path -> mtime/size index for the files tracked by the PollingFileWatcher.
+ *
+ * files are stored as (dir id, name id) pairs of interned path segments with their state in
+ * primitive arrays, found via an open-addressing table. a tracked file costs a couple ints and
+ * longs instead of a Path, a HashMap entry and a boxed value.
+ *
+ * entry ids are stable until the entry is removed, after which they may be reused.
+ * not thread safe.
+ */
+public class FileIndex {
+
+    private final static int EMPTY = -1;
+    private final static int TOMBSTONE = -2;
+
+    public final static long HASH_UNKNOWN = -1L;
+
+    private final Path root;
+    private final String separator;
+
+    // interned file and directory names
+    private final Map<String, Integer> segmentIds = new HashMap<>();
+    private final ArrayList<String> segments = new ArrayList<>();
+
+    // directories, id 0 is root. never removed, there are few compared to files
+    private final Map<Path, Integer> dirIds = new HashMap<>();
+    private int[] dirParent = new int[64];
+    private int[] dirName = new int[64];
+    // resolved once, so path(id) only needs to resolve the file name
+    private Path[] dirPaths = new Path[64];
+    private int dirCount = 0;
+
+    // entries, name == EMPTY for removed entries
+    private int[] entryDir = new int[256];
+    private int[] entryName = new int[256];
+    private long[] entryModified = new long[256];
+    private long[] entrySize = new long[256];
+    private int[] entryMark = new int[256];
+    private long[] entryHash = new long[256];
+    private int entryCount = 0;
+
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+
+    private int size = 0;
+
+    // entry ids, linear probing
+    private int[] table = newTable(512);
+    private int tableUsed = 0;
+
+    public FileIndex(Path root) {
+        this.root = root;
+        this.separator = root.getFileSystem().getSeparator();
+        clear();
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int hash(int dir, int name) {
+        long h = (((long) dir) << 32 | (name & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    public void clear() {
+        segmentIds.clear();
+        segments.clear();
+        dirIds.clear();
+        dirCount = 0;
+        entryCount = 0;
+        freeCount = 0;
+        size = 0;
+        Arrays.fill(table, EMPTY);
+        tableUsed = 0;
+
+        Arrays.fill(dirPaths, null);
+        dirIds.put(root, addDir(root, EMPTY, EMPTY));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * upper bound for entry ids, use with isLive to iterate
+     */
+    public int capacity() {
+        return entryCount;
+    }
+
+    public boolean isLive(int id) {
+        return entryName[id] != EMPTY;
+    }
+
+    private int findSegment(String name) {
+        Integer id = segmentIds.get(name);
+        return id == null ? EMPTY : id;
+    }
+
+    private int internSegment(String name) {
+        Integer id = segmentIds.get(name);
+        if (id == null) {
+            id = segments.size();
+            segments.add(name);
+            segmentIds.put(name, id);
+        }
+        return id;
+    }
+
+    private int addDir(Path dir, int parent, int name) {
+        if (dirCount == dirParent.length) {
+            dirParent = Arrays.copyOf(dirParent, dirCount * 2);
+            dirName = Arrays.copyOf(dirName, dirCount * 2);
+            dirPaths = Arrays.copyOf(dirPaths, dirCount * 2);
+        }
+        int id = dirCount++;
+        dirParent[id] = parent;
+        dirName[id] = name;
+        dirPaths[id] = dir;
+        return id;
+    }
+
+    /**
+     * @return id of dir or -1 if dir is unknown and create is false
+     */
+    public int dirId(Path dir, boolean create) {
+        Integer id = dirIds.get(dir);
+        if (id != null) {
+            return id;
+        }
+
+        if (!create) {
+            return EMPTY;
+        }
+
+        Path parent = dir.getParent();
+        if (parent == null || !dir.startsWith(root)) {
+            throw new IllegalArgumentException("path not in root: " + dir + " root: " + root);
+        }
+
+        int parentId = dirId(parent, true);
+        int newId = addDir(dir, parentId, internSegment(dir.getFileName().toString()));
+        dirIds.put(dir, newId);
+        return newId;
+    }
+
+    public int dirOf(int id) {
+        return entryDir[id];
+    }
+
+    private int findSlot(int dir, int name) {
+        int mask = table.length - 1;
+        int slot = hash(dir, name) & mask;
+
+        while (true) {
+            int id = table[slot];
+            if (id == EMPTY) {
+                return -1;
+            }
+            if (id != TOMBSTONE && entryDir[id] == dir && entryName[id] == name) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return entry id for file or -1 if not tracked
+     */
+    public int find(Path file) {
+        int dir = dirId(file.getParent(), false);
+        if (dir == EMPTY) {
+            return EMPTY;
+        }
+        int name = findSegment(file.getFileName().toString());
+        if (name == EMPTY) {
+            return EMPTY;
+        }
+        int slot = findSlot(dir, name);
+        return slot == -1 ? EMPTY : table[slot];
+    }
+
+    /**
+     * adds a file that is not yet tracked, check with find first
+     *
+     * @return entry id for file
+     */
+    public int add(Path file, long lastModified, long size) {
+        int dir = dirId(file.getParent(), true);
+        int name = internSegment(file.getFileName().toString());
+
+        if ((tableUsed + 1) * 4 > table.length * 3) {
+            rehash();
+        }
+
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (entryCount == entryDir.length) {
+                int len = entryCount * 2;
+                entryDir = Arrays.copyOf(entryDir, len);
+                entryName = Arrays.copyOf(entryName, len);
+                entryModified = Arrays.copyOf(entryModified, len);
+                entrySize = Arrays.copyOf(entrySize, len);
+                entryMark = Arrays.copyOf(entryMark, len);
+                entryHash = Arrays.copyOf(entryHash, len);
+            }
+            id = entryCount++;
+        }
+
+        entryDir[id] = dir;
+        entryName[id] = name;
+        entryModified[id] = lastModified;
+        entrySize[id] = size;
+        entryMark[id] = 0;
+        entryHash[id] = HASH_UNKNOWN;
+
+        int mask = table.length - 1;
+        int slot = hash(dir, name) & mask;
+        while (table[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (table[slot] == EMPTY) {
+            tableUsed++;
+        }
+        table[slot] = id;
+        this.size++;
+        return id;
+    }
+
+    public void remove(int id) {
+        int slot = findSlot(entryDir[id], entryName[id]);
+        if (slot == -1) {
+            throw new IllegalStateException("entry not in table: " + id);
+        }
+        table[slot] = TOMBSTONE;
+
+        entryName[id] = EMPTY;
+        entryDir[id] = EMPTY;
+
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        size--;
+    }
+
+    // drops tombstones, grows if mostly filled by live entries
+    private void rehash() {
+        int capacity = table.length;
+        if (size * 2 >= capacity) {
+            capacity *= 2;
+        }
+
+        int[] next = newTable(capacity);
+        int mask = capacity - 1;
+
+        for (int id = 0; id < entryCount; id++) {
+            if (entryName[id] != EMPTY) {
+                int slot = hash(entryDir[id], entryName[id]) & mask;
+                while (next[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                next[slot] = id;
+            }
+        }
+
+        table = next;
+        tableUsed = size;
+    }
+
+    public long lastModified(int id) {
+        return entryModified[id];
+    }
+
+    public long size(int id) {
+        return entrySize[id];
+    }
+
+    public void update(int id, long lastModified, long size) {
+        entryModified[id] = lastModified;
+        entrySize[id] = size;
+    }
+
+    public int mark(int id) {
+        return entryMark[id];
+    }
+
+    public void setMark(int id, int mark) {
+        entryMark[id] = mark;
+    }
+
+    /**
+     * @return content hash of entry or HASH_UNKNOWN if never computed
+     */
+    public long hash(int id) {
+        return entryHash[id];
+    }
+
+    public void setHash(int id, long hash) {
+        entryHash[id] = hash;
+    }
+
+    private void appendDir(StringBuilder sb, int dir) {
+        if (dir != 0) {
+            appendDir(sb, dirParent[dir]);
+            sb.append(segments.get(dirName[dir])).append(separator);
+        }
+    }
+
+    /**
+     * @return path of entry relative to root, using the platform separator
+     */
+    public String relativeName(int id) {
+        StringBuilder sb = new StringBuilder();
+        appendDir(sb, entryDir[id]);
+        sb.append(segments.get(entryName[id]));
+        return sb.toString();
+    }
+
+    /**
+     * resolves the interned name against the cached dir path, no full path string is built
+     */
+    public Path path(int id) {
+        return dirPaths[entryDir[id]].resolve(segments.get(entryName[id]));
+    }
+}
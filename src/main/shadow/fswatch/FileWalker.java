@@ -0,0 +1,126 @@
+package shadow.fswatch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * lazy depth-first walk over all files below root, skipping hidden dirs and files.
+ *
+ * directories are only listed when the files before them have been consumed, so stopping
+ * early also stops the walk. pending directories can be split off, which lets parallel
+ * streams walk subtrees concurrently.
+ *
+ * like Files.walkFileTree without FOLLOW_LINKS symlinks are never followed and reported as files.
+ */
+class FileWalker implements Spliterator<Path> {
+
+    private final boolean dos;
+    private final ArrayDeque<Path> pendingDirs;
+    private final ArrayDeque<Path> pendingFiles = new ArrayDeque<>();
+
+    private FileWalker(boolean dos, ArrayDeque<Path> pendingDirs) {
+        this.dos = dos;
+        this.pendingDirs = pendingDirs;
+    }
+
+    static FileWalker create(Path root) throws IOException {
+        // windows needs the dos attributes to check hidden, read them together with the
+        // basic attributes instead of a second call for every entry. linux also offers
+        // a dos view (via xattrs) but hidden there means a leading dot
+        boolean dos = !root.getFileSystem().supportedFileAttributeViews().contains("posix");
+
+        ArrayDeque<Path> pending = new ArrayDeque<>();
+        if (!isHidden(dos, root, readAttributes(dos, root))) {
+            pending.add(root);
+        }
+
+        return new FileWalker(dos, pending);
+    }
+
+    private static BasicFileAttributes readAttributes(boolean dos, Path path) throws IOException {
+        if (dos) {
+            return Files.readAttributes(path, DosFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } else {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    private static boolean isHidden(boolean dos, Path path, BasicFileAttributes attrs) {
+        if (dos) {
+            return ((DosFileAttributes) attrs).isHidden();
+        }
+
+        // same as File.isHidden on unix, no need to ask the filesystem
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    private void listNextDir() {
+        Path dir = pendingDirs.pollLast();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                BasicFileAttributes attrs = readAttributes(dos, child);
+                if (isHidden(dos, child, attrs)) {
+                    continue;
+                }
+
+                if (attrs.isDirectory()) {
+                    pendingDirs.add(child);
+                } else {
+                    pendingFiles.add(child);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Path> action) {
+        while (pendingFiles.isEmpty()) {
+            if (pendingDirs.isEmpty()) {
+                return false;
+            }
+            listNextDir();
+        }
+
+        action.accept(pendingFiles.poll());
+        return true;
+    }
+
+    @Override
+    public Spliterator<Path> trySplit() {
+        // only root pending, list it so there is something to split
+        if (pendingDirs.size() == 1 && pendingFiles.isEmpty()) {
+            listNextDir();
+        }
+
+        int n = pendingDirs.size() / 2;
+        if (n == 0) {
+            return null;
+        }
+
+        ArrayDeque<Path> split = new ArrayDeque<>(n);
+        for (int i = 0; i < n; i++) {
+            split.add(pendingDirs.pollFirst());
+        }
+        return new FileWalker(dos, split);
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL;
+    }
+}
@@ -6,38 +6,54 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.EnumSet;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
-public class FileWatcher implements AutoCloseable, IFileWatcher {
+public class FileWatcher implements AutoCloseable, IEventFileWatcher {
 
     private final Path root;
     private final WatchService ws;
     private final Map<WatchKey, Path> keys;
-    private final List<String> extensions;
+    private final ChangeTracker tracker;
+
+    // used to recover events lost to an OVERFLOW
+    private final WatchedFiles files;
 
     FileWatcher(Path dir, List<String> extensions) throws IOException {
         this.root = dir.toAbsolutePath();
 
         this.keys = new HashMap<>();
-        this.extensions = extensions;
+        this.tracker = new ChangeTracker(this.root, extensions);
+        this.files = new WatchedFiles(this.root, this.tracker);
         this.ws = this.root.getFileSystem().newWatchService();
 
-        registerAll(this.root);
+        registerAll(this.root, null);
+    }
+
+    /**
+     * only report :mod if the content of the file actually changed. hashes are computed
+     * lazily when a file first has an event, so the first :mod of any file is always reported.
+     */
+    public void setContentHashing(boolean contentHashing) {
+        tracker.setContentHashing(contentHashing);
+    }
+
+    int registeredDirs() {
+        return keys.size();
     }
 
     @Override
     public void close() throws Exception {
         this.keys.clear();
+        this.tracker.clear();
+        this.files.clear();
         this.ws.close();
     }
 
     @SuppressWarnings("unchecked")
-    private Path eventPath(WatchEvent event) {
+    static Path eventPath(WatchEvent event) {
         WatchEvent<Path> ev = (WatchEvent<Path>) event;
         return ev.context();
     }
@@ -45,10 +61,17 @@ public class FileWatcher implements AutoCloseable, IFileWatcher {
     public static boolean shouldIgnoreDir(Path dir) throws IOException {
         // never interested in changes in cljs-runtime, since we are doing the changes
         // also potentially a lot of files here, so save some time
-        return Files.isHidden(dir) || "cljs-runtime".equals(dir.getFileName().toString());
+        return PathFilter.DEFAULT.isIgnoredDir(dir);
     }
 
-    private void registerAll(final Path start) throws IOException {
+    /**
+     * registers all dirs and indexes all watched files below start
+     *
+     * @param changes when not null, files not indexed yet are recorded as new
+     */
+    private ITransientMap registerAll(final Path start, final ITransientMap changes) throws IOException {
+        final ITransientMap[] result = new ITransientMap[]{changes};
+
         Files.walkFileTree(
                 start,
                 EnumSet.allOf(FileVisitOption.class),
@@ -63,23 +86,27 @@ public class FileWatcher implements AutoCloseable, IFileWatcher {
                             return FileVisitResult.CONTINUE;
                         }
                     }
-                });
-    }
 
-    private boolean matchesExtension(String name) {
-        for (String ext : extensions) {
-            if (name.endsWith("." + ext)) {
-                return true;
-            }
-        }
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        result[0] = files.add(file, attrs, result[0]);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
 
-        return false;
+        return result[0];
     }
 
+    private final WatchedFiles.Registrar registrar = new WatchedFiles.Registrar() {
+        @Override
+        public Set<Path> knownDirs() {
+            return new HashSet<>(keys.values());
+        }
 
-    private final static Keyword KW_NEW = RT.keyword(null, "new");
-    private final static Keyword KW_MOD = RT.keyword(null, "mod");
-    private final static Keyword KW_DEL = RT.keyword(null, "del");
+        @Override
+        public ITransientMap registerAll(Path dir, ITransientMap changes) throws IOException {
+            return FileWatcher.this.registerAll(dir, changes);
+        }
+    };
 
     /**
      * non-blocking operation to gather all changes. polls the watchservice for changes
@@ -95,72 +122,108 @@ public class FileWatcher implements AutoCloseable, IFileWatcher {
         WatchKey key = ws.poll();
 
         while (key != null) {
-            Path dir = keys.get(key);
-            if (dir == null) {
-                throw new IllegalStateException("got a key for a path we don't know: " + key);
+            changes = processKey(key, changes);
+            key = ws.poll();
+        }
+
+        if (files.hasOverflowed()) {
+            changes = files.recover(changes, registrar);
+        }
+
+        return changes.persistent();
+    }
+
+    /**
+     * blocking operation that returns as soon as changes are available. after the first event
+     * it keeps collecting until no new events arrived for quietMillis, so bulk operations such
+     * as a git pull end up in a single map instead of several.
+     *
+     * @param quietMillis time without events before returning
+     * @param maxWaitMillis upper bound for collecting, so constant writes can't delay forever
+     * @param timeoutMillis time to wait for the first change, returns empty map if none arrived
+     * @return {"path-to-file" :new|:mod|:del} or empty map
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public IPersistentMap waitForChanges(long quietMillis, long maxWaitMillis, long timeoutMillis) throws IOException, InterruptedException {
+        ITransientMap changes = PersistentHashMap.EMPTY.asTransient();
+
+        long timeout = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        // events may not result in changes, eg. for directories or other extensions
+        // so keep waiting for the first relevant one
+        while (changes.count() == 0) {
+            long remaining = timeout - System.nanoTime();
+            if (remaining <= 0) {
+                break;
             }
 
-            for (WatchEvent<?> event : key.pollEvents()) {
-                WatchEvent.Kind kind = event.kind();
+            WatchKey key = ws.poll(remaining, TimeUnit.NANOSECONDS);
+            if (key == null) {
+                break;
+            }
 
-                if (kind == OVERFLOW) {
-                    continue;
-                }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
 
-                Path name = eventPath(event);
-                Path resolvedName = dir.resolve(name);
-                Path child = root.relativize(resolvedName);
-                String childName = child.toString();
-
-                if (Files.isDirectory(resolvedName)) {
-                    // monitor new directories
-                    // deleted directories will cause the key to become invalid and removed later
-                    // not interested in modify
-                    if (kind == ENTRY_CREATE) {
-                        registerAll(resolvedName);
-                    }
-                } else if (child.getFileName().toString().startsWith(".#")) {
-                    // emacs on windows creates a .#x.cljs file for each x.cljs which we should never
-                    // be interested in or act on. It does not appear to be a hidden file for some reason.
-                    // I can't think of a legit reason to ever use a filename like this for any CLJS resources or assets
-                    // so just ignore it globally
-                } else if (matchesExtension(childName)) {
-                    if (kind == ENTRY_DELETE) {
-                        changes = changes.assoc(childName, KW_DEL);
-                    } else {
-                        // windows is really picky here, fails with exception when asking if a
-                        // deleted file is hidden
-                        // intellij on windows seems to
-                        // create a temp file
-                        // modify the temp file
-                        // swap temp file -> real file
-                        // delete temp file
-                        // for every file save, this really confuses the watcher
-                        if (Files.exists(resolvedName) && !Files.isHidden(resolvedName)) {
-                            if (kind == ENTRY_CREATE) {
-                                changes = changes.assoc(childName, KW_NEW);
-                            } else if (kind == ENTRY_MODIFY && !KW_NEW.equals(changes.valAt(childName))) {
-                                // only assoc as :mod event if not already :new
-                                // depending on OS there is a :new followed by an immediate :mod
-                                // need the new status more than the mod for greedy builds
-                                changes = changes.assoc(childName, KW_MOD);
-                            }
-                        }
-                    }
+            while (key != null) {
+                changes = processKey(key, changes);
+
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    // pick up what is already queued, the rest goes into the next batch
+                    key = ws.poll();
+                } else {
+                    key = ws.poll(Math.min(left, TimeUnit.MILLISECONDS.toNanos(quietMillis)), TimeUnit.NANOSECONDS);
                 }
             }
 
-            boolean valid = key.reset();
-            if (!valid) { // deleted dirs are no longer valid
-                keys.remove(key);
+            if (files.hasOverflowed()) {
+                changes = files.recover(changes, registrar);
             }
-
-            key = ws.poll();
         }
 
         return changes.persistent();
     }
 
+    private ITransientMap processKey(WatchKey key, ITransientMap changes) throws IOException {
+        Path dir = keys.get(key);
+        if (dir == null) {
+            throw new IllegalStateException("got a key for a path we don't know: " + key);
+        }
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind kind = event.kind();
+
+            if (kind == OVERFLOW) {
+                // events for this dir were lost, rescan once all keys are processed
+                files.overflowed(dir);
+                continue;
+            }
+
+            Path name = eventPath(event);
+            Path resolvedName = dir.resolve(name);
+
+            if (Files.isDirectory(resolvedName)) {
+                // monitor new directories
+                // deleted directories will cause the key to become invalid and removed later
+                // not interested in modify
+                if (kind == ENTRY_CREATE) {
+                    registerAll(resolvedName, null);
+                }
+            } else {
+                changes = tracker.record(changes, kind, resolvedName);
+                files.update(resolvedName);
+            }
+        }
+
+        boolean valid = key.reset();
+        if (!valid) { // deleted dirs are no longer valid
+            keys.remove(key);
+        }
+
+        return changes;
+    }
+
     public static FileWatcher create(Path dir, List<String> extensions) throws IOException {
         return new FileWatcher(dir, extensions);
     }
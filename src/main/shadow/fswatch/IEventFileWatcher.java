@@ -0,0 +1,9 @@
+package shadow.fswatch;
+
+import clojure.lang.IPersistentMap;
+
+import java.io.IOException;
+
+public interface IEventFileWatcher extends IFileWatcher, AutoCloseable {
+    IPersistentMap waitForChanges(long quietMillis, long maxWaitMillis, long timeoutMillis) throws IOException, InterruptedException;
+}
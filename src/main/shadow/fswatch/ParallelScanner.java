@@ -0,0 +1,96 @@
+package shadow.fswatch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * walks a directory tree by splitting subdirectories across a ForkJoinPool.
+ *
+ * each directory is listed by its own task, results are merged up the task tree
+ * so no shared state or locking is needed. follows the same rules as Files.walkFileTree
+ * without FOLLOW_LINKS, so symlinks are reported as files and never descended into.
+ */
+public class ParallelScanner {
+
+    public interface Filter {
+        boolean acceptDir(Path dir) throws IOException;
+
+        boolean acceptFile(Path file, BasicFileAttributes attrs) throws IOException;
+    }
+
+    public static class Found {
+        public final Path file;
+        public final BasicFileAttributes attrs;
+
+        Found(Path file, BasicFileAttributes attrs) {
+            this.file = file;
+            this.attrs = attrs;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Filter filter;
+
+    public ParallelScanner(ForkJoinPool pool, Filter filter) {
+        this.pool = pool;
+        this.filter = filter;
+    }
+
+    public List<Found> scan(Path root) throws IOException {
+        if (!filter.acceptDir(root)) {
+            return new ArrayList<>();
+        }
+
+        try {
+            return pool.invoke(new DirTask(root));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class DirTask extends RecursiveTask<List<Found>> {
+        private final Path dir;
+
+        DirTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<Found> compute() {
+            try {
+                List<Found> result = new ArrayList<>();
+                List<DirTask> subTasks = new ArrayList<>();
+
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path child : stream) {
+                        BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+
+                        if (attrs.isDirectory()) {
+                            if (filter.acceptDir(child)) {
+                                DirTask task = new DirTask(child);
+                                task.fork();
+                                subTasks.add(task);
+                            }
+                        } else if (filter.acceptFile(child, attrs)) {
+                            result.add(new Found(child, attrs));
+                        }
+                    }
+                }
+
+                for (DirTask task : subTasks) {
+                    result.addAll(task.join());
+                }
+
+                return result;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package shadow.fswatch;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * precompiled file filter shared by the watchers and FS.glob.
+ *
+ * extensions, globs and the ignore rules are compiled once and matched directly against
+ * the chars of a path string, so checking a file does not create Strings or Paths.
+ * Path.toString is cached by the default filesystems.
+ *
+ * files are accepted when they are not hidden, not an emacs .# lock file, end with one
+ * of the extensions (if any) and match one of the globs (if any). globs use the same syntax
+ * as FileSystem.getPathMatcher("glob:...") and match the path relative to the root.
+ *
+ * dirs are ignored when they are hidden or their name is one of the ignored dir names.
+ */
+public class PathFilter {
+
+    public static final List<String> DEFAULT_IGNORED_DIRS = List.of("cljs-runtime");
+
+    // only used for dirs, no extension rules
+    static final PathFilter DEFAULT = new PathFilter(FileSystems.getDefault(), List.of(), List.of(), DEFAULT_IGNORED_DIRS);
+
+    private final char separator;
+    // windows needs to ask the filesystem whether something is hidden and globs ignore case
+    private final boolean posix;
+
+    // extensions bucketed by their last char, non ascii ends go into bucket 0
+    private final String[][] extensionsByLastChar = new String[128][];
+    private final boolean anyExtension;
+    // extensions are stored lower case and compared ignoring case
+    private final boolean extensionsIgnoreCase;
+
+    private final Glob[] globs;
+    private final String[] ignoredDirs;
+
+    public PathFilter(FileSystem fs, Collection<String> extensions, Collection<String> globs, Collection<String> ignoredDirs) {
+        this(fs, extensions, false, globs, ignoredDirs);
+    }
+
+    PathFilter(FileSystem fs, Collection<String> extensions, boolean extensionsIgnoreCase, Collection<String> globs, Collection<String> ignoredDirs) {
+        this.separator = fs.getSeparator().charAt(0);
+        this.posix = fs.supportedFileAttributeViews().contains("posix");
+
+        this.anyExtension = extensions.isEmpty();
+        this.extensionsIgnoreCase = extensionsIgnoreCase;
+        for (String ext : extensions) {
+            if (extensionsIgnoreCase) {
+                ext = ext.toLowerCase(Locale.ROOT);
+            }
+            int bucket = bucket(ext.charAt(ext.length() - 1));
+            String[] prev = extensionsByLastChar[bucket];
+            if (prev == null) {
+                extensionsByLastChar[bucket] = new String[]{ext};
+            } else {
+                String[] next = Arrays.copyOf(prev, prev.length + 1);
+                next[prev.length] = ext;
+                extensionsByLastChar[bucket] = next;
+            }
+        }
+
+        List<Glob> compiled = new ArrayList<>();
+        for (String glob : globs) {
+            for (String expanded : expandBraces(glob)) {
+                compiled.add(new Glob(expanded, !posix));
+            }
+        }
+        this.globs = compiled.toArray(new Glob[0]);
+        this.ignoredDirs = ignoredDirs.toArray(new String[0]);
+    }
+
+    public static PathFilter forExtensions(Collection<String> extensions) {
+        return new PathFilter(FileSystems.getDefault(), extensions, List.of(), DEFAULT_IGNORED_DIRS);
+    }
+
+    /**
+     * same as a "glob:*.ext" PathMatcher on the file name, which ignores case on windows
+     */
+    public static PathFilter forExtensionGlob(FileSystem fs, String ext) {
+        boolean posix = fs.supportedFileAttributeViews().contains("posix");
+        return new PathFilter(fs, List.of(ext), !posix, List.of(), List.of());
+    }
+
+    public static PathFilter forGlob(FileSystem fs, String glob) {
+        return new PathFilter(fs, List.of(), List.of(glob), List.of());
+    }
+
+    private static int bucket(char c) {
+        return c < 128 ? c : 0;
+    }
+
+    private boolean isSeparator(char c) {
+        return c == '/' || c == separator;
+    }
+
+    // index of the first char of the last name in path
+    private int nameStart(String path) {
+        int i = path.length() - 1;
+        while (i >= 0 && !isSeparator(path.charAt(i))) {
+            i--;
+        }
+        return i + 1;
+    }
+
+    /**
+     * @param s path string relative to some root, only the part after the last separator is checked
+     */
+    public boolean matchesExtension(CharSequence s) {
+        if (anyExtension) {
+            return true;
+        }
+
+        int len = s.length();
+        if (len == 0) {
+            return false;
+        }
+
+        char last = s.charAt(len - 1);
+        if (extensionsIgnoreCase) {
+            last = Character.toLowerCase(last);
+        }
+
+        String[] candidates = extensionsByLastChar[bucket(last)];
+        if (candidates == null) {
+            return false;
+        }
+
+        outer:
+        for (String ext : candidates) {
+            int extLen = ext.length();
+            int dot = len - extLen - 1;
+            // need at least one char before the dot and no separator, .cljs is not a cljs file
+            if (dot < 1 || s.charAt(dot) != '.' || isSeparator(s.charAt(dot - 1))) {
+                continue;
+            }
+            for (int i = 0; i < extLen; i++) {
+                char c = s.charAt(dot + 1 + i);
+                if (c != ext.charAt(i) && !(extensionsIgnoreCase && Character.toLowerCase(c) == ext.charAt(i))) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param s path string, matching starts at offset which should be the start of the path relative to the glob root
+     */
+    public boolean matchesGlob(CharSequence s, int offset) {
+        if (globs.length == 0) {
+            return true;
+        }
+        for (Glob glob : globs) {
+            if (glob.matches(s, offset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * offset of the path relative to root in the string of any path below root
+     */
+    public int relativeOffset(Path root) {
+        String s = root.toString();
+        if (s.isEmpty()) {
+            return 0;
+        }
+        return isSeparator(s.charAt(s.length() - 1)) ? s.length() : s.length() + 1;
+    }
+
+    public boolean isHidden(Path path) throws IOException {
+        String s = path.toString();
+        return isHidden(path, s, nameStart(s));
+    }
+
+    private boolean isHidden(Path path, String s, int nameStart) throws IOException {
+        if (posix) {
+            // same as Files.isHidden on unix, no need to ask the filesystem
+            return nameStart < s.length() && s.charAt(nameStart) == '.';
+        }
+        return Files.isHidden(path);
+    }
+
+    public boolean isIgnoredDir(Path dir) throws IOException {
+        String s = dir.toString();
+        int start = nameStart(s);
+
+        if (isHidden(dir, s, start)) {
+            return true;
+        }
+
+        int nameLen = s.length() - start;
+        for (String ignored : ignoredDirs) {
+            if (ignored.length() == nameLen && s.regionMatches(start, ignored, 0, nameLen)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * emacs on windows creates a .#x.cljs file for each x.cljs which we should never
+     * be interested in or act on. It does not appear to be a hidden file for some reason.
+     */
+    public boolean isLockFile(CharSequence s) {
+        int start = s.length() - 1;
+        while (start >= 0 && !isSeparator(s.charAt(start))) {
+            start--;
+        }
+        start++;
+        return s.length() - start >= 2 && s.charAt(start) == '.' && s.charAt(start + 1) == '#';
+    }
+
+    /**
+     * checks names only, does not check that file actually is a regular file
+     *
+     * @param relativeOffset from relativeOffset(root), only used for globs
+     */
+    public boolean acceptFile(Path file, int relativeOffset) throws IOException {
+        String s = file.toString();
+        int start = nameStart(s);
+
+        if (s.length() - start >= 2 && s.charAt(start) == '.' && s.charAt(start + 1) == '#') {
+            return false;
+        }
+
+        return matchesExtension(s)
+                && matchesGlob(s, relativeOffset)
+                && !isHidden(file, s, start);
+    }
+
+    // {a,b} is not nested in glob syntax, expand to separate patterns so Glob only deals with one
+    static List<String> expandBraces(String glob) {
+        int open = -1;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                // braces inside a class are literal
+                while (i < glob.length() && glob.charAt(i) != ']') {
+                    i++;
+                }
+            } else if (c == '{') {
+                open = i;
+                break;
+            }
+        }
+
+        if (open == -1) {
+            return List.of(glob);
+        }
+
+        int close = glob.indexOf('}', open);
+        if (close == -1) {
+            throw new PatternSyntaxException("Missing '}'", glob, open);
+        }
+        int nested = glob.indexOf('{', open + 1);
+        if (nested != -1 && nested < close) {
+            // same as the PathMatcher
+            throw new PatternSyntaxException("Cannot nest groups", glob, nested);
+        }
+
+        String prefix = glob.substring(0, open);
+        String suffix = glob.substring(close + 1);
+
+        List<String> result = new ArrayList<>();
+        for (String alt : glob.substring(open + 1, close).split(",", -1)) {
+            result.addAll(expandBraces(prefix + alt + suffix));
+        }
+        return result;
+    }
+
+    /**
+     * single glob without braces compiled to an op array. chars are literal, negative ops are wildcards.
+     */
+    static class Glob {
+        private static final int ANY = -1; // ?
+        private static final int STAR = -2; // *, does not cross separators
+        private static final int DOUBLE_STAR = -3; // **
+        private static final int SEPARATOR = -4; // /
+        private static final int CLASS = -5; // [...], CLASS - n refers to classes[n]
+
+        private final int[] ops;
+        // pairs of inclusive ranges, negated classes start with a 1 entry
+        private final char[][] classes;
+        private final boolean ignoreCase;
+
+        Glob(String pattern, boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+
+            int[] ops = new int[pattern.length()];
+            int count = 0;
+            List<char[]> classes = new ArrayList<>();
+
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                switch (c) {
+                    case '\\':
+                        if (++i == pattern.length()) {
+                            throw new PatternSyntaxException("No character to escape", pattern, i - 1);
+                        }
+                        ops[count++] = pattern.charAt(i);
+                        break;
+                    case '/':
+                        ops[count++] = SEPARATOR;
+                        break;
+                    case '?':
+                        ops[count++] = ANY;
+                        break;
+                    case '*':
+                        if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                            i++;
+                            ops[count++] = DOUBLE_STAR;
+                        } else {
+                            ops[count++] = STAR;
+                        }
+                        break;
+                    case '[': {
+                        StringBuilder ranges = new StringBuilder();
+                        int j = i + 1;
+                        if (j < pattern.length() && pattern.charAt(j) == '!') {
+                            ranges.append((char) 1);
+                            j++;
+                        } else {
+                            ranges.append((char) 0);
+                        }
+                        while (j < pattern.length() && pattern.charAt(j) != ']') {
+                            char lo = pattern.charAt(j);
+                            char hi = lo;
+                            if (j + 2 < pattern.length() && pattern.charAt(j + 1) == '-' && pattern.charAt(j + 2) != ']') {
+                                hi = pattern.charAt(j + 2);
+                                j += 2;
+                            }
+                            ranges.append(lo).append(hi);
+                            j++;
+                        }
+                        if (j == pattern.length()) {
+                            throw new PatternSyntaxException("Missing ']'", pattern, i);
+                        }
+                        char[] cls = new char[ranges.length()];
+                        ranges.getChars(0, cls.length, cls, 0);
+                        ops[count++] = CLASS - classes.size();
+                        classes.add(cls);
+                        i = j;
+                        break;
+                    }
+                    default:
+                        ops[count++] = c;
+                }
+            }
+
+            this.ops = Arrays.copyOf(ops, count);
+            this.classes = classes.toArray(new char[0][]);
+        }
+
+        private static boolean isSeparator(char c) {
+            return c == '/' || c == '\\';
+        }
+
+        private boolean sameChar(char a, char b) {
+            return a == b || (ignoreCase && Character.toLowerCase(a) == Character.toLowerCase(b));
+        }
+
+        private boolean inClass(char[] cls, char c) {
+            boolean found = false;
+            for (int i = 1; i < cls.length; i += 2) {
+                if ((c >= cls[i] && c <= cls[i + 1])
+                        || (ignoreCase && Character.toLowerCase(c) >= Character.toLowerCase(cls[i]) && Character.toLowerCase(c) <= Character.toLowerCase(cls[i + 1]))) {
+                    found = true;
+                    break;
+                }
+            }
+            return found != (cls[0] == 1);
+        }
+
+        boolean matches(CharSequence s, int offset) {
+            return matches(0, s, offset);
+        }
+
+        private boolean matches(int op, CharSequence s, int pos) {
+            int end = s.length();
+
+            while (op < ops.length) {
+                int o = ops[op];
+
+                if (o == STAR || o == DOUBLE_STAR) {
+                    op++;
+                    for (int p = pos; p <= end; p++) {
+                        if (matches(op, s, p)) {
+                            return true;
+                        }
+                        if (p < end && o == STAR && isSeparator(s.charAt(p))) {
+                            return false;
+                        }
+                    }
+                    return false;
+                }
+
+                if (pos == end) {
+                    return false;
+                }
+
+                char c = s.charAt(pos);
+                if (o == ANY) {
+                    if (isSeparator(c)) {
+                        return false;
+                    }
+                } else if (o == SEPARATOR) {
+                    if (!isSeparator(c)) {
+                        return false;
+                    }
+                } else if (o <= CLASS) {
+                    if (isSeparator(c) || !inClass(classes[CLASS - o], c)) {
+                        return false;
+                    }
+                } else if (!sameChar((char) o, c)) {
+                    return false;
+                }
+
+                op++;
+                pos++;
+            }
+
+            return pos == end;
+        }
+    }
+}
@@ -6,18 +6,37 @@ import clojure.lang.Keyword;
 import clojure.lang.PersistentHashMap;
 import clojure.lang.RT;
 
-import java.io.IOException;
+import java.io.*;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class PollingFileWatcher implements AutoCloseable, IFileWatcher {
 
     private final Path root;
     private final Set<String> extensions;
-    private final Map<Path, Long> lastModifiedMap = new HashMap<>();
+    private final PathFilter filter;
+    private final FileIndex index;
 
     private int pollCount = 0;
+    private int scanCount = 0;
+    private boolean initialized = false;
+    private Path snapshotFile = null;
+    private ParallelScanner parallelScanner = null;
+
+    private final Map<Path, DirState> dirStates = new HashMap<>();
+    private boolean pruneDirs = false;
+    private boolean quickScanDirsOnly = false;
+    private boolean contentHashing = false;
+
+    // directory mtimes this recent are not trusted, the fs may have a coarse mtime resolution
+    // and another change in the same tick would go unnoticed. those dirs are listed again next scan.
+    private final static long RACY_DIR_MILLIS = 2000;
+
+    private final static int SNAPSHOT_MAGIC = 0x53465753;
+    private final static int SNAPSHOT_VERSION = 1;
 
     private final static Keyword KW_NEW = RT.keyword(null, "new");
     private final static Keyword KW_MOD = RT.keyword(null, "mod");
@@ -26,33 +45,233 @@ public class PollingFileWatcher implements AutoCloseable, IFileWatcher {
     public PollingFileWatcher(Path dir, Set<String> extensions) {
         this.root = dir.toAbsolutePath();
         this.extensions = extensions;
+        this.filter = PathFilter.forExtensions(extensions);
+        this.index = new FileIndex(this.root);
+    }
+
+    private static class DirState {
+        // null when the mtime was too recent to be trusted
+        final FileTime lastModified;
+        final int dirId;
+        // FileIndex entry ids, only valid while the entry still belongs to dirId
+        int[] files;
+        final Set<Path> subdirs = new HashSet<>();
+
+        DirState(FileTime lastModified, int dirId, int[] files) {
+            this.lastModified = lastModified;
+            this.dirId = dirId;
+            this.files = files;
+        }
+
+        boolean owns(FileIndex index, int id) {
+            return index.isLive(id) && index.dirOf(id) == dirId;
+        }
+    }
+
+    private boolean isModified(int id, BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().toMillis() > index.lastModified(id) || attrs.size() != index.size(id);
+    }
+
+    private void update(int id, BasicFileAttributes attrs) {
+        index.update(id, attrs.lastModifiedTime().toMillis(), attrs.size());
+    }
+
+    /**
+     * only called for files whose mtime or size changed. hashes are computed lazily,
+     * so the first change of a file is always reported since there is nothing to compare to.
+     */
+    private boolean isContentModified(int id, Path file) {
+        if (!contentHashing) {
+            return true;
+        }
+
+        long prev = index.hash(id);
+        try {
+            long hash = ContentHash.hash(file);
+            index.setHash(id, hash);
+            return prev != hash;
+        } catch (IOException e) {
+            index.setHash(id, FileIndex.HASH_UNKNOWN);
+            return true;
+        }
+    }
+
+    /**
+     * full scans will list directories in parallel using the given pool instead of
+     * walking the tree on the calling thread. changes are still computed on the calling thread.
+     */
+    public void setScanPool(ForkJoinPool pool) {
+        if (pool == null) {
+            this.parallelScanner = null;
+        } else {
+            this.parallelScanner = new ParallelScanner(pool, new ParallelScanner.Filter() {
+                @Override
+                public boolean acceptDir(Path dir) throws IOException {
+                    return !filter.isIgnoredDir(dir);
+                }
+
+                @Override
+                public boolean acceptFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    return isWatchedFile(file, attrs);
+                }
+            });
+        }
+    }
+
+    /**
+     * tracks directory mtimes so full scans only list directories whose mtime changed.
+     * files in unchanged directories are still checked for modifications.
+     *
+     * pruned scans always run on the calling thread.
+     */
+    public void setPruneDirs(boolean pruneDirs) {
+        this.pruneDirs = pruneDirs;
+        this.dirStates.clear();
+    }
+
+    /**
+     * when pruning directories quick scans will only check directories and the files of
+     * directories whose mtime changed. file modifications only change the mtime of the
+     * directory when editors save via temp file and rename, so in-place writes are only
+     * picked up by the next full scan.
+     */
+    public void setQuickScanDirsOnly(boolean quickScanDirsOnly) {
+        this.quickScanDirsOnly = quickScanDirsOnly;
+    }
+
+    /**
+     * only report :mod if the content of the file actually changed, not just the mtime.
+     */
+    public void setContentHashing(boolean contentHashing) {
+        this.contentHashing = contentHashing;
     }
 
     public void initialScan() throws IOException {
-        Files.walkFileTree(root, new InitialScan());
+        if (pruneDirs) {
+            if (!filter.isIgnoredDir(root)) {
+                scanDir(root, true, false, PersistentHashMap.EMPTY.asTransient());
+            }
+        } else if (parallelScanner != null) {
+            for (ParallelScanner.Found found : parallelScanner.scan(root)) {
+                checkFile(null, found.file, found.attrs, true);
+            }
+        } else {
+            Files.walkFileTree(root, new InitialScan());
+        }
+        initialized = true;
         pollCount++;
     }
 
+    /**
+     * restores the state written by a previous watcher for the same root and extensions.
+     * the file is remembered and written again on close.
+     *
+     * the first fullScan after a successful restore is not treated as initial and reports
+     * all :new/:mod/:del changes that happened while nothing was watching.
+     *
+     * @param file snapshot file, doesn't need to exist
+     * @return true if the snapshot was restored
+     */
+    public boolean useSnapshot(Path file) {
+        this.snapshotFile = file;
+
+        if (initialized || !Files.isRegularFile(file)) {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                return false;
+            }
+
+            if (!root.toString().equals(in.readUTF())) {
+                return false;
+            }
+
+            int numExtensions = in.readInt();
+            Set<String> snapshotExtensions = new HashSet<>();
+            for (int i = 0; i < numExtensions; i++) {
+                snapshotExtensions.add(in.readUTF());
+            }
+
+            // different extensions would report bogus :new/:del events, just start fresh
+            if (!extensions.equals(snapshotExtensions)) {
+                return false;
+            }
+
+            int numFiles = in.readInt();
+            for (int i = 0; i < numFiles; i++) {
+                Path path = root.resolve(in.readUTF());
+                long lastModified = in.readLong();
+                long size = in.readLong();
+                if (index.find(path) == -1) {
+                    index.add(path, lastModified, size);
+                }
+            }
+
+            initialized = true;
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            // corrupt or truncated snapshot, just do a regular initial scan
+            index.clear();
+            return false;
+        }
+    }
+
+    public void writeSnapshot(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+
+        // write to temp file first, so a crash never leaves a partial snapshot behind
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeUTF(root.toString());
+
+            out.writeInt(extensions.size());
+            for (String ext : extensions) {
+                out.writeUTF(ext);
+            }
+
+            out.writeInt(index.size());
+            for (int id = 0; id < index.capacity(); id++) {
+                if (index.isLive(id)) {
+                    out.writeUTF(index.relativeName(id));
+                    out.writeLong(index.lastModified(id));
+                    out.writeLong(index.size(id));
+                }
+            }
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     public IPersistentMap quickScan() {
         ITransientMap changes = PersistentHashMap.EMPTY.asTransient();
 
-        Iterator<Map.Entry<Path, Long>> it = lastModifiedMap.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<Path, Long> entry = it.next();
-            Path file = entry.getKey();
-            Long lastModified = entry.getValue();
+        for (int id = 0; id < index.capacity(); id++) {
+            if (!index.isLive(id)) {
+                continue;
+            }
 
+            Path file = index.path(id);
             try {
-                long currentModified = Files.getLastModifiedTime(file).toMillis();
-                if (currentModified > lastModified) {
-                    entry.setValue(currentModified);
-                    changes = addChange(changes, file, KW_MOD);
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (isModified(id, attrs)) {
+                    update(id, attrs);
+                    if (isContentModified(id, file)) {
+                        changes = addChange(changes, id, KW_MOD);
+                    }
                 }
             } catch (IOException e) {
                 // assume file was deleted on any exception
                 // FIXME: probably better way to detect that
-                it.remove();
-                changes = addChange(changes, file, KW_DEL);
+                changes = addChange(changes, id, KW_DEL);
+                index.remove(id);
             }
         }
 
@@ -61,47 +280,215 @@ public class PollingFileWatcher implements AutoCloseable, IFileWatcher {
 
     public IPersistentMap fullScan() throws IOException {
         ITransientMap changes = PersistentHashMap.EMPTY.asTransient();
-        Set<Path> foundFiles = new HashSet<>();
-
-        boolean initial = pollCount == 0;
 
-        FullScan visitor = new FullScan(foundFiles, initial, changes);
+        boolean initial = !initialized;
 
-        Files.walkFileTree(root, visitor);
+        // every file found by this scan is marked with scanCount
+        scanCount++;
 
-        changes = visitor.changes;
+        if (pruneDirs) {
+            if (!filter.isIgnoredDir(root)) {
+                changes = scanDir(root, initial, true, changes);
+            }
+        } else if (parallelScanner != null) {
+            for (ParallelScanner.Found found : parallelScanner.scan(root)) {
+                changes = checkFile(changes, found.file, found.attrs, initial);
+            }
+        } else {
+            FullScan visitor = new FullScan(initial, changes);
+            Files.walkFileTree(root, visitor);
+            changes = visitor.changes;
+        }
+        initialized = true;
 
         // Check for deletions
-        Iterator<Path> it = lastModifiedMap.keySet().iterator();
-        while (it.hasNext()) {
-            Path file = it.next();
-            if (!foundFiles.contains(file)) {
-                it.remove();
+        for (int id = 0; id < index.capacity(); id++) {
+            if (index.isLive(id) && index.mark(id) != scanCount) {
                 if (!initial) {
-                    changes = addChange(changes, file, KW_DEL);
+                    changes = addChange(changes, id, KW_DEL);
                 }
+                index.remove(id);
             }
         }
 
         return changes.persistent();
     }
 
-    private ITransientMap addChangeToMap(ITransientMap map, String relativeName, Keyword kind) {
-        return map.assoc(relativeName, kind);
+    public IPersistentMap quickScanDirs() throws IOException {
+        ITransientMap changes = PersistentHashMap.EMPTY.asTransient();
+        if (!filter.isIgnoredDir(root)) {
+            changes = scanDir(root, false, false, changes);
+        }
+        return changes.persistent();
     }
 
-    private ITransientMap addChange(ITransientMap map, Path file, Keyword kind) {
-        String relativeName = root.relativize(file).toString();
-        return addChangeToMap(map, relativeName, kind);
+    private static boolean isRacy(FileTime mtime) {
+        return System.currentTimeMillis() - mtime.toMillis() < RACY_DIR_MILLIS;
     }
 
-    private boolean matchesExtension(String name) {
-        int idx = name.lastIndexOf(".");
-        if (idx > 0) { // never interested in .foo files, i.e. nothing before dot
-            String ext = name.substring(idx+1);
-            return extensions.contains(ext);
+    /**
+     * lists dir only if its mtime changed since the last scan, otherwise only descends
+     * into the known subdirs. deleted files and dirs are detected from the previous listing.
+     *
+     * @param statKnownFiles check files of unchanged dirs for modifications
+     */
+    private ITransientMap scanDir(Path dir, boolean initial, boolean statKnownFiles, ITransientMap changes) throws IOException {
+        BasicFileAttributes dirAttrs;
+        try {
+            dirAttrs = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return dropDir(dir, initial, changes);
         }
-        return false;
+
+        FileTime mtime = dirAttrs.lastModifiedTime();
+        DirState state = dirStates.get(dir);
+
+        if (state != null && mtime.equals(state.lastModified)) {
+            for (int id : state.files) {
+                // removed by a regular quickScan, dir mtime will have changed if it still existed
+                if (!state.owns(index, id)) {
+                    continue;
+                }
+
+                if (statKnownFiles) {
+                    Path file = index.path(id);
+                    try {
+                        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                        if (isModified(id, attrs)) {
+                            update(id, attrs);
+                            if (!initial && isContentModified(id, file)) {
+                                changes = addChange(changes, id, KW_MOD);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // deleted without the dir mtime changing, shouldn't happen but cleanup anyways
+                        if (!initial) {
+                            changes = addChange(changes, id, KW_DEL);
+                        }
+                        index.remove(id);
+                        continue;
+                    }
+                }
+
+                index.setMark(id, scanCount);
+            }
+
+            for (Path subdir : state.subdirs) {
+                changes = scanDir(subdir, initial, statKnownFiles, changes);
+            }
+
+            return changes;
+        }
+
+        Set<Path> subdirs = new HashSet<>();
+        int[] files = new int[16];
+        int numFiles = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    // deleted while listing, dir mtime changed again so next scan will catch up
+                    continue;
+                }
+
+                if (attrs.isDirectory()) {
+                    if (!filter.isIgnoredDir(child)) {
+                        subdirs.add(child);
+                    }
+                } else if (isWatchedFile(child, attrs)) {
+                    changes = checkFile(changes, child, attrs, initial);
+                    if (numFiles == files.length) {
+                        files = Arrays.copyOf(files, numFiles * 2);
+                    }
+                    files[numFiles++] = index.find(child);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return dropDir(dir, initial, changes);
+        }
+
+        files = Arrays.copyOf(files, numFiles);
+        Arrays.sort(files);
+
+        DirState next = new DirState(isRacy(mtime) ? null : mtime, index.dirId(dir, true), files);
+        next.subdirs.addAll(subdirs);
+
+        if (state != null) {
+            for (int id : state.files) {
+                if (state.owns(index, id) && Arrays.binarySearch(files, id) < 0) {
+                    if (!initial) {
+                        changes = addChange(changes, id, KW_DEL);
+                    }
+                    index.remove(id);
+                }
+            }
+            for (Path subdir : state.subdirs) {
+                if (!next.subdirs.contains(subdir)) {
+                    changes = dropDir(subdir, initial, changes);
+                }
+            }
+        }
+
+        dirStates.put(dir, next);
+
+        for (Path subdir : next.subdirs) {
+            changes = scanDir(subdir, initial, statKnownFiles, changes);
+        }
+
+        return changes;
+    }
+
+    private ITransientMap dropDir(Path dir, boolean initial, ITransientMap changes) {
+        DirState state = dirStates.remove(dir);
+        if (state != null) {
+            for (int id : state.files) {
+                if (state.owns(index, id)) {
+                    if (!initial) {
+                        changes = addChange(changes, id, KW_DEL);
+                    }
+                    index.remove(id);
+                }
+            }
+            for (Path subdir : state.subdirs) {
+                changes = dropDir(subdir, initial, changes);
+            }
+        }
+        return changes;
+    }
+
+    private ITransientMap addChange(ITransientMap map, int id, Keyword kind) {
+        return map.assoc(index.relativeName(id), kind);
+    }
+
+    private ITransientMap checkFile(ITransientMap changes, Path file, BasicFileAttributes attrs, boolean initial) {
+        int id = index.find(file);
+
+        if (id == -1) {
+            id = index.add(file, attrs.lastModifiedTime().toMillis(), attrs.size());
+            if (!initial) {
+                if (contentHashing) {
+                    // so the next touch without changes can already be filtered
+                    isContentModified(id, file);
+                }
+                changes = addChange(changes, id, KW_NEW);
+            }
+        } else if (isModified(id, attrs)) {
+            update(id, attrs);
+            if (!initial && isContentModified(id, file)) {
+                changes = addChange(changes, id, KW_MOD);
+            }
+        }
+
+        index.setMark(id, scanCount);
+
+        return changes;
+    }
+
+    private boolean isWatchedFile(Path file, BasicFileAttributes attrs) throws IOException {
+        return attrs.isRegularFile() && filter.acceptFile(file, 0);
     }
 
     public IPersistentMap pollForChanges() throws IOException {
@@ -110,6 +497,8 @@ public class PollingFileWatcher implements AutoCloseable, IFileWatcher {
         IPersistentMap result;
         if (doFullScan) {
             result = fullScan();
+        } else if (pruneDirs && quickScanDirsOnly) {
+            result = quickScanDirs();
         } else {
             result = quickScan();
         }
@@ -120,24 +509,33 @@ public class PollingFileWatcher implements AutoCloseable, IFileWatcher {
 
     @Override
     public void close() throws Exception {
-        lastModifiedMap.clear();
+        try {
+            if (snapshotFile != null && initialized) {
+                writeSnapshot(snapshotFile);
+            }
+        } catch (IOException e) {
+            // snapshot is only an optimization, the next start just does a full initial scan
+            System.getLogger(PollingFileWatcher.class.getName())
+                    .log(System.Logger.Level.WARNING, "failed to write snapshot " + snapshotFile, e);
+        } finally {
+            index.clear();
+            dirStates.clear();
+        }
     }
 
 
     private class FullScan extends SimpleFileVisitor<Path> {
-        final Set<Path> foundFiles;
         final boolean initial;
         ITransientMap changes;
 
-        public FullScan(Set<Path> foundFiles, boolean initial, ITransientMap changes) {
-            this.foundFiles = foundFiles;
+        public FullScan(boolean initial, ITransientMap changes) {
             this.initial = initial;
             this.changes = changes;
         }
 
         @Override
         public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-            if (FileWatcher.shouldIgnoreDir(dir)) {
+            if (filter.isIgnoredDir(dir)) {
                 return FileVisitResult.SKIP_SUBTREE;
             }
             return FileVisitResult.CONTINUE;
@@ -145,29 +543,8 @@ public class PollingFileWatcher implements AutoCloseable, IFileWatcher {
 
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            if (Files.isHidden(file) || file.getFileName().toString().startsWith(".#")) {
-                return FileVisitResult.CONTINUE;
-            }
-
-            if (attrs.isRegularFile()) {
-                String relativeName = root.relativize(file).toString();
-                if (matchesExtension(relativeName)) {
-                    foundFiles.add(file);
-                    long currentModified = attrs.lastModifiedTime().toMillis();
-                    Long lastModified = lastModifiedMap.get(file);
-
-                    if (lastModified == null) {
-                        lastModifiedMap.put(file, currentModified);
-                        if (!initial) {
-                            changes = addChangeToMap(changes, relativeName, KW_NEW);
-                        }
-                    } else if (currentModified > lastModified) {
-                        lastModifiedMap.put(file, currentModified);
-                        if (!initial) {
-                            changes = addChangeToMap(changes, relativeName, KW_MOD);
-                        }
-                    }
-                }
+            if (isWatchedFile(file, attrs)) {
+                changes = checkFile(changes, file, attrs, initial);
             }
             return FileVisitResult.CONTINUE;
         }
@@ -179,7 +556,7 @@ public class PollingFileWatcher implements AutoCloseable, IFileWatcher {
 
         @Override
         public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-            if (FileWatcher.shouldIgnoreDir(dir)) {
+            if (filter.isIgnoredDir(dir)) {
                 return FileVisitResult.SKIP_SUBTREE;
             }
             return FileVisitResult.CONTINUE;
@@ -187,16 +564,8 @@ public class PollingFileWatcher implements AutoCloseable, IFileWatcher {
 
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            if (Files.isHidden(file) || file.getFileName().toString().startsWith(".#")) {
-                return FileVisitResult.CONTINUE;
-            }
-
-            if (attrs.isRegularFile()) {
-                String relativeName = root.relativize(file).toString();
-                if (matchesExtension(relativeName)) {
-                    long currentModified = attrs.lastModifiedTime().toMillis();
-                    lastModifiedMap.put(file, currentModified);
-                }
+            if (isWatchedFile(file, attrs)) {
+                checkFile(null, file, attrs, true);
             }
             return FileVisitResult.CONTINUE;
         }
@@ -226,5 +595,27 @@ public class PollingFileWatcher implements AutoCloseable, IFileWatcher {
 
         System.out.printf("quick = %d%n", now - start);
 
+        w.setScanPool(ForkJoinPool.commonPool());
+
+        start = System.currentTimeMillis();
+        System.out.println(w.fullScan());
+        now = System.currentTimeMillis();
+
+        System.out.printf("parallel full = %d%n", now - start);
+
+        w.setPruneDirs(true);
+        w.fullScan();
+
+        start = System.currentTimeMillis();
+        System.out.println(w.fullScan());
+        now = System.currentTimeMillis();
+
+        System.out.printf("pruned full = %d%n", now - start);
+
+        start = System.currentTimeMillis();
+        System.out.println(w.quickScanDirs());
+        now = System.currentTimeMillis();
+
+        System.out.printf("quick dirs = %d%n", now - start);
     }
 }
@@ -0,0 +1,179 @@
+package shadow.fswatch;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.ITransientMap;
+import clojure.lang.PersistentHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileWatcher equivalent backed by the shared WatchRegistry. events are delivered by the
+ * registry thread and collected until polled.
+ * <p>
+ * lock order is this before the registry, the registry thread never calls in here while
+ * holding its lock.
+ */
+public class SharedFileWatcher implements AutoCloseable, IEventFileWatcher {
+
+    final Path root;
+    private final WatchRegistry registry;
+    private final ChangeTracker tracker;
+
+    // dirs acquired from the registry, guarded by the registry
+    final Set<Path> dirs = new HashSet<>();
+    // false once unsubscribed, guarded by the registry
+    boolean subscribed = true;
+
+    // guarded by this
+    private ITransientMap pending = PersistentHashMap.EMPTY.asTransient();
+    private long lastEvent = 0;
+    // used to recover events lost to an OVERFLOW, guarded by this
+    private final WatchedFiles files;
+
+    private final WatchedFiles.Registrar registrar = new WatchedFiles.Registrar() {
+        @Override
+        public Set<Path> knownDirs() {
+            synchronized (registry) {
+                return new HashSet<>(dirs);
+            }
+        }
+
+        @Override
+        public ITransientMap registerAll(Path dir, ITransientMap changes) throws IOException {
+            return SharedFileWatcher.this.registerAll(dir, changes);
+        }
+    };
+
+    SharedFileWatcher(WatchRegistry registry, Path root, List<String> extensions) {
+        this.registry = registry;
+        this.root = root;
+        this.tracker = new ChangeTracker(root, extensions);
+        this.files = new WatchedFiles(root, tracker);
+    }
+
+    public synchronized void setContentHashing(boolean contentHashing) {
+        tracker.setContentHashing(contentHashing);
+    }
+
+    /**
+     * registers all dirs and indexes all watched files below start, never called with the registry lock held
+     *
+     * @param changes when not null, files not indexed yet are recorded as new
+     */
+    ITransientMap registerAll(final Path start, final ITransientMap changes) throws IOException {
+        final ITransientMap[] result = new ITransientMap[]{changes};
+
+        Files.walkFileTree(
+                start,
+                EnumSet.allOf(FileVisitOption.class),
+                Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        if (FileWatcher.shouldIgnoreDir(dir)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+
+                        synchronized (registry) {
+                            // unsubscribed while events for it were still dispatched, nothing would release these
+                            if (!subscribed) {
+                                return FileVisitResult.TERMINATE;
+                            }
+                            if (dirs.add(dir)) {
+                                registry.acquire(dir);
+                            }
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        synchronized (SharedFileWatcher.this) {
+                            result[0] = files.add(file, attrs, result[0]);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+
+        return result[0];
+    }
+
+    synchronized void record(WatchEvent.Kind<?> kind, Path resolvedName) throws IOException {
+        pending = tracker.record(pending, kind, resolvedName);
+        files.update(resolvedName);
+        lastEvent = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * events for the direct children of dir were lost, recovered on the next poll or wait
+     */
+    synchronized void overflowed(Path dir) {
+        files.overflowed(dir);
+        lastEvent = System.nanoTime();
+        notifyAll();
+    }
+
+    private IPersistentMap drain() throws IOException {
+        if (files.hasOverflowed()) {
+            pending = files.recover(pending, registrar);
+        }
+
+        IPersistentMap changes = pending.persistent();
+        pending = PersistentHashMap.EMPTY.asTransient();
+        return changes;
+    }
+
+    public synchronized IPersistentMap pollForChanges() throws IOException {
+        return drain();
+    }
+
+    /**
+     * same as FileWatcher.waitForChanges
+     */
+    public synchronized IPersistentMap waitForChanges(long quietMillis, long maxWaitMillis, long timeoutMillis) throws IOException, InterruptedException {
+        long timeout = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while (pending.count() == 0 && !files.hasOverflowed()) {
+            long remaining = timeout - System.nanoTime();
+            if (remaining <= 0) {
+                return PersistentHashMap.EMPTY;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        long quiet = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+        while (true) {
+            long now = System.nanoTime();
+            long wait = Math.min(lastEvent + quiet - now, deadline - now);
+            if (wait <= 0) {
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+
+        return drain();
+    }
+
+    @Override
+    public void close() throws Exception {
+        registry.unsubscribe(this);
+        synchronized (this) {
+            tracker.clear();
+            files.clear();
+            pending = PersistentHashMap.EMPTY.asTransient();
+        }
+    }
+
+    public static SharedFileWatcher create(File dir, List<String> extensions) throws IOException {
+        return WatchRegistry.getShared().subscribe(dir.toPath(), extensions);
+    }
+}
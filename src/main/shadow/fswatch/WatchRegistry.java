@@ -0,0 +1,226 @@
+package shadow.fswatch;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * single WatchService shared by all SharedFileWatcher instances.
+ *
+ * each directory is registered once and reference counted by the watchers that cover it,
+ * so overlapping roots of multiple builds or the config watcher only cost one registration
+ * (one inotify watch on linux). a background thread takes events off the WatchService
+ * and hands them to every watcher whose root contains the file.
+ *
+ * only the bookkeeping happens under the lock of this registry. events are dispatched
+ * without it, watchers take their own lock first and then this one, never the reverse.
+ */
+public class WatchRegistry implements AutoCloseable {
+
+    private static WatchRegistry shared = null;
+
+    public static synchronized WatchRegistry getShared() throws IOException {
+        if (shared == null || shared.closed) {
+            shared = new WatchRegistry(FileSystems.getDefault());
+        }
+        return shared;
+    }
+
+    private final WatchService ws;
+    private final Map<Path, WatchKey> dirKeys = new HashMap<>();
+    private final Map<WatchKey, Path> keyDirs = new HashMap<>();
+    private final Map<Path, Integer> refCounts = new HashMap<>();
+    private final List<SharedFileWatcher> watchers = new ArrayList<>();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    public WatchRegistry(FileSystem fs) throws IOException {
+        this.ws = fs.newWatchService();
+        this.thread = Thread.ofPlatform()
+                .daemon(true)
+                .name("shadow.fswatch.WatchRegistry")
+                .start(this::run);
+    }
+
+    public SharedFileWatcher subscribe(Path dir, List<String> extensions) throws IOException {
+        SharedFileWatcher watcher = new SharedFileWatcher(this, dir.toAbsolutePath(), extensions);
+        synchronized (this) {
+            watchers.add(watcher);
+        }
+        try {
+            watcher.registerAll(watcher.root, null);
+        } catch (IOException e) {
+            unsubscribe(watcher);
+            throw e;
+        }
+        return watcher;
+    }
+
+    synchronized void unsubscribe(SharedFileWatcher watcher) {
+        watcher.subscribed = false;
+        if (watchers.remove(watcher)) {
+            for (Path dir : watcher.dirs) {
+                release(dir);
+            }
+            watcher.dirs.clear();
+        }
+    }
+
+    // caller holds lock
+    void acquire(Path dir) throws IOException {
+        Integer count = refCounts.get(dir);
+        if (count == null) {
+            WatchKey key = dir.register(ws, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            dirKeys.put(dir, key);
+            keyDirs.put(key, dir);
+            refCounts.put(dir, 1);
+        } else {
+            refCounts.put(dir, count + 1);
+        }
+    }
+
+    // caller holds lock
+    private void release(Path dir) {
+        Integer count = refCounts.get(dir);
+        if (count == null) {
+            // key became invalid, dir was deleted
+        } else if (count == 1) {
+            refCounts.remove(dir);
+            WatchKey key = dirKeys.remove(dir);
+            keyDirs.remove(key);
+            key.cancel();
+        } else {
+            refCounts.put(dir, count - 1);
+        }
+    }
+
+    public synchronized int registeredDirs() {
+        return dirKeys.size();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                WatchKey key = ws.take();
+
+                Path dir;
+                SharedFileWatcher[] targets;
+                synchronized (this) {
+                    dir = keyDirs.get(key);
+                    targets = watchers.toArray(new SharedFileWatcher[0]);
+                }
+
+                if (dir == null) {
+                    // released while events were pending
+                    key.pollEvents();
+                    continue;
+                }
+
+                dispatch(dir, key.pollEvents(), targets);
+
+                synchronized (this) {
+                    boolean valid = key.reset();
+                    if (!valid && keyDirs.remove(key) != null) { // deleted dirs are no longer valid
+                        dirKeys.remove(dir);
+                        refCounts.remove(dir);
+                        for (SharedFileWatcher watcher : watchers) {
+                            watcher.dirs.remove(dir);
+                        }
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // closed
+        }
+    }
+
+    // called without holding the lock, watchers may take it to register new dirs
+    private static void dispatch(Path dir, List<WatchEvent<?>> events, SharedFileWatcher[] targets) {
+        for (WatchEvent<?> event : events) {
+            WatchEvent.Kind<?> kind = event.kind();
+
+            if (kind == OVERFLOW) {
+                // events for dir were lost, each watcher covering it rescans on its next poll
+                for (SharedFileWatcher watcher : targets) {
+                    if (dir.startsWith(watcher.root)) {
+                        watcher.overflowed(dir);
+                    }
+                }
+                continue;
+            }
+
+            Path resolvedName = dir.resolve(FileWatcher.eventPath(event));
+            boolean isDir = Files.isDirectory(resolvedName);
+
+            for (SharedFileWatcher watcher : targets) {
+                if (!resolvedName.startsWith(watcher.root)) {
+                    continue;
+                }
+
+                try {
+                    if (isDir) {
+                        // monitor new directories, not interested in modify
+                        // deleted directories will cause the key to become invalid and removed later
+                        if (kind == ENTRY_CREATE) {
+                            watcher.registerAll(resolvedName, null);
+                        }
+                    } else {
+                        watcher.record(kind, resolvedName);
+                    }
+                } catch (IOException e) {
+                    // file or dir went away while processing, the delete event will follow
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        synchronized (this) {
+            closed = true;
+            dirKeys.clear();
+            keyDirs.clear();
+            refCounts.clear();
+            watchers.clear();
+        }
+        ws.close();
+        thread.join();
+    }
+
+    /**
+     * compares registrations for n watchers on the same root
+     *
+     * java shadow.fswatch.WatchRegistry dir [n]
+     */
+    public static void main(String[] args) throws Exception {
+        Path root = Paths.get(args[0]).toAbsolutePath();
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        List<String> exts = List.of("cljs", "cljc", "clj", "js");
+
+        List<FileWatcher> fileWatchers = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        int registrations = 0;
+        for (int i = 0; i < n; i++) {
+            FileWatcher w = FileWatcher.create(root, exts);
+            registrations += w.registeredDirs();
+            fileWatchers.add(w);
+        }
+        long now = System.currentTimeMillis();
+        System.out.printf("FileWatcher x%d registrations = %d time = %d%n", n, registrations, now - start);
+
+        for (FileWatcher w : fileWatchers) {
+            w.close();
+        }
+
+        try (WatchRegistry registry = new WatchRegistry(FileSystems.getDefault())) {
+            start = System.currentTimeMillis();
+            for (int i = 0; i < n; i++) {
+                registry.subscribe(root, exts);
+            }
+            now = System.currentTimeMillis();
+            System.out.printf("WatchRegistry x%d registrations = %d time = %d%n", n, registry.registeredDirs(), now - start);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package shadow.fswatch;
+
+import clojure.lang.ITransientMap;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * mtime/size of all watched files below a root, used to recover events lost to an OVERFLOW.
+ * shared by FileWatcher and SharedFileWatcher, not thread safe.
+ */
+class WatchedFiles {
+
+    /**
+     * how the watcher registers dirs found during recovery
+     */
+    interface Registrar {
+        Set<Path> knownDirs();
+
+        /**
+         * registers all dirs below dir, adds their files and records them as new
+         */
+        ITransientMap registerAll(Path dir, ITransientMap changes) throws IOException;
+    }
+
+    private final ChangeTracker tracker;
+    private final FileIndex index;
+    // dirs whose key had an OVERFLOW since the last rescan
+    private final Set<Path> overflowed = new HashSet<>();
+    private int rescanCount = 0;
+
+    WatchedFiles(Path root, ChangeTracker tracker) {
+        this.tracker = tracker;
+        this.index = new FileIndex(root);
+    }
+
+    /**
+     * indexes a file found while registering dirs
+     *
+     * @param changes when not null, files not indexed yet are recorded as new
+     */
+    ITransientMap add(Path file, BasicFileAttributes attrs, ITransientMap changes) throws IOException {
+        if (attrs.isRegularFile() && tracker.isWatched(file) && index.find(file) == -1) {
+            index.add(file, attrs.lastModifiedTime().toMillis(), attrs.size());
+            if (changes != null) {
+                changes = tracker.record(changes, ENTRY_CREATE, file);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * keeps the index in sync after a regular event for file
+     */
+    void update(Path file) throws IOException {
+        int id = index.find(file);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attrs.isRegularFile() || !tracker.isWatched(file)) {
+                if (id != -1) {
+                    index.remove(id);
+                }
+            } else if (id == -1) {
+                index.add(file, attrs.lastModifiedTime().toMillis(), attrs.size());
+            } else {
+                index.update(id, attrs.lastModifiedTime().toMillis(), attrs.size());
+            }
+        } catch (NoSuchFileException e) {
+            if (id != -1) {
+                index.remove(id);
+            }
+        }
+    }
+
+    void overflowed(Path dir) {
+        overflowed.add(dir);
+    }
+
+    boolean hasOverflowed() {
+        return !overflowed.isEmpty();
+    }
+
+    void clear() {
+        index.clear();
+        overflowed.clear();
+    }
+
+    /**
+     * the kernel queue or the per key event list overflowed and events for the direct children
+     * of the overflowed dirs were lost. compares those dirs against the index and records the
+     * differences as regular events. dirs created during the overflow are registered and all
+     * their files are recorded as new.
+     */
+    ITransientMap recover(ITransientMap changes, Registrar registrar) throws IOException {
+        rescanCount++;
+
+        Set<Path> registered = registrar.knownDirs();
+        BitSet rescanned = new BitSet();
+
+        for (Path dir : overflowed) {
+            int dirId = index.dirId(dir, true);
+            rescanned.set(dirId);
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+
+                    if (attrs.isDirectory()) {
+                        if (!registered.contains(child) && !FileWatcher.shouldIgnoreDir(child)) {
+                            changes = registrar.registerAll(child, changes);
+                        }
+                    } else if (attrs.isRegularFile() && tracker.isWatched(child)) {
+                        long lastModified = attrs.lastModifiedTime().toMillis();
+                        int id = index.find(child);
+                        if (id == -1) {
+                            id = index.add(child, lastModified, attrs.size());
+                            changes = tracker.record(changes, ENTRY_CREATE, child);
+                        } else if (index.lastModified(id) != lastModified || index.size(id) != attrs.size()) {
+                            index.update(id, lastModified, attrs.size());
+                            changes = tracker.record(changes, ENTRY_MODIFY, child);
+                        }
+                        index.setMark(id, rescanCount);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // dir is gone, all its files are removed below
+            }
+        }
+
+        overflowed.clear();
+
+        // single pass over all files, in case many dirs overflowed at once
+        for (int id = 0; id < index.capacity(); id++) {
+            if (index.isLive(id) && rescanned.get(index.dirOf(id)) && index.mark(id) != rescanCount) {
+                Path file = index.path(id);
+                index.remove(id);
+                changes = tracker.record(changes, ENTRY_DELETE, file);
+            }
+        }
+
+        return changes;
+    }
+}
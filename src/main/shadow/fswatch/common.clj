@@ -5,29 +5,31 @@
     [clojure.string :as str]
     [shadow.build.resource :as rc])
   (:import
-    [shadow.fswatch IFileWatcher]
+    [shadow.fswatch IFileWatcher IEventFileWatcher]
     [java.io File]))
 
 (defn service? [x]
   (and (map? x)
        (::service x)))
 
+(defn changes->updates [dir changes]
+  (when (seq changes)
+    (->> changes
+         (map (fn [[name event]]
+                {:dir dir
+                 :name (rc/normalize-name name)
+                 :ext (when-let [x (str/last-index-of name ".")]
+                        (subs name (inc x)))
+                 :file (io/file dir name)
+                 :event event}))
+         ;; ignore empty files
+         (remove (fn [{:keys [event ^File file] :as x}]
+                   (and (not= event :del)
+                        (zero? (.length file)))))
+         )))
+
 (defn poll-changes [{:keys [dir ^IFileWatcher watcher]}]
-  (let [changes (.pollForChanges watcher)]
-    (when (seq changes)
-      (->> changes
-           (map (fn [[name event]]
-                  {:dir dir
-                   :name (rc/normalize-name name)
-                   :ext (when-let [x (str/last-index-of name ".")]
-                          (subs name (inc x)))
-                   :file (io/file dir name)
-                   :event event}))
-           ;; ignore empty files
-           (remove (fn [{:keys [event ^File file] :as x}]
-                     (and (not= event :del)
-                          (zero? (.length file)))))
-           ))))
+  (changes->updates dir (.pollForChanges watcher)))
 
 (defn watch-loop
   [{:keys [loop-wait] :or {loop-wait 500}} watch-dirs control publish-fn]
@@ -55,3 +57,62 @@
     (.close watcher))
 
   ::shutdown-complete)
+
+(defn event-loop
+  "blocks on the watcher instead of polling on a fixed interval. hands each batch to out
+   as soon as no further events arrived for quiet-wait ms, see merge-loop."
+  [{:keys [quiet-wait max-wait] :or {quiet-wait 50 max-wait 2000}}
+   {:keys [dir ^IEventFileWatcher watcher]}
+   control
+   out]
+
+  (loop []
+    (let [status
+          (alt!!
+            control ([_] :terminated)
+            :default :continue)]
+
+      (when (= :continue status)
+        ;; only waiting for a limited time to check the control chan again
+        (let [fs-updates
+              (->> (.waitForChanges watcher quiet-wait max-wait 500)
+                   (changes->updates dir)
+                   (into []))]
+
+          (if-not (seq fs-updates)
+            (recur)
+            (alt!!
+              control ([_] :terminated)
+              [[out fs-updates]] ([_] (recur))))))))
+
+  (.close watcher)
+
+  ::shutdown-complete)
+
+(defn merge-loop
+  "collects the batches of all event-loops and publishes them together once none
+   arrived for quiet-wait ms, so bulk changes touching multiple watch-dirs (eg. git pull)
+   still end up as one batch like they do with watch-loop"
+  [{:keys [quiet-wait max-wait] :or {quiet-wait 50 max-wait 2000}}
+   control
+   in
+   publish-fn]
+
+  (loop []
+    (alt!!
+      control
+      ([_]
+       :terminated)
+
+      in
+      ([fs-updates]
+       (let [deadline (async/timeout max-wait)]
+         (loop [fs-updates fs-updates]
+           (alt!!
+             in ([more] (recur (into fs-updates more)))
+             (async/timeout quiet-wait) ([_] (publish-fn fs-updates))
+             deadline ([_] (publish-fn fs-updates))
+             :priority true))
+         (recur)))))
+
+  ::shutdown-complete)
@@ -3,7 +3,7 @@
     [clojure.core.async :as async :refer (thread)]
     [shadow.fswatch.common :as common])
   (:import
-    [shadow.fswatch FileWatcher]
+    [shadow.fswatch FileWatcher SharedFileWatcher]
     [java.io File]))
 
 (defn service? [x]
@@ -23,16 +23,32 @@
         (->> directories
              (map (fn [^File dir]
                     {:dir dir
-                     :watcher (FileWatcher/create dir (vec file-exts))}))
+                     :watcher (doto (if (:shared config)
+                                      (SharedFileWatcher/create dir (vec file-exts))
+                                      (FileWatcher/create dir (vec file-exts)))
+                                (.setContentHashing (boolean (:content-hash config))))}))
              (into []))]
 
-    {::service true
-     :control control
-     :watch-dirs watch-dirs
-     :thread (thread (common/watch-loop config watch-dirs control publish-fn))}))
+    (if (:event-driven config)
+      ;; one blocking loop per watcher, batches are merged and published by a single loop
+      (let [batches (async/chan)]
+        {::service true
+         :control control
+         :watch-dirs watch-dirs
+         :threads
+         (->> watch-dirs
+              (map (fn [watch-dir]
+                     (thread (common/event-loop config watch-dir control batches))))
+              (into [(thread (common/merge-loop config control batches publish-fn))]))})
 
-(defn stop [{:keys [control thread] :as svc}]
+      {::service true
+       :control control
+       :watch-dirs watch-dirs
+       :threads [(thread (common/watch-loop config watch-dirs control publish-fn))]})))
+
+(defn stop [{:keys [control threads] :as svc}]
   {:pre [(service? svc)]}
   (async/close! control)
-  (async/<!! thread))
+  (doseq [thread-chan threads]
+    (async/<!! thread-chan)))
 
@@ -5,13 +5,41 @@
     [shadow.fswatch.common :as common])
   (:import
     [shadow.fswatch PollingFileWatcher]
-    [java.io File]))
+    [java.io File]
+    [java.util.concurrent ForkJoinPool]))
 
 (defn service? [x]
   (and (map? x)
        (::service x)))
 
-(defn setup [sys-config])
+(defonce snapshot-dir-ref (atom nil))
+
+(defn setup [sys-config]
+  (reset! snapshot-dir-ref
+    (when (get-in sys-config [:fs-watch :snapshot])
+      (.getCanonicalFile (io/file (:cache-root sys-config ".shadow-cljs") "fswatch")))))
+
+(defn make-watcher [config ^File dir file-exts]
+  (let [root (-> dir (.getCanonicalFile) (.toPath))
+        watcher (PollingFileWatcher. root (set file-exts))]
+
+    (when (:parallel config)
+      (.setScanPool watcher (ForkJoinPool/commonPool)))
+
+    (when (:content-hash config)
+      (.setContentHashing watcher true))
+
+    (when (:prune-dirs config)
+      (.setPruneDirs watcher true)
+      (.setQuickScanDirsOnly watcher (boolean (:quick-scan-dirs-only config))))
+
+    ;; snapshot is written when the watcher is closed and restored on the next start
+    ;; so the first scan only reports files that changed while the server was down
+    (when-let [snapshot-dir @snapshot-dir-ref]
+      (let [snapshot-name (str (Integer/toHexString (hash [(str root) (set file-exts)])) ".snapshot")]
+        (.useSnapshot watcher (.toPath (io/file snapshot-dir snapshot-name)))))
+
+    watcher))
 
 (defn start [config directories file-exts publish-fn]
   {:pre [(every? #(instance? File %) directories)
@@ -24,7 +52,7 @@
         (->> directories
              (map (fn [^File dir]
                     {:dir dir
-                     :watcher (PollingFileWatcher. (-> dir (.getCanonicalFile) (.toPath)) (set file-exts))}))
+                     :watcher (make-watcher config dir file-exts)}))
              (into []))]
 
     {::service true
@@ -0,0 +1,164 @@
+package shadow.build.closure;
+
+import clojure.lang.*;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.SourceFile;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static shadow.build.closure.JsInspector.*;
+
+public class FileInfoMapBenchmark {
+
+    // previous representation, transients and a map per string offset, all built upfront
+    private static IPersistentMap eager(FileInfo info) {
+        ITransientCollection googRequires = PersistentVector.EMPTY.asTransient();
+        ITransientCollection googRequireTypes = PersistentVector.EMPTY.asTransient();
+        ITransientCollection googProvides = PersistentVector.EMPTY.asTransient();
+        ITransientCollection requires = PersistentVector.EMPTY.asTransient();
+        ITransientCollection invalidRequires = PersistentVector.EMPTY.asTransient();
+        ITransientCollection imports = PersistentVector.EMPTY.asTransient();
+        ITransientCollection dynamicImports = PersistentVector.EMPTY.asTransient();
+        ITransientCollection strOffsets = PersistentVector.EMPTY.asTransient();
+
+        for (int i = 0; i < info.entryCount; i++) {
+            int flags = info.entryFlags[i];
+            String s = info.strings[info.entryStrings[i]];
+            if ((flags & FileInfo.REQUIRE) != 0) {
+                requires = requires.conj(s);
+            } else if ((flags & FileInfo.IMPORT) != 0) {
+                imports = imports.conj(s);
+            } else if ((flags & FileInfo.DYNAMIC_IMPORT) != 0) {
+                dynamicImports = dynamicImports.conj(s);
+            } else if ((flags & FileInfo.GOOG_REQUIRE) != 0) {
+                googRequires = googRequires.conj(s);
+            } else if ((flags & FileInfo.GOOG_REQUIRE_TYPE) != 0) {
+                googRequireTypes = googRequireTypes.conj(s);
+            } else if ((flags & FileInfo.GOOG_PROVIDE) != 0) {
+                googProvides = googProvides.conj(s);
+            }
+            if ((flags & FileInfo.STR_OFFSET) != 0) {
+                strOffsets = strOffsets.conj(RT.map(
+                        KW_STRING, s,
+                        KW_OFFSET, info.entryOffsets[i],
+                        KW_IMPORT, (flags & FileInfo.STR_OFFSET_IMPORT) != 0));
+            }
+        }
+        for (int i = 0; i < info.invalidRequireCount; i++) {
+            invalidRequires = invalidRequires.conj(RT.map(
+                    KW_LINE, info.invalidRequires[i * 2],
+                    KW_COLUMN, info.invalidRequires[i * 2 + 1]));
+        }
+
+        return RT.map(
+                KW_REQUIRES, requires.persistent(),
+                KW_IMPORTS, imports.persistent(),
+                KW_DYNAMIC_IMPORTS, dynamicImports.persistent(),
+                KW_ESM, info.esm,
+                KW_GOOG_PROVIDES, googProvides.persistent(),
+                KW_GOOG_REQUIRES, googRequires.persistent(),
+                KW_GOOG_REQUIRE_TYPES, googRequireTypes.persistent(),
+                KW_GOOG_MODULE, info.googModule,
+                KW_GOOG_MODULE_LEGACY_NAMESPACE, info.googModuleLegacyNamespace,
+                KW_INVALID_REQUIRES, invalidRequires.persistent(),
+                KW_LANGUAGE, info.language,
+                KW_STR_OFFSETS, strOffsets.persistent(),
+                KW_USES_GLOBAL, info.usesGlobal,
+                KW_USES_GLOBAL_BUFFER, info.usesGlobalBuffer,
+                KW_USES_GLOBAL_PROCESS, info.usesGlobalProcess,
+                KW_ERRORS, info.errors,
+                KW_WARNINGS, info.warnings
+        );
+    }
+
+    private static IPersistentMap lazy(FileInfo info) {
+        FileInfo copy = new FileInfo(info.errors, info.warnings, info.language);
+        for (int i = 0; i < info.entryCount; i++) {
+            copy.addEntry(info.entryFlags[i], info.strings[info.entryStrings[i]], info.entryOffsets[i]);
+        }
+        for (int i = 0; i < info.invalidRequireCount; i++) {
+            copy.addInvalidRequire(info.invalidRequires[i * 2], info.invalidRequires[i * 2 + 1]);
+        }
+        return new FileInfoMap(copy);
+    }
+
+    // what npm/get-file-info* does with the result
+    private static Object use(IPersistentMap info) {
+        info.valAt(KW_REQUIRES);
+        info.valAt(KW_IMPORTS);
+        info.valAt(KW_DYNAMIC_IMPORTS);
+        info.valAt(KW_ERRORS);
+        info.valAt(KW_WARNINGS);
+        info.valAt(KW_INVALID_REQUIRES);
+        info.valAt(KW_LANGUAGE);
+        info.valAt(KW_USES_GLOBAL_BUFFER);
+        info.valAt(KW_USES_GLOBAL_PROCESS);
+        return info.assoc(KW_ESM, info.valAt(KW_ESM));
+    }
+
+    /**
+     * allocation comparison for all .js files in a directory, ie. a node_modules folder.
+     * the files are parsed once upfront, only the result accumulation and map are measured.
+     */
+    public static void main(String... args) throws IOException {
+        Path root = Paths.get(args.length > 0 ? args[0] : "node_modules");
+
+        Compiler cc = new Compiler();
+        CompilerOptions co = new CompilerOptions();
+        co.setLanguageIn(CompilerOptions.LanguageMode.ECMASCRIPT_NEXT);
+        cc.initOptions(co);
+
+        List<FileInfo> infos = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(root)) {
+            for (Path file : stream.filter(p -> p.getFileName().toString().endsWith(".js")).filter(Files::isRegularFile).collect(Collectors.toList())) {
+                String code = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                infos.add(JsInspector.getFileInfo(cc, SourceFile.fromCode(file.toString(), code)));
+            }
+        }
+
+        int entries = 0;
+        for (FileInfo info : infos) {
+            entries += info.entryCount;
+        }
+        System.out.format("files:%d entries:%d%n", infos.size(), entries);
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int run = 0; run < 10; run++) {
+            long sink = 0;
+
+            long bytes = mx.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (FileInfo info : infos) {
+                sink += RT.count(use(eager(info)));
+            }
+            long eagerTime = System.nanoTime() - start;
+            long eagerBytes = mx.getCurrentThreadAllocatedBytes() - bytes;
+
+            bytes = mx.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (FileInfo info : infos) {
+                sink += RT.count(use(lazy(info)));
+            }
+            long lazyTime = System.nanoTime() - start;
+            long lazyBytes = mx.getCurrentThreadAllocatedBytes() - bytes;
+
+            System.out.format("eager: %d bytes/file %dus | lazy: %d bytes/file %dus | %d%n",
+                    eagerBytes / infos.size(),
+                    eagerTime / 1000,
+                    lazyBytes / infos.size(),
+                    lazyTime / 1000,
+                    sink);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package shadow.build.closure;
+
+import clojure.lang.*;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.SourceFile;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class FileInfoMapTest {
+
+    static final String CODE = "import a from 'a';\n" +
+            "const b = require('b');\n" +
+            "import('c');\n" +
+            "require('./d/' + x);\n" +
+            "export default b;\n";
+
+    // only types transit and the worker know how to handle, nothing of JsInspector may leak into resources
+    static String leak(Object val) {
+        if (val instanceof FileInfoMap) {
+            return "FileInfoMap";
+        } else if (val instanceof IPersistentMap) {
+            if (!(val instanceof PersistentHashMap || val instanceof PersistentArrayMap)) {
+                return val.getClass().getName();
+            }
+            for (Object o : (Iterable) val) {
+                Map.Entry e = (Map.Entry) o;
+                String leak = leak(e.getValue());
+                if (leak != null) {
+                    return e.getKey() + " " + leak;
+                }
+            }
+        } else if (val instanceof IPersistentVector) {
+            if (!(val instanceof PersistentVector)) {
+                return val.getClass().getName();
+            }
+            for (Object o : (Iterable) val) {
+                String leak = leak(o);
+                if (leak != null) {
+                    return leak;
+                }
+            }
+        }
+        return null;
+    }
+
+    public static void main(String... args) throws IOException {
+        RT.init();
+
+        Compiler cc = new Compiler();
+        CompilerOptions co = new CompilerOptions();
+        co.setLanguageIn(CompilerOptions.LanguageMode.ECMASCRIPT_NEXT);
+        cc.initOptions(co);
+
+        IPersistentMap info = JsInspector.getFileInfoMap(cc, SourceFile.fromCode("test.js", CODE));
+
+        int failed = 0;
+
+        // what npm/get-file-info* and classpath/inspect-js do with it
+        IPersistentMap rc = info.assoc(RT.keyword(null, "resource-name"), "test.js");
+        String leak = leak(rc);
+        if (leak != null) {
+            failed++;
+            System.out.println("LEAK assoc " + leak);
+        }
+
+        // (into {} info)
+        IPersistentMap copy = PersistentArrayMap.EMPTY;
+        for (Object o : (Iterable) info) {
+            Map.Entry e = (Map.Entry) o;
+            copy = copy.assoc(e.getKey(), e.getValue());
+        }
+        leak = leak(copy);
+        if (leak != null) {
+            failed++;
+            System.out.println("LEAK seq " + leak);
+        }
+
+        Object strOffsets = info.valAt(JsInspector.KW_STR_OFFSETS);
+        leak = leak(strOffsets);
+        if (leak != null || RT.count(strOffsets) != 3) {
+            failed++;
+            System.out.println("STR-OFFSETS " + strOffsets);
+        }
+
+        if (!info.equals(copy) || !copy.equals(info) || info.hashCode() != copy.hashCode()) {
+            failed++;
+            System.out.println("NOT EQUAL " + info + " " + copy);
+        }
+
+        System.out.format("failed:%d%n", failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package shadow.build.closure;
+
+import clojure.lang.*;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.SourceFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class InspectCacheTest {
+
+    // something for every part of the binary format
+    static final Map<String, String> SOURCES = new LinkedHashMap<>();
+
+    static {
+        SOURCES.put("esm.js", "import a from 'a';\nimport {b} from \"./b.js\";\nimport('c');\nexport default a + b;\n");
+        SOURCES.put("cjs.js", "var x = require('x');\nvar y = require('./y/' + name);\nmodule.exports = process.env.NODE_ENV;\n");
+        SOURCES.put("globals.js", "global.foo = Buffer.from('x');\nprocess.nextTick(function() {});\n");
+        SOURCES.put("goog.js", "goog.module('foo.bar');\ngoog.module.declareLegacyNamespace();\nconst baz = goog.require('foo.baz');\ngoog.requireType('foo.type');\n");
+        SOURCES.put("provide.js", "goog.provide('foo.provided');\ngoog.require('foo.other');\n");
+        SOURCES.put("warning.js", "/** @const {} */ var y = 1;\n");
+        SOURCES.put("unicode.js", "// ünïcödé 😀\nrequire('ü');\n");
+        SOURCES.put("empty.js", "");
+    }
+
+    static int failed = 0;
+
+    static void check(boolean ok, String msg) {
+        if (!ok) {
+            failed++;
+            System.out.println("FAIL " + msg);
+        }
+    }
+
+    static CompilerOptions options(CompilerOptions.LanguageMode language) {
+        CompilerOptions co = new CompilerOptions();
+        co.setLanguageIn(language);
+        return co;
+    }
+
+    static Compiler compiler(CompilerOptions co) {
+        Compiler cc = new Compiler();
+        cc.initOptions(co);
+        return cc;
+    }
+
+    public static void main(String... args) throws IOException {
+        RT.init();
+
+        Path dir = Files.createTempDirectory("shadow-inspect-cache-test");
+        CompilerOptions co = options(CompilerOptions.LanguageMode.ECMASCRIPT_NEXT);
+        InspectCache cache = new InspectCache(dir, co);
+
+        // a miss returns the parsed result, a hit returns the same thing from disk
+        for (Map.Entry<String, String> e : SOURCES.entrySet()) {
+            String name = e.getKey();
+            SourceFile srcFile = SourceFile.fromCode(name, e.getValue());
+
+            IPersistentMap expected = JsInspector.getFileInfoMap(compiler(co), srcFile);
+            IPersistentMap miss = cache.getFileInfoMap(compiler(co), srcFile);
+            check(Files.isRegularFile(cache.cacheFile(e.getValue())), name + " not written");
+            IPersistentMap hit = cache.getFileInfoMap(compiler(co), srcFile);
+
+            if (name.equals("warning.js")) {
+                check(((Counted) expected.valAt(JsInspector.KW_WARNINGS)).count() > 0, "no warnings for warning.js");
+            }
+            check(Util.equiv(expected, miss), name + " miss\n" + expected + "\n" + miss);
+            check(Util.equiv(expected, hit), name + " hit\n" + expected + "\n" + hit);
+        }
+        check(cache.getMisses() == SOURCES.size(), "misses " + cache.getMisses());
+        check(cache.getHits() == SOURCES.size(), "hits " + cache.getHits());
+
+        // files are read through MappedSource, which must end up with the same key and result
+        Path files = Files.createTempDirectory("shadow-inspect-cache-files");
+        for (Map.Entry<String, String> e : SOURCES.entrySet()) {
+            Path file = files.resolve(e.getKey());
+            Files.writeString(file, e.getValue());
+            try (MappedSource source = MappedSource.open(file)) {
+                check(cache.cacheFile(source).equals(cache.cacheFile(e.getValue())), e.getKey() + " different key for MappedSource");
+                IPersistentMap hit = cache.getFileInfoMap(compiler(co), e.getKey(), source, false);
+                check(Util.equiv(cache.getFileInfoMap(compiler(co), SourceFile.fromCode(e.getKey(), e.getValue())), hit), e.getKey() + " MappedSource hit");
+            }
+        }
+        check(cache.getMisses() == SOURCES.size(), "MappedSource missed " + cache.getMisses());
+
+        // results with errors are never written
+        String broken = "var x = ;\n";
+        IPersistentMap withErrors = cache.getFileInfoMap(compiler(co), SourceFile.fromCode("broken.js", broken));
+        check(((Counted) withErrors.valAt(JsInspector.KW_ERRORS)).count() > 0, "no errors for broken file");
+        check(!Files.exists(cache.cacheFile(broken)), "result with errors written");
+
+        // a different parser language or a different inspector must not see the old entries
+        String source = SOURCES.get("esm.js");
+        Path file = cache.cacheFile(source);
+        InspectCache sameSalt = new InspectCache(dir, options(CompilerOptions.LanguageMode.ECMASCRIPT_NEXT));
+        check(sameSalt.cacheFile(source).equals(file), "same options, different key");
+        InspectCache otherLanguage = new InspectCache(dir, options(CompilerOptions.LanguageMode.ECMASCRIPT_2015));
+        check(!otherLanguage.cacheFile(source).equals(file), "other language, same key");
+
+        // entries from another format version or cut short are misses, not garbage
+        byte[] bytes = Files.readAllBytes(file);
+        check(InspectCache.read(file) != null, "valid entry not read");
+
+        byte[] otherVersion = bytes.clone();
+        ByteBuffer.wrap(otherVersion).putInt(4, ByteBuffer.wrap(bytes).getInt(4) + 1);
+        Files.write(file, otherVersion);
+        check(InspectCache.read(file) == null, "other version read");
+
+        byte[] otherMagic = bytes.clone();
+        otherMagic[0] ^= 0xFF;
+        Files.write(file, otherMagic);
+        check(InspectCache.read(file) == null, "other magic read");
+
+        for (int len : new int[]{0, 3, 8, bytes.length / 2, bytes.length - 1}) {
+            Files.write(file, Arrays.copyOf(bytes, len));
+            check(InspectCache.read(file) == null, "truncated to " + len + " read");
+        }
+
+        // and are replaced by the next miss
+        int misses = cache.getMisses();
+        IPersistentMap reparsed = cache.getFileInfoMap(compiler(co), SourceFile.fromCode("esm.js", source));
+        check(cache.getMisses() == misses + 1, "truncated entry was a hit");
+        check(Util.equiv(InspectCache.read(file), reparsed), "truncated entry not replaced");
+
+        System.out.format("failed:%d%n", failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
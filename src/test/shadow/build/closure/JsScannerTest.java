@@ -0,0 +1,73 @@
+package shadow.build.closure;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.RT;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.SourceFile;
+import com.google.javascript.jscomp.parsing.parser.FeatureSet;
+
+import java.io.IOException;
+
+public class JsScannerTest {
+
+    // each must either scan to the same result as the parse or fall back, never differ
+    static final String[] CASES = {
+            "require('a'); require(\"b\");",
+            "var x = a / require('r') / 2;",
+            "x = y\n/require('r')/g",
+            "if (x) /require('r')/.test(y)",
+            "function f() { return /require('r')/.test(y) }",
+
+            // keywords as property names are identifiers, the / after them is a division
+            "x = a.return\n/require('r')/g",
+            "o.in / require('r')",
+            "o.typeof / require('r') / 2",
+            "o.new / require('r') / 2",
+            "o.delete / require('r') / 2",
+            "o.void / require('r') / 2",
+            "o.throw / require('r') / 2",
+            "o.case / require('r') / 2",
+            "o.do / require('r') / 2",
+            "o.else / require('r') / 2",
+            "o.yield / require('r') / 2",
+            "o.await / require('r') / 2",
+            "o.instanceof / require('r') / 2",
+            "o?.return / require('r') / 2",
+            "o?.in / require('r')",
+            "a.if(x) / require('r')",
+            "a.while(x) / require('r') / 2",
+            "a?.for(x) / require('r') / 2",
+            "a.with(x) / require('r') / 2",
+    };
+
+    public static void main(String... args) throws IOException {
+        RT.init();
+
+        Compiler cc = new Compiler();
+        CompilerOptions co = new CompilerOptions();
+        co.setLanguageIn(CompilerOptions.LanguageMode.ECMASCRIPT_NEXT);
+        cc.initOptions(co);
+        FeatureSet features = co.getLanguageIn().toFeatureSet();
+
+        int failed = 0;
+        for (String code : CASES) {
+            IPersistentMap expected = JsInspector.getFileInfoMap(cc, SourceFile.fromCode("test.js", code));
+            JsInspector.FileInfo info = JsScanner.scan(code, features);
+
+            if (info == null) {
+                System.out.println("FALLBACK " + code);
+            } else if (!JsScanner.same(JsInspector.asMap(info), expected)) {
+                failed++;
+                System.out.println("MISMATCH " + code);
+                System.out.println("  parse: " + expected.valAt(JsInspector.KW_REQUIRES));
+                System.out.println("  scan:  " + JsInspector.asMap(info).valAt(JsInspector.KW_REQUIRES));
+            }
+        }
+
+        System.out.format("cases:%d failed:%d%n", CASES.length, failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
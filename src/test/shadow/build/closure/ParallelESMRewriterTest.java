@@ -0,0 +1,141 @@
+package shadow.build.closure;
+
+import clojure.lang.IPersistentVector;
+import clojure.lang.RT;
+import com.google.debugging.sourcemap.SourceMapConsumerV3;
+import com.google.debugging.sourcemap.proto.Mapping.OriginalMapping;
+import com.google.javascript.jscomp.ShadowESModuleRewriter;
+import com.google.javascript.jscomp.ShadowESModuleRewriter.Rewritten;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ParallelESMRewriterTest {
+
+    // every kind of import/export the rewriter handles
+    static final String[] SOURCES = {
+            "import x from \"@whatever/foo-bar.js\";\nimport * as y from \"./bar/baz.js\";\nimport { xyz as a, z } from \"whatever\";\nuse(x, y, z, a);\n",
+            "export let bar = 1;\nexport * from \"whatever\";\nexport { foo } from \"whatever\";\n",
+            "import x from \"x\";\nexport default x;\n",
+            "export default function named() {}\nexport class Foo {}\n",
+            "const a = 1, b = 2;\nexport { a as default, b };\n",
+            "export async function* gen() { yield await import(\"lazy\"); }\n",
+            "/** @license MIT */\nimport x from \"x\";\nexport const y = x;\n",
+    };
+
+    // the rewrite adds and moves code around, the original parts must still map to their lines
+    static final String MAPPED = "import x from \"x\";\n" +
+            "\n" +
+            "\n" +
+            "function first() { return x; }\n" +
+            "\n" +
+            "export const second = first();\n" +
+            "export default function third() { return second; }\n";
+
+    static final String[] MARKERS = {"function first", "second = first", "function third"};
+    static final int[] MARKER_LINES = {4, 6, 7};
+
+    static int failed = 0;
+
+    static void check(boolean ok, String msg) {
+        if (!ok) {
+            failed++;
+            System.out.println("FAIL " + msg);
+        }
+    }
+
+    static List<String> sources(int copies) {
+        // more sources than threads, so workers reuse their compilers
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < copies; i++) {
+            for (String source : SOURCES) {
+                sources.add(source + "use(" + i + ");\n");
+            }
+        }
+        return sources;
+    }
+
+    static void checkSourceMap(Rewritten rewritten) throws Exception {
+        SourceMapConsumerV3 consumer = new SourceMapConsumerV3();
+        consumer.parse(rewritten.sourceMap);
+        check(consumer.getOriginalSources().contains(RewriteCache.SOURCE_MAP_NAME), "sources " + consumer.getOriginalSources());
+
+        String[] lines = rewritten.code.split("\n", -1);
+        for (int m = 0; m < MARKERS.length; m++) {
+            boolean found = false;
+            for (int line = 0; line < lines.length; line++) {
+                int col = lines[line].indexOf(MARKERS[m]);
+                if (col == -1) {
+                    continue;
+                }
+                found = true;
+
+                // both 1-based
+                OriginalMapping mapping = consumer.getMappingForLine(line + 1, col + 1);
+                check(mapping != null && mapping.getLineNumber() == MARKER_LINES[m],
+                        MARKERS[m] + " at " + (line + 1) + ":" + col + " maps to " + mapping + "\n" + rewritten.code);
+            }
+            check(found, MARKERS[m] + " not in output\n" + rewritten.code);
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+        RT.init();
+
+        List<String> sources = sources(20);
+        sources.add("import x from ;\n");
+        int invalid = sources.size() - 1;
+
+        List<Object> expected = new ArrayList<>();
+        for (String source : sources) {
+            try {
+                expected.add(ShadowESModuleRewriter.rewrite(ShadowESModuleRewriter.createCompiler(), source));
+            } catch (Exception e) {
+                expected.add(e);
+            }
+        }
+        check(expected.get(invalid) instanceof Exception, "invalid source rewritten " + expected.get(invalid));
+
+        try (ParallelESMRewriter rewriter = new ParallelESMRewriter(4)) {
+            IPersistentVector results = rewriter.rewrite(sources);
+            check(results.count() == sources.size(), "result count " + results.count());
+
+            for (int i = 0; i < sources.size(); i++) {
+                Object result = results.nth(i);
+                if (i == invalid) {
+                    // a failing file is reported in its place, doesn't fail the batch or the worker
+                    check(result instanceof Throwable, "invalid source result " + result);
+                } else {
+                    check(expected.get(i).equals(result), "different at " + i + "\n" + expected.get(i) + "\n" + result);
+                }
+            }
+
+            // the worker that hit the error still produces the same output
+            IPersistentVector again = rewriter.rewrite(sources.subList(0, invalid));
+            for (int i = 0; i < invalid; i++) {
+                check(expected.get(i).equals(again.nth(i)), "different after error at " + i);
+            }
+
+            // the code is the same with source maps, only the map is added
+            IPersistentVector withMaps = rewriter.rewriteWithSourceMaps(sources);
+            for (int i = 0; i < sources.size(); i++) {
+                Object result = withMaps.nth(i);
+                if (i == invalid) {
+                    check(result instanceof Throwable, "invalid source with map result " + result);
+                } else {
+                    Rewritten rewritten = (Rewritten) result;
+                    check(expected.get(i).equals(rewritten.code), "different with map at " + i + "\n" + expected.get(i) + "\n" + rewritten.code);
+                    check(rewritten.sourceMap != null, "no map at " + i);
+                }
+            }
+
+            Rewritten mapped = rewriter.rewriteWithSourceMap(MAPPED);
+            checkSourceMap(mapped);
+        }
+
+        System.out.format("failed:%d%n", failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
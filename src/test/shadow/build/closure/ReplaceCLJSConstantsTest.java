@@ -0,0 +1,100 @@
+package shadow.build.closure;
+
+import clojure.lang.RT;
+import com.google.javascript.jscomp.*;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.rhino.Node;
+
+import java.util.*;
+
+public class ReplaceCLJSConstantsTest {
+
+    static final String USES =
+            "use(new cljs.core.Keyword(null, \"foo\", \"foo\", 101));\n" +
+            "use(new cljs.core.Keyword(\"a.b\", \"bar-baz\", \"a.b/bar-baz\", -202));\n" +
+            "use(new cljs.core.Symbol(\"a.b\", \"sym?\", \"a.b/sym?\", 303, null));\n";
+
+    static final String NO_CONSTANTS = "use(1);\n";
+
+    /**
+     * compiles two chunks, base with cljs.core and a.cljs, other with b.cljs, then runs the pass
+     */
+    static String run(int threads, Collection<String> inputsWithoutConstants, Map<String, String> mungedNames) {
+        Compiler cc = new Compiler();
+        CompilerOptions co = new CompilerOptions();
+        co.setPrettyPrint(true);
+        co.setLanguageIn(CompilerOptions.LanguageMode.ECMASCRIPT_NEXT);
+
+        JSChunk base = new JSChunk("base");
+        base.add(SourceFile.fromCode("cljs/core.cljs", "var cljs={core:{}};"));
+        base.add(SourceFile.fromCode("shadow/cljs/constants/base.js", ""));
+        base.add(SourceFile.fromCode("a.cljs", USES));
+        base.add(SourceFile.fromCode("none.cljs", NO_CONSTANTS));
+
+        JSChunk other = new JSChunk("other");
+        other.addDependency(base);
+        other.add(SourceFile.fromCode("shadow/cljs/constants/other.js", ""));
+        other.add(SourceFile.fromCode("b.cljs", USES + "use(new cljs.core.Keyword(null, \"only-b\", \"only-b\", 404));\n"));
+
+        cc.initChunks(List.of(SourceFile.fromCode("externs.js", "function use(x){}")), List.of(base, other), co);
+        cc.parse();
+
+        ReplaceCLJSConstants pass = new ReplaceCLJSConstants(cc, false, null, threads);
+        pass.setInputsWithoutConstants(inputsWithoutConstants);
+        pass.addMungedNames(mungedNames);
+
+        Node root = ShadowAccess.getJsRoot(cc);
+        pass.process(root.getParent().getFirstChild(), root);
+
+        StringBuilder out = new StringBuilder();
+        for (Node script = root.getFirstChild(); script != null; script = script.getNext()) {
+            out.append("// ").append(script.getSourceFileName()).append("\n").append(cc.toSource(script));
+        }
+        return out.toString();
+    }
+
+    public static void main(String... args) {
+        RT.init();
+
+        int failed = 0;
+
+        String expected = run(1, List.of(), Map.of());
+        if (!expected.contains("cljs$cst$0$foo") || !expected.contains("cljs$cst$1$a_DOT_b_SLASH_bar_baz")) {
+            failed++;
+            System.out.println("UNEXPECTED NAMES\n" + expected);
+        }
+
+        // what the CLJS compiler records for a.cljs and b.cljs, b contributes only what a doesn't have
+        Map<String, String> table = new HashMap<>();
+        for (String fqn : List.of("foo", "a.b/bar-baz", "a.b/sym?", "only-b")) {
+            table.put(fqn, ReplaceCLJSConstants.mungeConstant(fqn));
+        }
+
+        for (int threads : new int[]{1, 4}) {
+            String actual = run(threads, List.of("none.cljs"), table);
+            if (!actual.equals(expected)) {
+                failed++;
+                System.out.println("DIFFERENT WITH TABLE threads:" + threads + "\n" + actual);
+            }
+        }
+
+        // the table is actually used instead of munging again
+        String fromTable = run(1, List.of(), Map.of("a.b/bar-baz", "from_table"));
+        if (!fromTable.contains("cljs$cst$1$from_table") || fromTable.contains("a_DOT_b_SLASH_bar_baz")) {
+            failed++;
+            System.out.println("TABLE NOT USED\n" + fromTable);
+        }
+
+        // constants in inputs recorded as not having any are left alone
+        String skipped = run(1, List.of("a.cljs"), table);
+        if (!skipped.contains("new cljs.core.Keyword(null, \"foo\", \"foo\", 101)")) {
+            failed++;
+            System.out.println("NOT SKIPPED\n" + skipped);
+        }
+
+        System.out.format("failed:%d%n", failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
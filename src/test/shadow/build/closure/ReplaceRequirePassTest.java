@@ -4,12 +4,18 @@ import com.google.javascript.jscomp.*;
 import com.google.javascript.jscomp.Compiler;
 import com.google.javascript.rhino.Node;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ReplaceRequirePassTest {
 
     public static Node process(Compiler cc, SourceFile srcFile) {
+        return process(cc, srcFile, null);
+    }
+
+    public static Node process(Compiler cc, SourceFile srcFile, Collection<String> sourceNames) {
         CompilerInput ast = new CompilerInput(srcFile);
         Node node = ast.getAstRoot(cc);
 
@@ -20,8 +26,9 @@ public class ReplaceRequirePassTest {
 
         Map<String, Map<String, Object>> outer = new HashMap<>();
         outer.put("test.js", nested);
+        outer.put("unchanged.js", nested);
 
-        NodeTraversal.Callback pass = new ReplaceRequirePass(cc, outer);
+        NodeTraversal.Callback pass = new ReplaceRequirePass(cc, outer, sourceNames);
         NodeTraversal.traverse(cc, node, pass);
 
         return node;
@@ -35,8 +42,32 @@ public class ReplaceRequirePassTest {
         co.setPrettyPrint(true);
         cc.initOptions(co);
 
-        SourceFile srcFile = SourceFile.fromCode("test.js", "require('test'); require('goog:goog.string');");
+        String code = "require('test'); require('goog:goog.string');";
+
+        SourceFile srcFile = SourceFile.fromCode("test.js", code);
 
         System.out.println(cc.toSource(process(cc, srcFile)));
+
+        int failed = 0;
+
+        // only the inputs that changed are given, anything else in the compile must stay as is
+        List<String> changed = List.of("test.js");
+
+        String replaced = cc.toSource(process(cc, SourceFile.fromCode("test.js", code), changed));
+        if (!replaced.contains("require(\"module$test\")") || !replaced.contains("global.goog.string")) {
+            failed++;
+            System.out.println("NOT REPLACED " + replaced);
+        }
+
+        String skipped = cc.toSource(process(cc, SourceFile.fromCode("unchanged.js", code), changed));
+        if (!skipped.contains("require(\"test\")") || !skipped.contains("require(\"goog:goog.string\")")) {
+            failed++;
+            System.out.println("NOT SKIPPED " + skipped);
+        }
+
+        System.out.format("failed:%d%n", failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
     }
 }
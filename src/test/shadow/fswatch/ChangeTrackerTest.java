@@ -0,0 +1,179 @@
+package shadow.fswatch;
+
+import clojure.lang.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+public class ChangeTrackerTest {
+
+    static final Keyword NEW = RT.keyword(null, "new");
+    static final Keyword MOD = RT.keyword(null, "mod");
+    static final Keyword DEL = RT.keyword(null, "del");
+
+    static int failed = 0;
+
+    static void check(boolean ok, String msg) {
+        if (!ok) {
+            failed++;
+            System.out.println("FAIL " + msg);
+        }
+    }
+
+    static ITransientMap empty() {
+        return PersistentHashMap.EMPTY.asTransient();
+    }
+
+    static void touch(Path file, String content, long mtime) throws IOException {
+        Files.writeString(file, content);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(mtime));
+    }
+
+    // registers dirs by walking them, like the watchers do minus the WatchService
+    static class Dirs implements WatchedFiles.Registrar {
+        final WatchedFiles files;
+        final Set<Path> dirs = new HashSet<>();
+
+        Dirs(WatchedFiles files) {
+            this.files = files;
+        }
+
+        @Override
+        public Set<Path> knownDirs() {
+            return new HashSet<>(dirs);
+        }
+
+        @Override
+        public ITransientMap registerAll(Path start, ITransientMap changes) throws IOException {
+            ITransientMap[] result = {changes};
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    dirs.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    result[0] = files.add(file, attrs, result[0]);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return result[0];
+        }
+    }
+
+    static void testRecord(Path root) throws IOException {
+        ChangeTracker tracker = new ChangeTracker(root, List.of("cljs"));
+
+        Path file = root.resolve("record.cljs");
+        Files.writeString(file, "a");
+
+        // OS may send a :mod right after the :new, the file is still new
+        ITransientMap changes = tracker.record(empty(), ENTRY_CREATE, file);
+        changes = tracker.record(changes, ENTRY_MODIFY, file);
+        check(NEW.equals(changes.valAt("record.cljs")), "create+modify " + changes.persistent());
+
+        check(MOD.equals(tracker.record(empty(), ENTRY_MODIFY, file).valAt("record.cljs")), "modify");
+
+        // deletes are reported without looking at the file, it is already gone
+        check(DEL.equals(tracker.record(empty(), ENTRY_DELETE, root.resolve("gone.cljs")).valAt("gone.cljs")), "delete");
+
+        // created and deleted again before the event was processed
+        check(tracker.record(empty(), ENTRY_CREATE, root.resolve("gone.cljs")).count() == 0, "create of missing file");
+
+        Path other = root.resolve("other.txt");
+        Files.writeString(other, "x");
+        check(tracker.record(empty(), ENTRY_CREATE, other).count() == 0, "other extension");
+
+        Path lock = root.resolve(".#record.cljs");
+        Files.writeString(lock, "x");
+        check(tracker.record(empty(), ENTRY_CREATE, lock).count() == 0, "emacs lock file");
+
+        // with content hashing a save without changes is not a :mod
+        tracker.setContentHashing(true);
+        tracker.record(empty(), ENTRY_CREATE, file);
+        Files.writeString(file, "a");
+        check(tracker.record(empty(), ENTRY_MODIFY, file).count() == 0, "same content reported");
+        Files.writeString(file, "b");
+        check(MOD.equals(tracker.record(empty(), ENTRY_MODIFY, file).valAt("record.cljs")), "changed content not reported");
+    }
+
+    static void testRecover(Path root) throws IOException {
+        Path dir = root.resolve("recover");
+        Files.createDirectories(dir.resolve("sub"));
+        touch(dir.resolve("same.cljs"), "same", 1000);
+        touch(dir.resolve("changed.cljs"), "changed", 1000);
+        touch(dir.resolve("deleted.cljs"), "deleted", 1000);
+        touch(dir.resolve("sub/nested.cljs"), "nested", 1000);
+        touch(dir.resolve("ignored.txt"), "ignored", 1000);
+
+        ChangeTracker tracker = new ChangeTracker(dir, List.of("cljs"));
+        WatchedFiles files = new WatchedFiles(dir, tracker);
+        Dirs dirs = new Dirs(files);
+        check(dirs.registerAll(dir, null) == null, "initial register recorded changes");
+
+        // all events for these are lost to an overflow
+        touch(dir.resolve("changed.cljs"), "changed!", 2000);
+        Files.delete(dir.resolve("deleted.cljs"));
+        touch(dir.resolve("created.cljs"), "created", 2000);
+        Files.createDirectories(dir.resolve("new-dir"));
+        touch(dir.resolve("new-dir/inside.cljs"), "inside", 2000);
+        // not below an overflowed dir, must be left alone
+        touch(dir.resolve("sub/nested.cljs"), "nested!", 2000);
+
+        check(!files.hasOverflowed(), "overflowed before overflow");
+        files.overflowed(dir);
+        check(files.hasOverflowed(), "not overflowed");
+
+        IPersistentMap changes = files.recover(empty(), dirs).persistent();
+        check(!files.hasOverflowed(), "still overflowed after recover");
+
+        Map<Object, Object> expected = new HashMap<>();
+        expected.put("changed.cljs", MOD);
+        expected.put("deleted.cljs", DEL);
+        expected.put("created.cljs", NEW);
+        expected.put(Paths.get("new-dir", "inside.cljs").toString(), NEW);
+        check(expected.equals(changes), "recovered " + changes);
+        check(dirs.dirs.contains(dir.resolve("new-dir")), "new dir not registered");
+
+        // the index is up to date, a second overflow without changes reports nothing
+        files.overflowed(dir);
+        files.overflowed(dir.resolve("new-dir"));
+        check(files.recover(empty(), dirs).count() == 0, "second recover reported changes");
+
+        // regular events keep the index in sync, so recovery doesn't report them again
+        touch(dir.resolve("same.cljs"), "same!", 3000);
+        files.update(dir.resolve("same.cljs"));
+        Files.delete(dir.resolve("created.cljs"));
+        files.update(dir.resolve("created.cljs"));
+        files.overflowed(dir);
+        check(files.recover(empty(), dirs).count() == 0, "recover repeated regular events");
+
+        // a dir deleted while overflowed removes its files
+        Files.delete(dir.resolve("new-dir/inside.cljs"));
+        Files.delete(dir.resolve("new-dir"));
+        files.overflowed(dir.resolve("new-dir"));
+        IPersistentMap deleted = files.recover(empty(), dirs).persistent();
+        check(DEL.equals(deleted.valAt(Paths.get("new-dir", "inside.cljs").toString())) && deleted.count() == 1, "deleted dir " + deleted);
+    }
+
+    public static void main(String[] args) throws IOException {
+        RT.init();
+
+        Path root = Files.createTempDirectory("shadow-fswatch-test").toRealPath();
+
+        testRecord(root);
+        testRecover(root);
+
+        System.out.format("failed:%d%n", failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package shadow.fswatch;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FileIndexBenchmark {
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * rough heap footprint comparison against the HashMap<Path, Long> previously used
+     * by the PollingFileWatcher, using node_modules like paths. run once per mode with a fixed heap
+     *
+     * java -Xms2g -Xmx2g shadow.fswatch.FileIndexBenchmark map|index [packages]
+     */
+    public static void main(String[] args) {
+        boolean useMap = args.length > 0 && args[0].equals("map");
+        int packages = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int filesPerPackage = 40;
+
+        Path root = Paths.get("node_modules").toAbsolutePath();
+
+        long before = usedHeap();
+
+        Object result;
+        int entries;
+
+        if (useMap) {
+            Map<Path, Long> map = new HashMap<>();
+            for (int p = 0; p < packages; p++) {
+                for (int f = 0; f < filesPerPackage; f++) {
+                    map.put(testPath(root, p, f), System.currentTimeMillis());
+                }
+            }
+            entries = map.size();
+            result = map;
+        } else {
+            FileIndex index = new FileIndex(root);
+            for (int p = 0; p < packages; p++) {
+                for (int f = 0; f < filesPerPackage; f++) {
+                    Path path = testPath(root, p, f);
+                    if (index.find(path) == -1) {
+                        index.add(path, System.currentTimeMillis(), 1000);
+                    }
+                }
+            }
+            entries = index.size();
+            result = index;
+        }
+
+        long bytes = usedHeap() - before;
+        System.out.printf("%s entries = %d bytes = %d (%d per file)%n", result.getClass().getSimpleName(), entries, bytes, bytes / entries);
+    }
+
+    private static Path testPath(Path root, int p, int f) {
+        return root
+                .resolve("package-" + p)
+                .resolve(f % 2 == 0 ? "lib" : "dist/esm")
+                .resolve(f % 10 == 0 ? "index.js" : "file-" + f + ".js");
+    }
+}
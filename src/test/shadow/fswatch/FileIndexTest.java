@@ -0,0 +1,118 @@
+package shadow.fswatch;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class FileIndexTest {
+
+    static int failed = 0;
+
+    static void check(boolean ok, String msg) {
+        if (!ok) {
+            failed++;
+            System.out.println("FAIL " + msg);
+        }
+    }
+
+    // compares everything the index knows against a plain map
+    static void verify(String step, FileIndex index, Map<Path, Long> model, Path root) {
+        check(index.size() == model.size(), step + " size " + index.size() + " vs " + model.size());
+
+        for (Map.Entry<Path, Long> e : model.entrySet()) {
+            Path file = e.getKey();
+            int id = index.find(file);
+            if (id == -1) {
+                check(false, step + " not found " + file);
+                continue;
+            }
+            check(index.isLive(id), step + " not live " + file);
+            check(index.lastModified(id) == e.getValue(), step + " lastModified " + file);
+            check(index.size(id) == e.getValue() * 2, step + " size " + file);
+            check(index.path(id).equals(file), step + " path " + index.path(id) + " vs " + file);
+            check(root.resolve(index.relativeName(id)).equals(file), step + " relativeName " + index.relativeName(id));
+        }
+
+        int live = 0;
+        for (int id = 0; id < index.capacity(); id++) {
+            if (index.isLive(id)) {
+                live++;
+                check(model.containsKey(index.path(id)), step + " unknown entry " + index.path(id));
+            }
+        }
+        check(live == model.size(), step + " live entries " + live + " vs " + model.size());
+    }
+
+    public static void main(String[] args) {
+        Path root = Paths.get("project").toAbsolutePath();
+        FileIndex index = new FileIndex(root);
+        Map<Path, Long> model = new HashMap<>();
+        Random rnd = new Random(42);
+
+        List<Path> files = new ArrayList<>();
+        for (int d = 0; d < 50; d++) {
+            Path dir = root.resolve("src").resolve("dir" + (d % 7)).resolve("sub" + d);
+            for (int f = 0; f < 100; f++) {
+                files.add(dir.resolve("file" + f + ".cljs"));
+            }
+        }
+
+        // grows the table and the entry arrays well past their initial size
+        for (Path file : files.subList(0, 3000)) {
+            long mod = rnd.nextInt(1_000_000);
+            index.add(file, mod, mod * 2);
+            model.put(file, mod);
+        }
+        verify("grow", index, model, root);
+
+        check(index.find(root.resolve("src/missing.cljs")) == -1, "missing file found");
+        check(index.find(root.resolve("other/file0.cljs")) == -1, "file in unknown dir found");
+
+        // a small live set churned many times, removals leave tombstones that the probing must skip
+        // and that eventually force a rehash without growing
+        for (int round = 0; round < 20_000; round++) {
+            Path file = files.get(rnd.nextInt(files.size()));
+            int id = index.find(file);
+            if (model.containsKey(file)) {
+                check(id != -1, "churn lost " + file);
+                index.remove(id);
+                model.remove(file);
+                check(index.find(file) == -1, "churn removed still found " + file);
+            } else {
+                check(id == -1, "churn found removed " + file);
+                long mod = rnd.nextInt(1_000_000);
+                index.add(file, mod, mod * 2);
+                model.put(file, mod);
+            }
+
+            if (round % 5000 == 0) {
+                verify("churn " + round, index, model, root);
+            }
+        }
+        verify("churn", index, model, root);
+
+        // removed ids are reused, so capacity stays bounded by the most entries ever live at once
+        int capacity = index.capacity();
+        for (Path file : new ArrayList<>(model.keySet())) {
+            index.remove(index.find(file));
+            model.remove(file);
+        }
+        verify("empty", index, model, root);
+        for (Path file : files.subList(0, 1000)) {
+            index.add(file, 1, 2);
+            model.put(file, 1L);
+        }
+        verify("reuse", index, model, root);
+        check(index.capacity() == capacity, "capacity grew on reuse " + capacity + " -> " + index.capacity());
+
+        index.clear();
+        model.clear();
+        verify("clear", index, model, root);
+        check(index.find(files.get(0)) == -1, "found after clear");
+
+        System.out.format("failed:%d%n", failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package shadow.fswatch;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PathFilterBenchmark {
+
+    /**
+     * compares against the previous per event matching: endsWith("." + ext) for each extension
+     * and a glob PathMatcher on the relativized path
+     *
+     * java shadow.fswatch.PathFilterBenchmark [iterations]
+     */
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        FileSystem fs = FileSystems.getDefault();
+        Path root = Paths.get("src").toAbsolutePath();
+        List<String> exts = List.of("cljs", "cljc", "clj", "js", "css", "scss");
+        String pattern = "**/*.{cljs,cljc}";
+
+        List<Path> paths = new ArrayList<>();
+        String[] names = {"core.cljs", "util.cljc", "server.clj", "index.js", "main.css", "README.md", ".#core.cljs", "data.edn"};
+        for (int p = 0; p < 500; p++) {
+            for (String name : names) {
+                paths.add(root.resolve("main/pkg" + p + "/sub").resolve(name));
+            }
+        }
+
+        PathFilter filter = new PathFilter(fs, exts, List.of(pattern), PathFilter.DEFAULT_IGNORED_DIRS);
+        int offset = filter.relativeOffset(root);
+        PathMatcher matcher = fs.getPathMatcher("glob:" + pattern);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < iterations; i++) {
+                for (Path path : paths) {
+                    String name = root.relativize(path).toString();
+                    if (!path.getFileName().toString().startsWith(".#") && !Files.isHidden(path)) {
+                        for (String ext : exts) {
+                            if (name.endsWith("." + ext)) {
+                                if (matcher.matches(root.relativize(path))) {
+                                    hits++;
+                                }
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            long old = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int filterHits = 0;
+            for (int i = 0; i < iterations; i++) {
+                for (Path path : paths) {
+                    if (filter.acceptFile(path, offset)) {
+                        filterHits++;
+                    }
+                }
+            }
+            long now = System.nanoTime() - start;
+
+            System.out.printf("checks = %d old = %dms (%d hits) PathFilter = %dms (%d hits)%n",
+                    iterations * paths.size(), old / 1_000_000, hits, now / 1_000_000, filterHits);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package shadow.fswatch;
+
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+public class PathFilterTest {
+
+    static final String[] GLOBS = {
+            "*",
+            "**",
+            "*.cljs",
+            "**.cljs",
+            "**/*.cljs",
+            "**/*.{cljs,cljc}",
+            "{src,test}/**/*.js",
+            "src/**",
+            "src/**/core.cljs",
+            "src/*/core.cljs",
+            "**/foo/**",
+            "a/**/b",
+            "?.js",
+            "a?c/*.j?",
+            "[abc].js",
+            "[!a-c]*.js",
+            "[a-]x.js",
+            "*.[cj]s",
+            "src/{main,test/**}/*.cljs",
+            "{a,abc}/{x.js,b}",
+            "\\*.js",
+            ".hidden/*",
+    };
+
+    static final String[] PATHS = {
+            "a.js",
+            "b.js",
+            "d.js",
+            "-x.js",
+            "ax.js",
+            "*.js",
+            "x.cs",
+            "core.cljs",
+            "core.cljc",
+            "core.clj",
+            "src/core.cljs",
+            "src/main/core.cljs",
+            "src/main/deep/core.cljs",
+            "src/test/core.cljs",
+            "src/test/deep/core.cljs",
+            "test/x/y.js",
+            "src/index.js",
+            "foo/x",
+            "x/foo/y",
+            "x/foo",
+            "a/b",
+            "a/x/b",
+            "a/x/y/b",
+            "ab",
+            "abc/x.js",
+            "abc/x.jsx",
+            "adc/x.jx",
+            "a.b/c.cljs",
+            ".hidden/file",
+            "src/.hidden.cljs",
+    };
+
+    public static void main(String[] args) {
+        FileSystem fs = FileSystems.getDefault();
+
+        int failed = 0;
+        int checked = 0;
+
+        for (String glob : GLOBS) {
+            PathMatcher matcher = fs.getPathMatcher("glob:" + glob);
+            PathFilter filter = PathFilter.forGlob(fs, glob);
+
+            for (String path : PATHS) {
+                String s = fs.getPath(path).toString();
+                boolean expected = matcher.matches(fs.getPath(path));
+                boolean actual = filter.matchesGlob(s, 0);
+                checked++;
+
+                if (expected != actual) {
+                    failed++;
+                    System.out.format("MISMATCH glob:%s path:%s matcher:%s filter:%s%n", glob, path, expected, actual);
+                }
+
+                // matching from an offset is the same as matching the relative path
+                String prefixed = fs.getPath("root", path).toString();
+                if (filter.matchesGlob(prefixed, prefixed.length() - s.length()) != actual) {
+                    failed++;
+                    System.out.format("OFFSET MISMATCH glob:%s path:%s%n", glob, path);
+                }
+            }
+        }
+
+        // extension matching against the "glob:*.ext" FS.extMatcher used to create
+        for (String ext : List.of("cljs", "js", "s")) {
+            PathMatcher matcher = fs.getPathMatcher("glob:*." + ext);
+            PathFilter filter = PathFilter.forExtensionGlob(fs, ext);
+
+            for (String path : PATHS) {
+                Path name = fs.getPath(path).getFileName();
+                boolean expected = matcher.matches(name);
+                boolean actual = filter.matchesExtension(name.toString());
+                checked++;
+
+                if (expected != actual) {
+                    failed++;
+                    System.out.format("MISMATCH ext:%s path:%s matcher:%s filter:%s%n", ext, path, expected, actual);
+                }
+            }
+        }
+
+        // invalid globs are rejected the same way
+        List<String> invalid = new ArrayList<>(List.of("[abc", "{a,b", "a{b{c}}"));
+        for (String glob : invalid) {
+            boolean matcherThrows = false;
+            boolean filterThrows = false;
+            try {
+                fs.getPathMatcher("glob:" + glob);
+            } catch (PatternSyntaxException e) {
+                matcherThrows = true;
+            }
+            try {
+                PathFilter.forGlob(fs, glob);
+            } catch (PatternSyntaxException e) {
+                filterThrows = true;
+            }
+            checked++;
+
+            if (matcherThrows != filterThrows) {
+                failed++;
+                System.out.format("INVALID glob:%s matcher throws:%s filter throws:%s%n", glob, matcherThrows, filterThrows);
+            }
+        }
+
+        System.out.format("checked:%d failed:%d%n", checked, failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
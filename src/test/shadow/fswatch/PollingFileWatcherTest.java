@@ -0,0 +1,91 @@
+package shadow.fswatch;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.RT;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+
+public class PollingFileWatcherTest {
+
+    static int failed = 0;
+
+    static void check(boolean ok, String msg) {
+        if (!ok) {
+            failed++;
+            System.out.println("FAIL " + msg);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        RT.init();
+
+        Path root = Files.createTempDirectory("shadow-fswatch-test");
+        Path snapshot = Files.createTempDirectory("shadow-fswatch-snapshot").resolve("watch.snapshot");
+        Set<String> exts = Set.of("cljs", "js");
+
+        Files.createDirectories(root.resolve("a/b"));
+        Files.writeString(root.resolve("keep.cljs"), "keep");
+        Files.writeString(root.resolve("a/changed.cljs"), "before");
+        Files.writeString(root.resolve("a/b/deleted.js"), "deleted");
+        Files.writeString(root.resolve("a/b/ignored.txt"), "not watched");
+
+        PollingFileWatcher first = new PollingFileWatcher(root, exts);
+        check(!first.useSnapshot(snapshot), "restored missing snapshot");
+        first.initialScan();
+        first.close();
+        check(Files.isRegularFile(snapshot), "snapshot not written on close");
+
+        // changes while nothing is watching
+        Files.writeString(root.resolve("a/changed.cljs"), "after, with a different size");
+        Files.delete(root.resolve("a/b/deleted.js"));
+        Files.writeString(root.resolve("a/b/added.js"), "added");
+        Files.writeString(root.resolve("a/b/ignored.txt"), "still not watched");
+
+        PollingFileWatcher second = new PollingFileWatcher(root, exts);
+        check(second.useSnapshot(snapshot), "snapshot not restored");
+        IPersistentMap changes = second.fullScan();
+        check(changes.count() == 3, "changes " + changes);
+        check(RT.keyword(null, "mod").equals(changes.valAt(root.relativize(root.resolve("a/changed.cljs")).toString())), "mod " + changes);
+        check(RT.keyword(null, "del").equals(changes.valAt(root.relativize(root.resolve("a/b/deleted.js")).toString())), "del " + changes);
+        check(RT.keyword(null, "new").equals(changes.valAt(root.relativize(root.resolve("a/b/added.js")).toString())), "new " + changes);
+        check(second.fullScan().count() == 0, "changes reported twice");
+        second.close();
+
+        // the state written on close is the one after the changes
+        PollingFileWatcher third = new PollingFileWatcher(root, exts);
+        check(third.useSnapshot(snapshot), "second snapshot not restored");
+        check(third.fullScan().count() == 0, "unchanged files reported after restore");
+        third.close();
+
+        // other extensions would report bogus events, those start fresh
+        PollingFileWatcher otherExts = new PollingFileWatcher(root, Set.of("cljs"));
+        check(!otherExts.useSnapshot(snapshot), "restored snapshot with other extensions");
+        otherExts.close();
+
+        // a truncated snapshot is ignored
+        byte[] bytes = Files.readAllBytes(snapshot);
+        Files.write(snapshot, Arrays.copyOf(bytes, bytes.length / 2));
+        PollingFileWatcher truncated = new PollingFileWatcher(root, exts);
+        check(!truncated.useSnapshot(snapshot), "restored truncated snapshot");
+        truncated.initialScan();
+        check(truncated.fullScan().count() == 0, "changes after truncated snapshot");
+
+        // a snapshot that can't be written must not fail close
+        PollingFileWatcher unwritable = new PollingFileWatcher(root, exts);
+        unwritable.useSnapshot(root.resolve("keep.cljs").resolve("cannot-exist"));
+        unwritable.initialScan();
+        try {
+            unwritable.close();
+        } catch (Exception e) {
+            check(false, "close threw " + e);
+        }
+
+        System.out.format("failed:%d%n", failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}